@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of target/benchmarks.jar: the JMH command line, writing the results as
+ * JSON to target/jmh-result.json unless -rf/-rff are given.
+ */
+public class BenchmarkMain {
+  static final String DEFAULT_RESULT_FILE = "target" + File.separator + "jmh-result.json";
+
+  public static void main(String[] argv) throws Exception {
+    List<String> args = Arrays.asList(argv);
+    if (!args.contains("-rf") && !args.contains("-rff")) {
+      new File(DEFAULT_RESULT_FILE).getAbsoluteFile().getParentFile().mkdirs();
+      String[] withResult = Arrays.copyOf(argv, argv.length + 4);
+      withResult[argv.length] = "-rf";
+      withResult[argv.length + 1] = "json";
+      withResult[argv.length + 2] = "-rff";
+      withResult[argv.length + 3] = DEFAULT_RESULT_FILE;
+      argv = withResult;
+    }
+    org.openjdk.jmh.Main.main(argv);
+  }
+}
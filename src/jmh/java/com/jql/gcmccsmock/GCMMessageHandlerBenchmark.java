@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-message cost of the handler steps: parsing the incoming stanza and building
+ * each kind of response stanza.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GCMMessageHandlerBenchmark {
+
+  private final String regId = "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx1rZLk6a9nB1vM7sFbdP5TWbEnVJ5nDkOoO1tRRNP5pq0S6fZ2QKUjG8CtQl";
+  private final String messageId = "m-1366082849205";
+
+  private Stanza incoming;
+
+  @Setup
+  public void setup() {
+    StanzaBuilder builder = new StanzaBuilder("message");
+    builder.addAttribute("id", "stanza-1");
+    GCMMessage.Builder gcmMessageBuilder = new GCMMessage.Builder();
+    gcmMessageBuilder.addText(GCMMessageParseBenchmark.PAYLOAD);
+    builder.addPreparedElement(gcmMessageBuilder.build());
+    incoming = builder.build();
+  }
+
+  @Benchmark
+  public JSONObject fromStanzaJsonObject() throws Exception {
+    return GCMMessage.fromStanza(incoming).getJsonObject();
+  }
+
+  @Benchmark
+  public Stanza createAck() throws Exception {
+    return GCMMessageHandler.createAckMessageStanza(incoming, regId, messageId);
+  }
+
+  @Benchmark
+  public Stanza createNackBadRegId() throws Exception {
+    return GCMMessageHandler.createNackBadRegIdMessageStanza(incoming, regId, messageId);
+  }
+
+  @Benchmark
+  public Stanza createNackFlowControl() throws Exception {
+    return GCMMessageHandler.createNackFlowControlMessageStanza(incoming, regId, messageId, "SERVICE_UNAVAILABLE");
+  }
+
+  @Benchmark
+  public Stanza createDeliveryReceipt() throws Exception {
+    return GCMMessageHandler.createDeliveryReceiptMessageStanza(incoming, regId, messageId);
+  }
+
+  @Benchmark
+  public Stanza createDraining() throws Exception {
+    return GCMMessageHandler.createDrainingMessageStanza(incoming);
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.vysper.xml.fragment.XMLElement;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per-message cost of reading 'to' and 'message_id' out of an incoming GCM stanza:
+ * full json-simple tree vs the single-pass JsonFieldScanner.
+ * Add -prof gc to compare the allocation per message as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GCMMessageParseBenchmark {
+
+  static final String PAYLOAD = "{\n"
+      + "  \"to\":\"APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx1rZLk6a9nB1vM7sFbdP5TWbEnVJ5nDkOoO1tRRNP5pq0S6fZ2QKUjG8CtQl\",\n"
+      + "  \"message_id\":\"m-1366082849205\",\n"
+      + "  \"data\": {\n"
+      + "    \"hello\":\"world\",\n"
+      + "    \"nested\": {\"count\": 42, \"tags\": [\"a\", \"b\", \"{not a brace}\"]}\n"
+      + "  },\n"
+      + "  \"time_to_live\":600,\n"
+      + "  \"delay_while_idle\":true,\n"
+      + "  \"delivery_receipt_requested\":true\n"
+      + "}";
+
+  private XMLElement gcmElement;
+
+  @Setup
+  public void setup() {
+    GCMMessage.Builder builder = new GCMMessage.Builder();
+    builder.addText(PAYLOAD);
+    gcmElement = builder.build();
+  }
+
+  @Benchmark
+  public void jsonSimpleTree(Blackhole blackhole) throws Exception {
+    JSONObject jsonObject = new GCMMessage(gcmElement).getJsonObject();
+    blackhole.consume(jsonObject.get(GCMMessageHandler.JSON_TO));
+    blackhole.consume(jsonObject.get(GCMMessageHandler.JSON_MESSAGE_ID));
+  }
+
+  @Benchmark
+  public void streamingScan(Blackhole blackhole) throws Exception {
+    GCMMessage gcmMessage = new GCMMessage(gcmElement);
+    blackhole.consume(gcmMessage.getTo());
+    blackhole.consume(gcmMessage.getMessageId());
+  }
+}
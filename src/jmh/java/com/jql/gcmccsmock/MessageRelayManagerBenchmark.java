@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ScheduledJob round trip through MessageRelayManager: a batch of jobs is enqueued and
+ * the invocation ends when all of them have been dequeued and executed. Each batch
+ * includes the 1 ms minimum delay and, with the timing wheel, up to one tick.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageRelayManagerBenchmark {
+  private static final int BATCH = 10000;
+
+  @Param({"pooled", "sharded"})
+  public String engine;
+
+  @Param({"timingwheel", "delayqueue"})
+  public String scheduler;
+
+  private MessageRelayManager messageRelayManager;
+  private final AtomicLong executed = new AtomicLong();
+  private long expected;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Config config = new Config();
+    config.setProperty("relay.engine", engine);
+    config.setProperty("relay.scheduler", scheduler);
+    config.setProperty("message.store.enabled", "false");
+    messageRelayManager = new MessageRelayManager(config, new RelayMetrics());
+    messageRelayManager.gcmMessageStore = new InMemoryGCMMessageStoreImpl(config);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    messageRelayManager.shutdown();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void enqueueAndDequeue() {
+    for (int i = 0; i < BATCH; i++) {
+      messageRelayManager.addJob(new CountingJob(i));
+    }
+    expected += BATCH;
+    while (executed.get() < expected) {
+      Thread.yield();
+    }
+  }
+
+  private final class CountingJob extends ScheduledJob {
+    private final Integer routingKey;
+
+    CountingJob(int routingKey) {
+      super(1);
+      this.routingKey = routingKey;
+    }
+
+    @Override
+    public Object getRoutingKey() {
+      return routingKey;
+    }
+
+    @Override
+    public boolean execute(MessageRelayManager messageRelayManager) {
+      executed.incrementAndGet();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RedisGCMMessageStoreImpl.storeMessage against a loopback RespStandIn, with a
+ * round trip per message and in write-behind mode.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RedisStoreBenchmark {
+
+  @Param({"false", "true"})
+  public String writeBehind;
+
+  private RespStandIn standIn;
+  private RedisGCMMessageStoreImpl store;
+  private final String regId = "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx1rZLk6a9nB1vM7sFbdP5TWbEnVJ5nDkOoO1tRRNP5pq0S6fZ2QKUjG8CtQl";
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    standIn = new RespStandIn();
+    Config config = new Config();
+    config.setProperty("message.store.enabled", "true");
+    config.setProperty("redis.host", "127.0.0.1");
+    config.setProperty("redis.port", Integer.toString(standIn.getPort()));
+    config.setProperty("redis.writebehind.enabled", writeBehind);
+    store = new RedisGCMMessageStoreImpl(config);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    store.shutdown();
+    standIn.close();
+  }
+
+  @Benchmark
+  public boolean storeMessage() {
+    return store.storeMessage(regId, GCMMessageParseBenchmark.PAYLOAD);
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback stand-in for Redis: accepts RESP commands and answers every one with :1,
+ * which is what LPUSH returns. Enough for measuring the client side of storeMessage
+ * without a Redis server.
+ */
+public class RespStandIn implements Runnable {
+  private static final byte[] REPLY = ":1\r\n".getBytes(Strings.UTF_8);
+
+  private final ServerSocket serverSocket;
+  private final AtomicLong commands = new AtomicLong();
+
+  public RespStandIn() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this, "resp-stand-in");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  public long getCommandCount() {
+    return commands.get();
+  }
+
+  public void close() throws IOException {
+    serverSocket.close();
+  }
+
+  @Override
+  public void run() {
+    while (!serverSocket.isClosed()) {
+      try {
+        final Socket socket = serverSocket.accept();
+        Thread connection = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            serve(socket);
+          }
+        }, "resp-stand-in-connection");
+        connection.setDaemon(true);
+        connection.start();
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket;
+         InputStream in = new BufferedInputStream(s.getInputStream(), 1 << 16);
+         OutputStream out = new BufferedOutputStream(s.getOutputStream(), 1 << 16)) {
+      for (;;) {
+        if (in.read() != '*') {
+          return;
+        }
+        int arguments = readNumber(in);
+        for (int i = 0; i < arguments; i++) {
+          in.read(); // '$'
+          int length = readNumber(in);
+          skip(in, length + 2);
+        }
+        commands.incrementAndGet();
+        out.write(REPLY);
+        // answer a pipeline in one write
+        if (in.available() == 0) {
+          out.flush();
+        }
+      }
+    } catch (IOException e) {
+      // connection closed
+    }
+  }
+
+  private static int readNumber(InputStream in) throws IOException {
+    int value = 0;
+    for (;;) {
+      int c = in.read();
+      if (c == '\r') {
+        in.read();
+        return value;
+      }
+      if (c < 0) {
+        throw new IOException("end of stream");
+      }
+      value = value * 10 + (c - '0');
+    }
+  }
+
+  private static void skip(InputStream in, long bytes) throws IOException {
+    while (bytes > 0) {
+      long skipped = in.skip(bytes);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new IOException("end of stream");
+        }
+        skipped = 1;
+      }
+      bytes -= skipped;
+    }
+  }
+}
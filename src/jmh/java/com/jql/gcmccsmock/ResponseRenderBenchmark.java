@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.stanza.StanzaBuilder;
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Delivery receipt rendering: HashMap + JSONValue + builders vs the precompiled template.
+ * Add -prof gc to compare the allocation per response as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseRenderBenchmark {
+
+  private final String regId = "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx1rZLk6a9nB1vM7sFbdP5TWbEnVJ5nDkOoO1tRRNP5pq0S6fZ2QKUjG8CtQl";
+  private final String messageId = "m-1366082849205";
+
+  @Benchmark
+  public Stanza mapAndBuilders() {
+    Map<String, Object> message = new HashMap<>();
+    message.put(GCMMessageHandler.JSON_MESSAGE_TYPE, GCMMessageHandler.JSON_RECEIPT);
+    message.put(GCMMessageHandler.JSON_FROM, "gcm.googleapis.com");
+    message.put(GCMMessageHandler.JSON_CATEGORY, "com.itsoninc.client");
+    message.put(GCMMessageHandler.JSON_MESSAGE_ID, "dr2:" + messageId);
+    Map<String, Object> data = new HashMap<>();
+    data.put(GCMMessageHandler.JSON_MESSAGE_STATUS, GCMMessageHandler.JSON_MESSAGE_STATUS_SENT_TO_DEVICE);
+    data.put(GCMMessageHandler.JSON_ORIGINAL_MESSAGE_ID, messageId);
+    data.put(GCMMessageHandler.JSON_DEVICE_REG_ID, regId);
+    data.put(GCMMessageHandler.JSON_SENT_TIMESTAMP, Long.toString(System.currentTimeMillis()));
+    message.put("data", data);
+    String payload = JSONValue.toJSONString(message);
+
+    StanzaBuilder builder = new StanzaBuilder("message");
+    builder.addAttribute("id", "");
+    GCMMessage.Builder gcmMessageBuilder = new GCMMessage.Builder();
+    gcmMessageBuilder.addText(payload);
+    builder.addPreparedElement(gcmMessageBuilder.build());
+    return builder.build();
+  }
+
+  @Benchmark
+  public Stanza template() {
+    String payload = ResponseRenderer.RECEIPT.render(regId, messageId, System.currentTimeMillis());
+    return ResponseRenderer.toStanza(null, payload);
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One Redis instance of the cluster state, holding the keys of the regIds that hash to it.
+ *
+ * Callers submit requests to a bounded queue and wait for the answer, or do not wait when
+ * only the write matters. A dedicated thread
+ * drains whatever has queued up, up to a batch size, and sends it as one pipelined round
+ * trip, so concurrent messages share the cross-node traffic.
+ */
+class ClusterShard implements Runnable {
+  final Logger logger = LoggerFactory.getLogger(ClusterShard.class);
+
+  enum Op {
+    RECORD_ID,      // SET key 1 NX PX ttl, RPUSH feed value, PEXPIRE feed feedTtl; "OK" if key was new
+    EVAL_RATE       // the token bucket script; the number of tokens granted
+  }
+
+  private static final long POLL_INTERVAL_MS = 100;
+  private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+  private final String name;
+  private final JedisPool pool;
+  private final String rateScript;
+  private volatile String rateScriptSha;
+  private final BlockingQueue<Request> queue;
+  private final int batchSize;
+  private final AtomicBoolean keepRunning = new AtomicBoolean(true);
+  private final Thread thread;
+
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  ClusterShard(String hostAndPort, String rateScript, int queueCapacity, int batchSize) {
+    int colon = hostAndPort.lastIndexOf(':');
+    if (colon <= 0) {
+      throw new IllegalArgumentException("expected HOST:PORT in cluster.redis.hosts: " + hostAndPort);
+    }
+    this.name = hostAndPort;
+    this.pool = new JedisPool(new JedisPoolConfig(), hostAndPort.substring(0, colon),
+        Integer.parseInt(hostAndPort.substring(colon + 1)));
+    this.rateScript = rateScript;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.batchSize = batchSize;
+    this.thread = new Thread(this, "cluster-shard-" + hostAndPort);
+    this.thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  /**
+   * @return the request to wait on; it fails right away if the queue is full
+   */
+  Request submit(Op op, String key, String... args) {
+    Request request = new Request(op, key, args);
+    if (!queue.offer(request)) {
+      request.complete(null, true);
+    }
+    return request;
+  }
+
+  /**
+   * run a command outside the batches, for the rare writes and the state sync
+   */
+  Jedis getResource() {
+    return pool.getResource();
+  }
+
+  String getName() {
+    return name;
+  }
+
+  long getBatchCount() {
+    return batches.get();
+  }
+
+  long getRequestCount() {
+    return requests.get();
+  }
+
+  long getFailureCount() {
+    return failures.get();
+  }
+
+  void shutdown() {
+    keepRunning.set(false);
+    try {
+      thread.join(SHUTDOWN_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    pool.destroy();
+  }
+
+  @Override
+  public void run() {
+    List<Request> batch = new ArrayList<>(batchSize);
+    List<Response<String>> responses = new ArrayList<>(batchSize);
+    while (keepRunning.get()) {
+      try {
+        Request first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        send(batch, responses);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        long before = failures.getAndAdd(batch.size());
+        if (before == 0 || before / 10000 != (before + batch.size()) / 10000) {
+          logger.warn("cluster shard {} unavailable, falling back to local decisions. failed so far: {}, cause: {}",
+              name, before + batch.size(), e.toString());
+        }
+        for (Request request : batch) {
+          request.complete(null, true);
+        }
+      } finally {
+        batch.clear();
+        responses.clear();
+      }
+    }
+  }
+
+  private void send(List<Request> batch, List<Response<String>> responses) {
+    try (Jedis jedis = pool.getResource()) {
+      if (rateScriptSha == null) {
+        rateScriptSha = jedis.scriptLoad(rateScript);
+      }
+      Pipeline pipeline = jedis.pipelined();
+      for (Request request : batch) {
+        switch (request.op) {
+          case RECORD_ID:
+            responses.add(pipeline.set(request.key, "1", "NX", "PX", Integer.parseInt(request.args[0])));
+            pipeline.rpush(request.args[1], request.args[2]);
+            pipeline.pexpire(request.args[1], Long.parseLong(request.args[3]));
+            break;
+          default:
+            responses.add(pipeline.evalsha(rateScriptSha, 1, withKey(request)));
+        }
+      }
+      pipeline.sync();
+    }
+    batches.incrementAndGet();
+    requests.addAndGet(batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      try {
+        batch.get(i).complete(responses.get(i).get(), false);
+      } catch (JedisDataException e) {
+        // e.g. NOSCRIPT after a Redis restart; load the script again with the next batch
+        rateScriptSha = null;
+        failures.incrementAndGet();
+        batch.get(i).complete(null, true);
+      }
+    }
+  }
+
+  private static String[] withKey(Request request) {
+    String[] keyAndArgs = new String[request.args.length + 1];
+    keyAndArgs[0] = request.key;
+    System.arraycopy(request.args, 0, keyAndArgs, 1, request.args.length);
+    return keyAndArgs;
+  }
+
+  static final class Request {
+    final Op op;
+    final String key;
+    final String[] args;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile String result;
+    private volatile boolean failed;
+
+    Request(Op op, String key, String[] args) {
+      this.op = op;
+      this.key = key;
+      this.args = args;
+    }
+
+    void complete(String result, boolean failed) {
+      if (done.getCount() == 0) {
+        return;
+      }
+      this.result = result;
+      this.failed = failed;
+      done.countDown();
+    }
+
+    /**
+     * @return false if the shard did not answer in time or failed
+     */
+    boolean await(long timeoutNanos) {
+      try {
+        return done.await(timeoutNanos, TimeUnit.NANOSECONDS) && !failed;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    /**
+     * @return the reply; null for a nil reply
+     */
+    String getResult() {
+      return result;
+    }
+  }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * State shared by several mock nodes behind a load balancer, kept in Redis.
+ *
+ * The keys are sharded over cluster.redis.hosts by regId hash, and each node keeps what it
+ * can locally:
+ * <pre>
+ * device rules    PREFIX:devices hash of regId to a rule action, e.g. "nack DEVICE_UNREGISTERED".
+ *                 Every node holds a full copy and reloads a shard when its PREFIX:devices:version
+ *                 changes, so matching never leaves the node. They win over the rules file.
+ * rate budgets    PREFIX:rate:REG_ID token bucket, updated by a script. A node takes up to
+ *                 cluster.rate.lease tokens at a time and spends them locally for cluster.lease.ms.
+ * duplicate ids   PREFIX:dup:SENDER:MESSAGE_ID set if absent for the duplicate window, for the
+ *                 message_ids not already caught by the node's own DuplicateDetector. Every id is
+ *                 recorded without waiting and its hash appended to the per-second list
+ *                 PREFIX:dupfeed:EPOCH_SECOND, which each node tails every
+ *                 cluster.duplicate.sync.interval.ms into a local RotatingBloomFilter. Only an id
+ *                 the filter has seen waits for its SET NX reply; every other id is decided
+ *                 locally. A retry that reaches another node before that node tailed the feed
+ *                 is not caught.
+ * </pre>
+ * Requests to a shard are batched into one pipelined round trip (see ClusterShard). A shard that
+ * does not answer within cluster.timeout.ms is counted as a fallback and the node decides alone.
+ */
+@Singleton
+public class ClusterState implements ClusterStateMXBean, Runnable {
+  final Logger logger = LoggerFactory.getLogger(ClusterState.class);
+
+  // refill, take up to the lease, keep the fraction; replies with a string, pipelined evals expect one
+  private static final String RATE_SCRIPT =
+      "local rate, burst, now = tonumber(ARGV[1]), tonumber(ARGV[2]), tonumber(ARGV[3])\n"
+          + "local state = redis.call('HMGET', KEYS[1], 't', 'ts')\n"
+          + "local tokens, ts = tonumber(state[1]), tonumber(state[2])\n"
+          + "if tokens == nil then tokens = burst; ts = now end\n"
+          + "if now > ts then tokens = math.min(burst, tokens + (now - ts) * rate); ts = now end\n"
+          + "local granted = math.min(tonumber(ARGV[4]), math.floor(tokens))\n"
+          + "redis.call('HMSET', KEYS[1], 't', tostring(tokens - granted), 'ts', tostring(ts))\n"
+          + "redis.call('PEXPIRE', KEYS[1], ARGV[5])\n"
+          + "return tostring(granted)\n";
+  // a feed second is tailed for this long after it ends; its list is kept a while longer
+  private static final int FEED_LOOKBACK_SEC = 5;
+  private static final String FEED_TTL_MS = "15000";
+
+  private final boolean enabled;
+  private final DeviceRateLimiter deviceRateLimiter;
+  private ClusterShard[] shards;
+  private String prefix;
+  private long timeoutNanos;
+  private long syncIntervalMs;
+  private int maxCacheEntries;
+
+  // rate budgets
+  private String ratePerMs;
+  private String burst;
+  private String rateIdleMs;
+  private int leaseSize;
+  private long leaseNanos;
+  private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+  private String duplicateWindowMs;
+  private long duplicateSyncIntervalMs;
+  // ids recorded by any node, tailed from the shards' feeds
+  private RotatingBloomFilter clusterIds;
+  // per shard, the entries already read of each feed second; touched by the feed thread only
+  private Map<Long, Long>[] feedOffsets;
+  private Thread feedThread;
+
+  // device rules of each shard, replaced as a whole on every reload
+  private AtomicReferenceArray<Map<String, ResponseRule>> deviceRules;
+  private long[] deviceRuleVersions;
+  private Thread syncThread;
+  private final AtomicBoolean keepRunning = new AtomicBoolean(true);
+
+  private final AtomicLong fallbacks = new AtomicLong();
+  private final AtomicLong leasedRateDecisions = new AtomicLong();
+  private final AtomicLong sharedRateDecisions = new AtomicLong();
+  private final AtomicLong rateLimited = new AtomicLong();
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong duplicateChecks = new AtomicLong();
+  private final AtomicLong feedEntries = new AtomicLong();
+  private final AtomicLong deviceRuleSyncs = new AtomicLong();
+
+  @Inject
+  public ClusterState(Config config, DeviceRateLimiter deviceRateLimiter) {
+    this.deviceRateLimiter = deviceRateLimiter;
+    this.enabled = Boolean.parseBoolean(config.getProperty("cluster.enabled", "false"));
+    if (!enabled) {
+      return;
+    }
+    String hosts = config.getProperty("cluster.redis.hosts", "").trim();
+    if (hosts.isEmpty()) {
+      hosts = config.getProperty("redis.host", "localhost") + ":" + config.getProperty("redis.port", "6379");
+    }
+    this.prefix = config.getProperty("cluster.key.prefix", "gcmmock");
+    int queueCapacity = Integer.parseInt(config.getProperty("cluster.queue.capacity", "10000"));
+    int batchSize = Integer.parseInt(config.getProperty("cluster.batch.size", "256"));
+    long timeoutMs = Long.parseLong(config.getProperty("cluster.timeout.ms", "50"));
+    this.syncIntervalMs = Long.parseLong(config.getProperty("cluster.sync.interval.ms", "1000"));
+    this.maxCacheEntries = Integer.parseInt(config.getProperty("cluster.cache.max.entries", "100000"));
+    this.leaseSize = Integer.parseInt(config.getProperty("cluster.rate.lease", "4"));
+    long leaseMs = Long.parseLong(config.getProperty("cluster.lease.ms", "1000"));
+    if (queueCapacity <= 0 || batchSize <= 0 || timeoutMs <= 0 || syncIntervalMs <= 0 || maxCacheEntries <= 0
+        || leaseSize <= 0 || leaseMs <= 0) {
+      throw new IllegalArgumentException("invalid cluster settings");
+    }
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMs);
+
+    // the same budgets and window as the local checks
+    double ratePerSecond = Double.parseDouble(config.getProperty("rate.limit.per.sec", "1"));
+    this.ratePerMs = Double.toString(ratePerSecond / 1000);
+    this.burst = config.getProperty("rate.limit.burst", "20");
+    this.rateIdleMs = Long.toString(TimeUnit.SECONDS.toMillis(
+        Long.parseLong(config.getProperty("rate.limit.idle.sec", "60"))));
+    long duplicateWindowSec = Long.parseLong(config.getProperty("duplicate.window.sec", "60"));
+    this.duplicateWindowMs = Long.toString(TimeUnit.SECONDS.toMillis(duplicateWindowSec));
+    this.duplicateSyncIntervalMs = Long.parseLong(config.getProperty("cluster.duplicate.sync.interval.ms", "100"));
+    long duplicateWindowIds = Long.parseLong(config.getProperty("cluster.duplicate.window.ids", "1000000"));
+    double falsePositiveRate = Double.parseDouble(config.getProperty("duplicate.false.positive.rate", "0.001"));
+    if (duplicateSyncIntervalMs <= 0 || duplicateWindowIds <= 0) {
+      throw new IllegalArgumentException("invalid cluster.duplicate settings");
+    }
+    this.clusterIds = new RotatingBloomFilter(TimeUnit.SECONDS.toNanos(duplicateWindowSec), duplicateWindowIds,
+        falsePositiveRate, System.nanoTime());
+
+    String[] hostList = hosts.split(MockGCMXmppServer.REGEX_COMMA);
+    this.shards = new ClusterShard[hostList.length];
+    this.deviceRules = new AtomicReferenceArray<>(hostList.length);
+    this.deviceRuleVersions = new long[hostList.length];
+    this.feedOffsets = newFeedOffsets(hostList.length);
+    for (int i = 0; i < hostList.length; i++) {
+      shards[i] = new ClusterShard(hostList[i], RATE_SCRIPT, queueCapacity, batchSize);
+      shards[i].start();
+      deviceRules.set(i, Collections.<String, ResponseRule>emptyMap());
+      deviceRuleVersions[i] = -1;
+    }
+    syncDeviceRules();
+    syncThread = new Thread(this, "cluster-sync");
+    syncThread.setDaemon(true);
+    syncThread.start();
+    feedThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (keepRunning.get()) {
+          try {
+            Thread.sleep(duplicateSyncIntervalMs);
+          } catch (InterruptedException e) {
+            return;
+          }
+          tailDuplicateFeeds();
+        }
+      }
+    }, "cluster-duplicates");
+    feedThread.setDaemon(true);
+    feedThread.start();
+    logger.info("cluster mode: {} shard(s) {}, key prefix {}", shards.length, hosts, prefix);
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("com.jql.gcmccsmock:type=ClusterState"));
+    } catch (Exception e) {
+      logger.warn("failed to register the cluster state MBean", e);
+    }
+  }
+
+  /**
+   * @param regId
+   * @return the device rule set for regId across the cluster, or null
+   */
+  public ResponseRule matchDeviceRule(String regId) {
+    return deviceRules.get(shardIndex(regId)).get(regId);
+  }
+
+  /**
+   * take a token from regId's shared budget, from a local lease when there is one
+   *
+   * @param regId
+   * @return false if the device is over its rate
+   */
+  public boolean tryAcquire(String regId) {
+    long now = System.nanoTime();
+    Lease lease = leases.get(regId);
+    if (lease != null && lease.expiresNanos - now > 0 && lease.tokens.getAndDecrement() > 0) {
+      leasedRateDecisions.incrementAndGet();
+      return true;
+    }
+    ClusterShard.Request request = shards[shardIndex(regId)].submit(ClusterShard.Op.EVAL_RATE,
+        prefix + ":rate:" + regId, ratePerMs, burst, Long.toString(System.currentTimeMillis()),
+        Integer.toString(leaseSize), rateIdleMs);
+    if (!request.await(timeoutNanos)) {
+      fallbacks.incrementAndGet();
+      return deviceRateLimiter.tryAcquire(regId);
+    }
+    sharedRateDecisions.incrementAndGet();
+    int granted = Integer.parseInt(request.getResult());
+    if (granted == 0) {
+      rateLimited.incrementAndGet();
+      return false;
+    }
+    if (granted > 1 && makeRoom(leases)) {
+      leases.put(regId, new Lease(granted - 1, now + leaseNanos));
+    }
+    return true;
+  }
+
+  /**
+   * record a message_id across the cluster
+   *
+   * @param sender the provider's sender id; message_ids are unique per sender
+   * @param regId shards the id with the rest of the device's state
+   * @param messageId
+   * @return true if a node has seen the id within the duplicate window
+   */
+  public boolean isDuplicate(String sender, String regId, String messageId) {
+    String id = sender + ":" + messageId;
+    long hash = Strings.mix(Strings.hash(id));
+    ClusterShard.Request request = shards[shardIndex(regId)].submit(ClusterShard.Op.RECORD_ID,
+        prefix + ":dup:" + id, duplicateWindowMs, feedKey(System.currentTimeMillis() / 1000), Long.toString(hash),
+        FEED_TTL_MS);
+    if (!clusterIds.mightContain(hash, Strings.mix(hash) | 1, System.nanoTime())) {
+      // no node recorded it as far as this node knows; the record goes out without waiting
+      return false;
+    }
+    duplicateChecks.incrementAndGet();
+    if (!request.await(timeoutNanos)) {
+      fallbacks.incrementAndGet();
+      return false;
+    }
+    if (request.getResult() == null) {
+      duplicates.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  public void shutdown() {
+    if (!enabled) {
+      return;
+    }
+    keepRunning.set(false);
+    syncThread.interrupt();
+    feedThread.interrupt();
+    for (ClusterShard shard : shards) {
+      shard.shutdown();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (keepRunning.get()) {
+      try {
+        Thread.sleep(syncIntervalMs);
+      } catch (InterruptedException e) {
+        return;
+      }
+      syncDeviceRules();
+    }
+  }
+
+  /**
+   * reload the device rules of the shards whose version changed
+   */
+  private synchronized void syncDeviceRules() {
+    for (int i = 0; i < shards.length; i++) {
+      try (Jedis jedis = shards[i].getResource()) {
+        String versionString = jedis.get(prefix + ":devices:version");
+        long version = versionString == null ? 0 : Long.parseLong(versionString);
+        if (version == deviceRuleVersions[i]) {
+          continue;
+        }
+        Map<String, ResponseRule> rules = new HashMap<>();
+        for (Map.Entry<String, String> entry : jedis.hgetAll(prefix + ":devices").entrySet()) {
+          try {
+            rules.put(entry.getKey(), ResponseRules.parseDeviceRule(entry.getKey(), entry.getValue()));
+          } catch (IllegalArgumentException e) {
+            logger.warn("ignoring device rule {} {}: {}", entry.getKey(), entry.getValue(), e.getMessage());
+          }
+        }
+        deviceRules.set(i, rules);
+        deviceRuleVersions[i] = version;
+        deviceRuleSyncs.incrementAndGet();
+        logger.info("loaded {} device rules from cluster shard {}, version {}", rules.size(), shards[i].getName(),
+            version);
+      } catch (Exception e) {
+        logger.warn("failed to sync device rules from cluster shard {}: {}", shards[i].getName(), e.toString());
+      }
+    }
+  }
+
+  /**
+   * add the ids appended to the shards' feeds since the last call to the local filter
+   */
+  private void tailDuplicateFeeds() {
+    long second = System.currentTimeMillis() / 1000;
+    long now = System.nanoTime();
+    List<Response<List<String>>> responses = new ArrayList<>(FEED_LOOKBACK_SEC + 1);
+    for (int i = 0; i < shards.length; i++) {
+      Map<Long, Long> offsets = feedOffsets[i];
+      try (Jedis jedis = shards[i].getResource()) {
+        // the seconds before this one too, for nodes whose clocks lag or whose records were still queued
+        Pipeline pipeline = jedis.pipelined();
+        for (long s = second - FEED_LOOKBACK_SEC; s <= second; s++) {
+          Long offset = offsets.get(s);
+          responses.add(pipeline.lrange(feedKey(s), offset == null ? 0 : offset, -1));
+        }
+        pipeline.sync();
+        for (int k = 0; k < responses.size(); k++) {
+          List<String> hashes = responses.get(k).get();
+          if (hashes.isEmpty()) {
+            continue;
+          }
+          long s = second - FEED_LOOKBACK_SEC + k;
+          Long offset = offsets.get(s);
+          offsets.put(s, (offset == null ? 0 : offset) + hashes.size());
+          for (String value : hashes) {
+            long hash = Long.parseLong(value);
+            clusterIds.add(hash, Strings.mix(hash) | 1, now);
+          }
+          feedEntries.addAndGet(hashes.size());
+        }
+      } catch (Exception e) {
+        logger.warn("failed to read the duplicate feed of cluster shard {}: {}", shards[i].getName(), e.toString());
+      } finally {
+        responses.clear();
+      }
+      Iterator<Long> it = offsets.keySet().iterator();
+      while (it.hasNext()) {
+        if (it.next() < second - FEED_LOOKBACK_SEC) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private String feedKey(long second) {
+    return prefix + ":dupfeed:" + second;
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static Map<Long, Long>[] newFeedOffsets(int shardCount) {
+    Map<Long, Long>[] offsets = new Map[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      offsets[i] = new HashMap<>();
+    }
+    return offsets;
+  }
+
+  private int shardIndex(String regId) {
+    return (int) ((Strings.hash(regId) >>> 1) % shards.length);
+  }
+
+  /**
+   * drop expired entries if the cache is full
+   *
+   * @return false if there is still no room
+   */
+  private boolean makeRoom(ConcurrentMap<String, Lease> cache) {
+    if (cache.size() < maxCacheEntries) {
+      return true;
+    }
+    long now = System.nanoTime();
+    Iterator<Lease> it = cache.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().expiresNanos - now <= 0) {
+        it.remove();
+      }
+    }
+    return cache.size() < maxCacheEntries;
+  }
+
+  @Override
+  public void setDeviceRule(String regId, String spec) {
+    // reject what the nodes could not parse
+    ResponseRules.parseDeviceRule(regId, spec);
+    updateDeviceRule(regId, spec);
+  }
+
+  @Override
+  public void clearDeviceRule(String regId) {
+    updateDeviceRule(regId, null);
+  }
+
+  private void updateDeviceRule(String regId, String spec) {
+    if (!enabled) {
+      throw new IllegalStateException("cluster.enabled is off");
+    }
+    try (Jedis jedis = shards[shardIndex(regId)].getResource()) {
+      Pipeline pipeline = jedis.pipelined();
+      if (spec == null) {
+        pipeline.hdel(prefix + ":devices", regId);
+      } else {
+        pipeline.hset(prefix + ":devices", regId, spec.trim());
+      }
+      pipeline.incr(prefix + ":devices:version");
+      pipeline.sync();
+    }
+    syncDeviceRules();
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public String[] getShards() {
+    if (!enabled) {
+      return new String[0];
+    }
+    String[] names = new String[shards.length];
+    for (int i = 0; i < shards.length; i++) {
+      names[i] = shards[i].getName();
+    }
+    return names;
+  }
+
+  @Override
+  public long getBatchCount() {
+    long count = 0;
+    for (ClusterShard shard : shards) {
+      count += shard.getBatchCount();
+    }
+    return count;
+  }
+
+  @Override
+  public long getRequestCount() {
+    long count = 0;
+    for (ClusterShard shard : shards) {
+      count += shard.getRequestCount();
+    }
+    return count;
+  }
+
+  @Override
+  public long getFailureCount() {
+    long count = 0;
+    for (ClusterShard shard : shards) {
+      count += shard.getFailureCount();
+    }
+    return count;
+  }
+
+  @Override
+  public double getAverageBatchSize() {
+    long batches = getBatchCount();
+    return batches == 0 ? 0 : (double) getRequestCount() / batches;
+  }
+
+  @Override
+  public long getFallbackCount() {
+    return fallbacks.get();
+  }
+
+  @Override
+  public long getLeasedRateDecisions() {
+    return leasedRateDecisions.get();
+  }
+
+  @Override
+  public long getSharedRateDecisions() {
+    return sharedRateDecisions.get();
+  }
+
+  @Override
+  public long getRateLimitedCount() {
+    return rateLimited.get();
+  }
+
+  @Override
+  public long getDuplicateCount() {
+    return duplicates.get();
+  }
+
+  @Override
+  public long getDuplicateCheckCount() {
+    return duplicateChecks.get();
+  }
+
+  @Override
+  public long getDuplicateFeedEntries() {
+    return feedEntries.get();
+  }
+
+  @Override
+  public double getDuplicateFilterFalsePositiveRate() {
+    return enabled ? clusterIds.estimatedFalsePositiveRate(System.nanoTime()) : 0;
+  }
+
+  @Override
+  public int getDeviceRuleCount() {
+    int count = 0;
+    for (int i = 0; i < deviceRules.length(); i++) {
+      count += deviceRules.get(i).size();
+    }
+    return count;
+  }
+
+  @Override
+  public long getDeviceRuleSyncs() {
+    return deviceRuleSyncs.get();
+  }
+
+  private static final class Lease {
+    final AtomicInteger tokens;
+    final long expiresNanos;
+
+    Lease(int tokens, long expiresNanos) {
+      this.tokens = new AtomicInteger(tokens);
+      this.expiresNanos = expiresNanos;
+    }
+  }
+}
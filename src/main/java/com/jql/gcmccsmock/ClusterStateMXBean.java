@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+/**
+ * JMX view of the state shared by the nodes of a cluster
+ */
+public interface ClusterStateMXBean {
+  boolean isEnabled();
+  String[] getShards();
+  /**
+   * @return pipelined round trips to the shards
+   */
+  long getBatchCount();
+  long getRequestCount();
+  /**
+   * @return requests sent to a shard that was unreachable or answered with an error
+   */
+  long getFailureCount();
+  double getAverageBatchSize();
+  /**
+   * @return decisions taken locally because a shard did not answer in time or failed
+   */
+  long getFallbackCount();
+  /**
+   * @return messages let through on a token leased earlier, without a round trip
+   */
+  long getLeasedRateDecisions();
+  long getSharedRateDecisions();
+  long getRateLimitedCount();
+  long getDuplicateCount();
+  /**
+   * @return message_ids the local filter had seen on some node, which waited for a round trip
+   */
+  long getDuplicateCheckCount();
+  /**
+   * @return id hashes read from the shards' duplicate feeds
+   */
+  long getDuplicateFeedEntries();
+  double getDuplicateFilterFalsePositiveRate();
+  int getDeviceRuleCount();
+  long getDeviceRuleSyncs();
+
+  /**
+   * set the rule of one device for every node, e.g. "nack DEVICE_UNREGISTERED" or "drop"
+   */
+  void setDeviceRule(String regId, String spec);
+  void clearDeviceRule(String regId);
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Distribution of a response delay, in milliseconds.
+ *
+ * Sampling does not allocate: every distribution is an inverse CDF over uniforms
+ * drawn from a DelayRandom.
+ */
+public abstract class DelayDistribution {
+
+  /**
+   * @param random
+   * @return the delay in milliseconds, >= 0
+   */
+  public abstract double sample(DelayRandom random);
+
+  /**
+   * Build the distribution configured under prefix, e.g. delay.ack:
+   * <pre>
+   * PREFIX.distribution = fixed | uniform | lognormal | pareto | empirical
+   * fixed:     PREFIX.ms
+   * uniform:   PREFIX.min.ms, PREFIX.max.ms
+   * lognormal: PREFIX.median.ms, PREFIX.sigma
+   * pareto:    PREFIX.scale.ms (the minimum), PREFIX.shape
+   * empirical: PREFIX.file, lines of "percentile millis", e.g. "99.9 1200"
+   * </pre>
+   *
+   * @param config
+   * @param prefix
+   * @param defaultSpec the distribution used when PREFIX.distribution is not set
+   * @return
+   */
+  public static DelayDistribution fromConfig(Config config, String prefix, DelayDistribution defaultSpec) {
+    return fromConfig(config, prefix, "ms", defaultSpec);
+  }
+
+  /**
+   * Same as fromConfig(config, prefix, defaultSpec) for a quantity other than a delay,
+   * e.g. unit "bytes" reads PREFIX.min.bytes and PREFIX.max.bytes for a uniform size
+   *
+   * @param unit the key suffix of the values
+   */
+  public static DelayDistribution fromConfig(Config config, String prefix, String unit, DelayDistribution defaultSpec) {
+    String type = config.getProperty(prefix + ".distribution");
+    if (type == null) {
+      return defaultSpec;
+    }
+    switch (type.trim().toLowerCase()) {
+      case "fixed":
+        return new Fixed(getDouble(config, prefix + "." + unit));
+      case "uniform":
+        return new Uniform(getDouble(config, prefix + ".min." + unit), getDouble(config, prefix + ".max." + unit));
+      case "lognormal":
+        return new LogNormal(getDouble(config, prefix + ".median." + unit), getDouble(config, prefix + ".sigma"));
+      case "pareto":
+        return new Pareto(getDouble(config, prefix + ".scale." + unit), getDouble(config, prefix + ".shape"));
+      case "empirical":
+        String file = config.getProperty(prefix + ".file");
+        if (file == null) {
+          throw new IllegalArgumentException("missing " + prefix + ".file");
+        }
+        try {
+          return Empirical.load(file);
+        } catch (IOException e) {
+          throw new IllegalArgumentException("cannot read " + prefix + ".file: " + file, e);
+        }
+      default:
+        throw new IllegalArgumentException("unknown " + prefix + ".distribution: " + type);
+    }
+  }
+
+  private static double getDouble(Config config, String key) {
+    String value = config.getProperty(key);
+    if (value == null) {
+      throw new IllegalArgumentException("missing " + key);
+    }
+    return Double.parseDouble(value.trim());
+  }
+
+  public static final class Fixed extends DelayDistribution {
+    private final double ms;
+
+    public Fixed(double ms) {
+      if (ms < 0) {
+        throw new IllegalArgumentException("invalid fixed delay: " + ms);
+      }
+      this.ms = ms;
+    }
+
+    @Override
+    public double sample(DelayRandom random) {
+      return ms;
+    }
+
+    @Override
+    public String toString() {
+      return "fixed(" + ms + "ms)";
+    }
+  }
+
+  public static final class Uniform extends DelayDistribution {
+    private final double min;
+    private final double range;
+
+    public Uniform(double min, double max) {
+      if (min < 0 || max < min) {
+        throw new IllegalArgumentException("invalid uniform delay range: " + min + ".." + max);
+      }
+      this.min = min;
+      this.range = max - min;
+    }
+
+    @Override
+    public double sample(DelayRandom random) {
+      return min + range * random.nextOpenDouble();
+    }
+
+    @Override
+    public String toString() {
+      return "uniform(" + min + "ms.." + (min + range) + "ms)";
+    }
+  }
+
+  public static final class LogNormal extends DelayDistribution {
+    private final double mu;
+    private final double sigma;
+
+    /**
+     * @param median exp(mu) of the underlying normal
+     * @param sigma standard deviation of the underlying normal, the tail weight
+     */
+    public LogNormal(double median, double sigma) {
+      if (median <= 0 || sigma < 0) {
+        throw new IllegalArgumentException("invalid lognormal delay: median=" + median + ", sigma=" + sigma);
+      }
+      this.mu = Math.log(median);
+      this.sigma = sigma;
+    }
+
+    @Override
+    public double sample(DelayRandom random) {
+      // Box-Muller; the second normal is dropped to stay stateless
+      double gaussian = Math.sqrt(-2 * Math.log(random.nextOpenDouble()))
+          * Math.cos(2 * Math.PI * random.nextOpenDouble());
+      return Math.exp(mu + sigma * gaussian);
+    }
+
+    @Override
+    public String toString() {
+      return "lognormal(median=" + Math.exp(mu) + "ms, sigma=" + sigma + ")";
+    }
+  }
+
+  public static final class Pareto extends DelayDistribution {
+    private final double scale;
+    private final double inverseShape;
+
+    /**
+     * @param scale the minimum delay
+     * @param shape the tail index, smaller is heavier
+     */
+    public Pareto(double scale, double shape) {
+      if (scale <= 0 || shape <= 0) {
+        throw new IllegalArgumentException("invalid pareto delay: scale=" + scale + ", shape=" + shape);
+      }
+      this.scale = scale;
+      this.inverseShape = 1 / shape;
+    }
+
+    @Override
+    public double sample(DelayRandom random) {
+      return scale / Math.pow(random.nextOpenDouble(), inverseShape);
+    }
+
+    @Override
+    public String toString() {
+      return "pareto(scale=" + scale + "ms, shape=" + (1 / inverseShape) + ")";
+    }
+  }
+
+  /**
+   * Piecewise linear inverse CDF through measured percentiles.
+   * Below the first percentile the delay is the first value, above the last it is the last value.
+   */
+  public static final class Empirical extends DelayDistribution {
+    private final double[] quantiles;
+    private final double[] values;
+
+    /**
+     * @param percentiles ascending, in [0, 100]
+     * @param values non-decreasing delays in milliseconds
+     */
+    public Empirical(double[] percentiles, double[] values) {
+      if (percentiles.length == 0 || percentiles.length != values.length) {
+        throw new IllegalArgumentException("empirical delay table needs matching percentiles and values");
+      }
+      this.quantiles = new double[percentiles.length];
+      for (int i = 0; i < percentiles.length; i++) {
+        if (percentiles[i] < 0 || percentiles[i] > 100 || values[i] < 0
+            || (i > 0 && (percentiles[i] <= percentiles[i - 1] || values[i] < values[i - 1]))) {
+          throw new IllegalArgumentException("invalid empirical delay table at row " + (i + 1));
+        }
+        quantiles[i] = percentiles[i] / 100;
+      }
+      this.values = values.clone();
+    }
+
+    /**
+     * @param file path, or a classpath resource when it has no '/' (like configFile)
+     */
+    public static Empirical load(String file) throws IOException {
+      List<double[]> rows = new ArrayList<>();
+      InputStream is = file.contains("/") ? new FileInputStream(file)
+          : Thread.currentThread().getContextClassLoader().getResourceAsStream(file);
+      if (is == null) {
+        throw new IOException("not found: " + file);
+      }
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, Strings.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (line.isEmpty() || line.startsWith("#")) {
+            continue;
+          }
+          String[] fields = line.split("[\\s,]+");
+          if (fields.length != 2) {
+            throw new IOException("expected 'percentile millis': " + line);
+          }
+          rows.add(new double[]{Double.parseDouble(fields[0]), Double.parseDouble(fields[1])});
+        }
+      }
+      double[] percentiles = new double[rows.size()];
+      double[] values = new double[rows.size()];
+      for (int i = 0; i < percentiles.length; i++) {
+        percentiles[i] = rows.get(i)[0];
+        values[i] = rows.get(i)[1];
+      }
+      return new Empirical(percentiles, values);
+    }
+
+    @Override
+    public double sample(DelayRandom random) {
+      double u = random.nextOpenDouble();
+      if (u <= quantiles[0]) {
+        return values[0];
+      }
+      int last = quantiles.length - 1;
+      if (u >= quantiles[last]) {
+        return values[last];
+      }
+      // first quantile >= u
+      int low = 1;
+      int high = last;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (quantiles[mid] < u) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      double fraction = (u - quantiles[low - 1]) / (quantiles[low] - quantiles[low - 1]);
+      return values[low - 1] + fraction * (values[low] - values[low - 1]);
+    }
+
+    @Override
+    public String toString() {
+      return "empirical(" + quantiles.length + " percentiles, p" + (quantiles[quantiles.length - 1] * 100)
+          + "=" + values[values.length - 1] + "ms)";
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delay distribution per response type, configured as delay.ack.*, delay.nack.*,
+ * delay.receipt.* and delay.control.* (see DelayDistribution.fromConfig), each optionally
+ * capped by delay.TYPE.cap.ms, one hour unless set. delay.seed makes the sequence of delays
+ * reproducible.
+ */
+@Singleton
+public class DelayProfiles {
+  final Logger logger = LoggerFactory.getLogger(DelayProfiles.class);
+
+  public enum ResponseType {
+    ACK("delay.ack", new DelayDistribution.Uniform(0, 1000)),
+    NACK("delay.nack", new DelayDistribution.Uniform(0, 1000)),
+    RECEIPT("delay.receipt", new DelayDistribution.Uniform(0, 2000)),
+    CONTROL("delay.control", new DelayDistribution.Fixed(500));
+
+    private final String prefix;
+    private final DelayDistribution defaultDistribution;
+
+    ResponseType(String prefix, DelayDistribution defaultDistribution) {
+      this.prefix = prefix;
+      this.defaultDistribution = defaultDistribution;
+    }
+  }
+
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+  // a heavy tail would otherwise hold relay slots for years or overflow nanoTime + delay
+  private static final String DEFAULT_CAP_MS = Long.toString(TimeUnit.HOURS.toMillis(1));
+  private static final double MAX_CAP_MS = TimeUnit.DAYS.toMillis(30);
+
+  private final DelayRandom random;
+  private final DelayDistribution[] distributions = new DelayDistribution[ResponseType.values().length];
+  private final double[] caps = new double[ResponseType.values().length];
+
+  @Inject
+  public DelayProfiles(Config config) {
+    String seed = config.getProperty("delay.seed", "").trim();
+    this.random = new DelayRandom(seed.isEmpty() ? System.nanoTime() ^ System.identityHashCode(this) : Long.parseLong(seed));
+    for (ResponseType type : ResponseType.values()) {
+      distributions[type.ordinal()] = DelayDistribution.fromConfig(config, type.prefix, type.defaultDistribution);
+      double cap = Double.parseDouble(config.getProperty(type.prefix + ".cap.ms", DEFAULT_CAP_MS));
+      if (!(cap >= 0 && cap <= MAX_CAP_MS)) {
+        throw new IllegalArgumentException("invalid " + type.prefix + ".cap.ms: " + cap
+            + ", must be between 0 and " + (long) MAX_CAP_MS);
+      }
+      caps[type.ordinal()] = cap;
+      logger.info("{} delay: {}, cap={}ms", type, distributions[type.ordinal()], caps[type.ordinal()]);
+    }
+  }
+
+  public DelayDistribution getDistribution(ResponseType type) {
+    return distributions[type.ordinal()];
+  }
+
+  /**
+   * draw the delay of a response
+   *
+   * @param type
+   * @return nanoseconds, 0 for an immediate response
+   */
+  public long sampleNanos(ResponseType type) {
+    double ms = Math.min(distributions[type.ordinal()].sample(random), caps[type.ordinal()]);
+    return Math.max(0, Math.round(ms * NANOS_PER_MILLI));
+  }
+}
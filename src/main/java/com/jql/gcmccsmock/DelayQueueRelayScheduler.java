@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * RelayScheduler backed by a single DelayQueue. Kept for comparison with the
+ * timing wheel (relay.scheduler=delayqueue).
+ */
+public class DelayQueueRelayScheduler implements RelayScheduler {
+  final Logger logger = LoggerFactory.getLogger(DelayQueueRelayScheduler.class);
+
+  private final DelayQueue<ScheduledJob> queue = new DelayQueue<>();
+  private final AtomicBoolean keepRunning = new AtomicBoolean(true);
+  private final JobDispatcher dispatcher;
+
+  public DelayQueueRelayScheduler(JobDispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+  }
+
+  @Override
+  public boolean schedule(ScheduledJob job) {
+    return queue.add(job);
+  }
+
+  @Override
+  public int size() {
+    return queue.size();
+  }
+
+  @Override
+  public void stop() {
+    keepRunning.set(false);
+    queue.clear();
+  }
+
+  @Override
+  public void run() {
+    while (keepRunning.get()) {
+      try {
+        dispatcher.dispatch(queue.take());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        logger.error("DelayQueueRelayScheduler.run() got exception: {}", e);
+        // ignore for now
+      }
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free, allocation-free random source for the response delays.
+ *
+ * A SplitMix64 sequence over a single CAS-advanced state. With a fixed seed the
+ * sequence of draws is the same on every run (ThreadLocalRandom cannot be seeded).
+ */
+public final class DelayRandom {
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+  private final AtomicLong state;
+
+  public DelayRandom(long seed) {
+    this.state = new AtomicLong(seed);
+  }
+
+  public long nextLong() {
+    long z = state.addAndGet(GOLDEN_GAMMA);
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * @return uniform in the open interval (0, 1), safe for log() and division
+   */
+  public double nextOpenDouble() {
+    return ((nextLong() >>> 11) + 0.5) * DOUBLE_UNIT;
+  }
+}
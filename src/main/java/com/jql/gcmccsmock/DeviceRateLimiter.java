@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-device token buckets, as CCS enforces with DEVICE_MESSAGE_RATE_EXCEEDED.
+ *
+ * Every bucket is packed into one long of a fixed open-addressing table, so the memory is
+ * bounded (8 bytes a slot) and every slot is updated with its own CAS:
+ * [16 bit regId fingerprint][28 bit last refill, ms][20 bit tokens, 1/16 units].
+ * A device probes a few slots from its hash and uses the one holding its fingerprint. Only
+ * when none does, it claims the first empty slot or one not used for rate.limit.idle.sec,
+ * which is how idle buckets are evicted. Two first-time callers may claim different slots;
+ * after a claim the other probes are checked again and the bucket nearest the hash wins.
+ * When every probed slot belongs to an active device, the message is let through and
+ * counted as untracked.
+ */
+@Singleton
+public class DeviceRateLimiter implements DeviceRateLimiterMXBean {
+  final Logger logger = LoggerFactory.getLogger(DeviceRateLimiter.class);
+
+  private static final int PROBES = 8;
+  private static final int TOKEN_BITS = 20;
+  private static final int TIME_BITS = 28;
+  private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+  private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+  private static final int FRACTION_BITS = 4;
+  private static final long ONE_TOKEN = 1L << FRACTION_BITS;
+  private static final int MAX_SLOTS = 1 << 30;
+  // results of take()
+  private static final int GRANTED = 1;
+  private static final int LIMITED = 0;
+  private static final int RETRY = -1;
+
+  private final boolean enabled;
+  private final double ratePerSecond;
+  private final int burst;
+  private final long idleMs;
+  private final double unitsPerMs;
+  private final long burstUnits;
+  private final AtomicLongArray slots;
+  private final int mask;
+  private final long startNanos = System.nanoTime();
+
+  private final AtomicLong allowed = new AtomicLong();
+  private final AtomicLong limited = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+  private final AtomicLong untracked = new AtomicLong();
+
+  @Inject
+  public DeviceRateLimiter(Config config) {
+    this.enabled = Boolean.parseBoolean(config.getProperty("rate.limit.enabled", "false"));
+    this.ratePerSecond = Double.parseDouble(config.getProperty("rate.limit.per.sec", "1"));
+    this.burst = Integer.parseInt(config.getProperty("rate.limit.burst", "20"));
+    long maxDevices = Long.parseLong(config.getProperty("rate.limit.max.devices", "1000000"));
+    long idleSec = Long.parseLong(config.getProperty("rate.limit.idle.sec", "60"));
+    if (ratePerSecond <= 0 || burst <= 0 || burst * ONE_TOKEN > TOKEN_MASK || idleSec <= 0) {
+      throw new IllegalArgumentException("invalid rate.limit settings");
+    }
+    if (maxDevices <= 0 || maxDevices > MAX_SLOTS / 2) {
+      throw new IllegalArgumentException("invalid rate.limit.max.devices: " + maxDevices
+          + ", must be between 1 and " + MAX_SLOTS / 2);
+    }
+    // a bucket idle long enough to refill completely carries no state, it is safe to evict
+    this.idleMs = Math.max(TimeUnit.SECONDS.toMillis(idleSec), (long) Math.ceil(burst * 1000 / ratePerSecond));
+    if (idleMs >= TIME_MASK) {
+      throw new IllegalArgumentException("rate.limit.idle.sec too long");
+    }
+    this.unitsPerMs = ratePerSecond * ONE_TOKEN / 1000;
+    this.burstUnits = burst * ONE_TOKEN;
+    // keep the table at most half full
+    int slotCount = (int) Math.min(MAX_SLOTS, Long.highestOneBit(maxDevices * 2 - 1) << 1);
+    this.slots = new AtomicLongArray(enabled ? slotCount : 1);
+    this.mask = slots.length() - 1;
+    if (enabled) {
+      logger.info("device rate limit: {}/s, burst {}, {} slots", ratePerSecond, burst, slotCount);
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+            new ObjectName("com.jql.gcmccsmock:type=DeviceRateLimiter"));
+      } catch (Exception e) {
+        logger.warn("failed to register the rate limiter MBean", e);
+      }
+    }
+  }
+
+  /**
+   * take a token from regId's bucket
+   *
+   * @param regId
+   * @return false if the device is over its rate
+   */
+  public boolean tryAcquire(String regId) {
+    long hash = Strings.hash(regId);
+    long fingerprint = (hash >>> 48) == 0 ? 1 : hash >>> 48;
+    int home = (int) (hash ^ (hash >>> 29)) & mask;
+    long now = (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)) & TIME_MASK;
+    retry:
+    for (;;) {
+      // the device's own bucket first, wherever it is among the probes
+      int free = -1;
+      for (int probe = 0; probe < PROBES; probe++) {
+        int index = (home + probe) & mask;
+        long state = slots.get(index);
+        if (state != 0 && fingerprintOf(state) == fingerprint) {
+          int result = take(index, state, fingerprint, now);
+          if (result == RETRY) {
+            continue retry;
+          }
+          return result == GRANTED;
+        }
+        if (free < 0 && (state == 0 || isIdle(state, now))) {
+          free = index;
+        }
+      }
+      if (free < 0) {
+        untracked.incrementAndGet();
+        return true;
+      }
+      long state = slots.get(free);
+      if ((state != 0 && !isIdle(state, now)) || fingerprintOf(state) == fingerprint) {
+        continue;
+      }
+      long update = pack(fingerprint, now, burstUnits - ONE_TOKEN);
+      if (!slots.compareAndSet(free, state, update)) {
+        continue;
+      }
+      if (state != 0) {
+        evicted.incrementAndGet();
+      }
+      if (hasEarlierBucket(home, free, fingerprint)) {
+        // a concurrent first call claimed a slot nearer the hash; give ours back and use that
+        slots.compareAndSet(free, update, 0);
+        continue;
+      }
+      allowed.incrementAndGet();
+      return true;
+    }
+  }
+
+  /**
+   * take a token from the device's bucket at index
+   *
+   * @return GRANTED, LIMITED, or RETRY if the slot was taken over by another device
+   */
+  private int take(int index, long state, long fingerprint, long now) {
+    for (;;) {
+      long elapsed = (now - timeOf(state)) & TIME_MASK;
+      long tokens;
+      long time;
+      if (elapsed > idleMs) {
+        // idle long enough to be full again
+        tokens = burstUnits;
+        time = now;
+      } else {
+        tokens = state & TOKEN_MASK;
+        time = timeOf(state);
+        long refill = (long) (elapsed * unitsPerMs);
+        if (tokens + refill >= burstUnits) {
+          tokens = burstUnits;
+          time = now;
+        } else if (refill > 0) {
+          // advance only by the time the whole units cover, the remainder counts towards the next
+          tokens += refill;
+          time = (time + (long) (refill / unitsPerMs)) & TIME_MASK;
+        }
+      }
+      boolean granted = tokens >= ONE_TOKEN;
+      if (granted) {
+        tokens -= ONE_TOKEN;
+      }
+      if (slots.compareAndSet(index, state, pack(fingerprint, time, tokens))) {
+        (granted ? allowed : limited).incrementAndGet();
+        return granted ? GRANTED : LIMITED;
+      }
+      state = slots.get(index);
+      if (state == 0 || fingerprintOf(state) != fingerprint) {
+        return RETRY;
+      }
+    }
+  }
+
+  private boolean hasEarlierBucket(int home, int claimed, long fingerprint) {
+    for (int index = home; index != claimed; index = (index + 1) & mask) {
+      long state = slots.get(index);
+      if (state != 0 && fingerprintOf(state) == fingerprint) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isIdle(long state, long now) {
+    return ((now - timeOf(state)) & TIME_MASK) > idleMs;
+  }
+
+  private static long fingerprintOf(long state) {
+    return state >>> (TIME_BITS + TOKEN_BITS);
+  }
+
+  private static long timeOf(long state) {
+    return (state >>> TOKEN_BITS) & TIME_MASK;
+  }
+
+  private static long pack(long fingerprint, long time, long tokens) {
+    return (fingerprint << (TIME_BITS + TOKEN_BITS)) | (time << TOKEN_BITS) | tokens;
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public double getRatePerSecond() {
+    return ratePerSecond;
+  }
+
+  @Override
+  public int getBurst() {
+    return burst;
+  }
+
+  @Override
+  public int getSlotCount() {
+    return slots.length();
+  }
+
+  @Override
+  public int getOccupiedSlots() {
+    int occupied = 0;
+    for (int i = 0; i < slots.length(); i++) {
+      if (slots.get(i) != 0) {
+        occupied++;
+      }
+    }
+    return occupied;
+  }
+
+  @Override
+  public long getAllowedCount() {
+    return allowed.get();
+  }
+
+  @Override
+  public long getLimitedCount() {
+    return limited.get();
+  }
+
+  @Override
+  public long getEvictedCount() {
+    return evicted.get();
+  }
+
+  @Override
+  public long getUntrackedCount() {
+    return untracked.get();
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+/**
+ * JMX view of the per-device rate limiter
+ */
+public interface DeviceRateLimiterMXBean {
+  boolean isEnabled();
+  double getRatePerSecond();
+  int getBurst();
+  int getSlotCount();
+  /**
+   * @return slots holding a bucket, counted by a scan
+   */
+  int getOccupiedSlots();
+  long getAllowedCount();
+  long getLimitedCount();
+  long getEvictedCount();
+  /**
+   * @return messages let through untracked because every probed slot was busy
+   */
+  long getUntrackedCount();
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.server.SessionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Detects a message_id repeated on the same connection within a sliding time window.
+ *
+ * Each connection has a RotatingBloomFilter of three generations, each covering half the
+ * window, so an id is remembered for one to one and a half windows.
+ * In front of the filter sits an exact set of the most recent ids: a hit there is a certain
+ * duplicate, and while the set still holds every id of the window a filter hit is known to be
+ * a false positive and is overruled. Only busy connections rely on the filter alone.
+ */
+@Singleton
+public class DuplicateDetector implements DuplicateDetectorMXBean {
+  final Logger logger = LoggerFactory.getLogger(DuplicateDetector.class);
+
+  private final boolean enabled;
+  private final long windowNanos;
+  private final long windowIds;
+  private final double falsePositiveBudget;
+  private final long filterBytes;
+  private final int exactIds;
+  private final String nackError;
+  private final ResponseTemplate nackTemplate;
+  private final ConcurrentMap<SessionContext, SessionFilter> sessions = new ConcurrentHashMap<>();
+  private final long startNanos = System.nanoTime();
+
+  private final AtomicLong checked = new AtomicLong();
+  private final AtomicLong exactDuplicates = new AtomicLong();
+  private final AtomicLong probableDuplicates = new AtomicLong();
+  private final AtomicLong falsePositivesAvoided = new AtomicLong();
+
+  @Inject
+  public DuplicateDetector(Config config) {
+    this.enabled = Boolean.parseBoolean(config.getProperty("duplicate.detection.enabled", "false"));
+    long windowSec = Long.parseLong(config.getProperty("duplicate.window.sec", "60"));
+    this.windowIds = Long.parseLong(config.getProperty("duplicate.window.ids", "100000"));
+    this.falsePositiveBudget = Double.parseDouble(config.getProperty("duplicate.false.positive.rate", "0.001"));
+    int exact = Integer.parseInt(config.getProperty("duplicate.exact.ids", "4096"));
+    this.nackError = config.getProperty("duplicate.nack.error", "DUPLICATE_MESSAGE_ID");
+    if (windowSec <= 0 || windowIds <= 0 || exact <= 0 || falsePositiveBudget <= 0 || falsePositiveBudget >= 1) {
+      throw new IllegalArgumentException("invalid duplicate.* settings");
+    }
+    this.windowNanos = TimeUnit.SECONDS.toNanos(windowSec);
+    RotatingBloomFilter sizing;
+    try {
+      sizing = new RotatingBloomFilter(windowNanos, windowIds, falsePositiveBudget, startNanos);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("duplicate.window.ids too large for duplicate.false.positive.rate");
+    }
+    this.filterBytes = sizing.getBytes();
+    this.exactIds = Integer.highestOneBit(exact - 1) << 1;
+    this.nackTemplate = ResponseRenderer.compileNack(nackError,
+        "Duplicate message_id within the last " + windowSec + " seconds");
+    if (enabled) {
+      logger.info("duplicate detection: window {}s, {} hashes, {} bytes per connection, false positive budget {}",
+          windowSec, sizing.getHashes(), getBytesPerSession(), falsePositiveBudget);
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+            new ObjectName("com.jql.gcmccsmock:type=DuplicateDetector"));
+      } catch (Exception e) {
+        logger.warn("failed to register the duplicate detector MBean", e);
+      }
+    }
+  }
+
+  /**
+   * record messageId for the session
+   *
+   * @param sessionContext
+   * @param messageId
+   * @return true if the session already sent messageId within the window
+   */
+  public boolean isDuplicate(SessionContext sessionContext, String messageId) {
+    SessionFilter filter = sessions.get(sessionContext);
+    if (filter == null) {
+      SessionFilter newFilter = new SessionFilter();
+      filter = sessions.putIfAbsent(sessionContext, newFilter);
+      if (filter == null) {
+        filter = newFilter;
+        // a new connection, forget the ones that are gone
+        removeClosedSessions();
+      }
+    }
+    checked.incrementAndGet();
+    return filter.check(messageId, System.nanoTime());
+  }
+
+  /**
+   * @return the nack for a duplicate, with ${regId} and ${messageId} left to fill in
+   */
+  public ResponseTemplate getNackTemplate() {
+    return nackTemplate;
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public long getWindowSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(windowNanos);
+  }
+
+  @Override
+  public int getSessionCount() {
+    return sessions.size();
+  }
+
+  @Override
+  public long getBytesPerSession() {
+    // filter bits, ring slots plus roughly 64 bytes of map entry per recent id
+    return filterBytes + (long) exactIds * (4 + 64);
+  }
+
+  @Override
+  public double getFalsePositiveBudget() {
+    return falsePositiveBudget;
+  }
+
+  @Override
+  public double getEstimatedFalsePositiveRate() {
+    double max = 0;
+    long now = System.nanoTime();
+    for (SessionFilter filter : sessions.values()) {
+      max = Math.max(max, filter.estimatedFalsePositiveRate(now));
+    }
+    return max;
+  }
+
+  @Override
+  public long getCheckedCount() {
+    return checked.get();
+  }
+
+  @Override
+  public long getExactDuplicateCount() {
+    return exactDuplicates.get();
+  }
+
+  @Override
+  public long getProbableDuplicateCount() {
+    return probableDuplicates.get();
+  }
+
+  @Override
+  public long getFalsePositivesAvoidedCount() {
+    return falsePositivesAvoided.get();
+  }
+
+  private void removeClosedSessions() {
+    Iterator<SessionContext> it = sessions.keySet().iterator();
+    while (it.hasNext()) {
+      SessionState state = it.next().getState();
+      if (state == SessionState.ENDED || state == SessionState.CLOSED) {
+        it.remove();
+      }
+    }
+  }
+
+  private static final class RecentId {
+    final String id;
+    final long nanos;
+
+    RecentId(String id, long nanos) {
+      this.id = id;
+      this.nanos = nanos;
+    }
+  }
+
+  private final class SessionFilter {
+    private final RotatingBloomFilter filter =
+        new RotatingBloomFilter(windowNanos, windowIds, falsePositiveBudget, startNanos);
+    private final ConcurrentMap<String, RecentId> recent = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<RecentId> ring = new AtomicReferenceArray<>(exactIds);
+    private final AtomicLong ringCursor = new AtomicLong();
+    // arrival time of the newest id pushed out of the ring
+    private final AtomicLong lastEvictedNanos;
+
+    SessionFilter() {
+      lastEvictedNanos = new AtomicLong(System.nanoTime() - windowNanos - 1);
+    }
+
+    boolean check(String messageId, long now) {
+      RecentId entry = new RecentId(messageId, now);
+      for (;;) {
+        RecentId previous = recent.putIfAbsent(messageId, entry);
+        if (previous == null) {
+          break;
+        }
+        if (now - previous.nanos <= windowNanos) {
+          exactDuplicates.incrementAndGet();
+          return true;
+        }
+        // seen before the window, the id is new again
+        recent.remove(messageId, previous);
+      }
+      RecentId evicted = ring.getAndSet((int) (ringCursor.getAndIncrement() & (exactIds - 1)), entry);
+      if (evicted != null) {
+        recent.remove(evicted.id, evicted);
+        raise(lastEvictedNanos, evicted.nanos);
+      }
+
+      long hash = Strings.mix(Strings.hash(messageId));
+      long hash2 = Strings.mix(hash) | 1;
+      boolean seen = filter.mightContain(hash, hash2, now);
+      filter.add(hash, hash2, now);
+      if (!seen) {
+        return false;
+      }
+      if (now - lastEvictedNanos.get() > windowNanos) {
+        // every id of the window is still in the recent set, and this one is not
+        falsePositivesAvoided.incrementAndGet();
+        return false;
+      }
+      probableDuplicates.incrementAndGet();
+      return true;
+    }
+
+    double estimatedFalsePositiveRate(long now) {
+      return filter.estimatedFalsePositiveRate(now);
+    }
+  }
+
+  private static void raise(AtomicLong value, long candidate) {
+    for (;;) {
+      long current = value.get();
+      if (candidate - current <= 0 || value.compareAndSet(current, candidate)) {
+        return;
+      }
+    }
+  }
+}
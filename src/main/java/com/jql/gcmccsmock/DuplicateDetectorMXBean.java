@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+/**
+ * JMX view of the duplicate message_id detector
+ */
+public interface DuplicateDetectorMXBean {
+  boolean isEnabled();
+  long getWindowSeconds();
+  int getSessionCount();
+  /**
+   * @return bytes of filter and recent-id ring allocated per connection
+   */
+  long getBytesPerSession();
+  /**
+   * @return the configured false-positive rate of the filter over a full window
+   */
+  double getFalsePositiveBudget();
+  /**
+   * @return the false-positive rate of the fullest connection's filter right now, from its fill
+   */
+  double getEstimatedFalsePositiveRate();
+  long getCheckedCount();
+  /**
+   * @return duplicates found in the exact recent-id set
+   */
+  long getExactDuplicateCount();
+  /**
+   * @return duplicates found by the filter alone, a share of them may be false positives
+   */
+  long getProbableDuplicateCount();
+  /**
+   * @return filter hits overruled because the recent-id set covered the whole window
+   */
+  long getFalsePositivesAvoidedCount();
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.server.SessionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CCS flow control: each connection may have at most a window of messages that
+ * have not been acked (or nacked) yet. A message is counted from the moment it is
+ * received until its ack/nack is relayed back to the provider.
+ */
+@Singleton
+public class FlowController implements FlowControlMXBean {
+  final Logger logger = LoggerFactory.getLogger(FlowController.class);
+
+  private static final String DEFAULT_WINDOW = "100";
+
+  private final boolean enabled;
+  private final int window;
+  private final String nackError;
+  private final ConcurrentMap<SessionContext, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong rejected = new AtomicLong();
+
+  @Inject
+  public FlowController(Config config) {
+    this.enabled = Boolean.parseBoolean(config.getProperty("flow.control.enabled", "false"));
+    this.window = Integer.parseInt(config.getProperty("flow.control.window", DEFAULT_WINDOW));
+    this.nackError = config.getProperty("flow.control.nack.error", "SERVICE_UNAVAILABLE");
+    if (window <= 0) {
+      throw new IllegalArgumentException("invalid flow.control.window: " + window);
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("com.jql.gcmccsmock:type=FlowControl"));
+    } catch (Exception e) {
+      logger.warn("failed to register the flow control MBean", e);
+    }
+  }
+
+  /**
+   * take a slot of the session's window
+   *
+   * @param sessionContext
+   * @return the session's in-flight counter, to be decremented when the ack/nack is relayed;
+   * null if the window is full
+   */
+  public AtomicInteger acquire(SessionContext sessionContext) {
+    AtomicInteger counter = inFlight.get(sessionContext);
+    if (counter == null) {
+      AtomicInteger newCounter = new AtomicInteger();
+      counter = inFlight.putIfAbsent(sessionContext, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+        // a new connection, forget the ones that are gone
+        removeClosedSessions();
+      }
+    }
+    for (;;) {
+      int current = counter.get();
+      if (current >= window) {
+        rejected.incrementAndGet();
+        return null;
+      }
+      if (counter.compareAndSet(current, current + 1)) {
+        return counter;
+      }
+    }
+  }
+
+  public String getNackError() {
+    return nackError;
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public int getWindow() {
+    return window;
+  }
+
+  @Override
+  public Map<String, Integer> getInFlightBySession() {
+    Map<String, Integer> result = new TreeMap<>();
+    for (Map.Entry<SessionContext, AtomicInteger> entry : inFlight.entrySet()) {
+      SessionContext sessionContext = entry.getKey();
+      result.put(sessionContext.getSessionId() + " " + sessionContext.getInitiatingEntity(), entry.getValue().get());
+    }
+    return result;
+  }
+
+  @Override
+  public int getMaxInFlight() {
+    int max = 0;
+    for (AtomicInteger counter : inFlight.values()) {
+      max = Math.max(max, counter.get());
+    }
+    return max;
+  }
+
+  @Override
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  private void removeClosedSessions() {
+    Iterator<SessionContext> it = inFlight.keySet().iterator();
+    while (it.hasNext()) {
+      SessionState state = it.next().getState();
+      if (state == SessionState.ENDED || state == SessionState.CLOSED) {
+        it.remove();
+      }
+    }
+  }
+}
@@ -23,6 +23,7 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
 import org.apache.vysper.xml.fragment.XMLElement;
+import org.apache.vysper.xml.fragment.XMLSemanticError;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.apache.vysper.xml.fragment.XMLElementBuilder;
 
@@ -34,7 +35,19 @@ import org.apache.vysper.xml.fragment.XMLElementBuilder;
  */
 public class GCMMessage {
 
+  // the fields the handler needs, extracted in one pass without building the JSON tree
+  private static final String[] SCANNED_FIELDS = {
+      GCMMessageHandler.JSON_TO, GCMMessageHandler.JSON_MESSAGE_ID, GCMMessageHandler.JSON_MESSAGE_TYPE};
+  static final int TO = 0;
+  static final int MESSAGE_ID = 1;
+  static final int MESSAGE_TYPE = 2;
+  static final int FIELD_COUNT = SCANNED_FIELDS.length;
+
   private XMLElement xmlElement;
+  private String payload;
+  private String[] fields;
+  private boolean wellFormed;
+  private JSONObject jsonObject;
 
   public static GCMMessage fromStanza(Stanza stanza) {
     List<XMLElement> xElms = stanza.getInnerElementsNamed("gcm");
@@ -56,9 +69,66 @@ public class GCMMessage {
     this.xmlElement = element;
   }
 
+  public String getPayload() throws XMLSemanticError {
+    if (payload == null) {
+      payload = this.xmlElement.getSingleInnerText().getText();
+    }
+    return payload;
+  }
+
+  /**
+   * @return false if the payload is not a JSON object
+   * @throws XMLSemanticError
+   */
+  public boolean isWellFormed() throws XMLSemanticError {
+    scan();
+    return wellFormed;
+  }
+
+  public String getTo() throws XMLSemanticError {
+    return scan()[TO];
+  }
+
+  public String getMessageId() throws XMLSemanticError {
+    return scan()[MESSAGE_ID];
+  }
+
+  public String getMessageType() throws XMLSemanticError {
+    return scan()[MESSAGE_TYPE];
+  }
+
+  /**
+   * the full JSON tree, built on first use only
+   *
+   * @return
+   * @throws Exception
+   */
   public JSONObject getJsonObject() throws Exception {
-    JSONParser parser = new JSONParser();
-    return (JSONObject) parser.parse(this.xmlElement.getSingleInnerText().getText());
+    if (jsonObject == null) {
+      JSONParser parser = new JSONParser();
+      jsonObject = (JSONObject) parser.parse(getPayload());
+    }
+    return jsonObject;
+  }
+
+  /**
+   * extract the handler's fields from a payload into a reused array
+   *
+   * @param payload
+   * @param values receives the fields at TO, MESSAGE_ID and MESSAGE_TYPE
+   * @return false if the payload is not a JSON object
+   */
+  static boolean scan(String payload, String[] values) {
+    return JsonFieldScanner.scan(payload, SCANNED_FIELDS, values);
+  }
+
+  private String[] scan() throws XMLSemanticError {
+    if (fields == null) {
+      String[] values = new String[FIELD_COUNT];
+      wellFormed = scan(getPayload(), values);
+      fields = values;
+    }
+    return fields;
   }
 
   public static final class Builder extends XMLElementBuilder {
@@ -17,10 +17,11 @@
 package com.jql.gcmccsmock;
 
 
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.vysper.xml.fragment.XMLElement;
 import org.apache.vysper.xml.fragment.XMLSemanticError;
@@ -30,11 +31,10 @@ import org.apache.vysper.xmpp.modules.core.base.handler.DefaultMessageHandler;
 import org.apache.vysper.xmpp.protocol.NamespaceURIs;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.server.SessionState;
 import org.apache.vysper.xmpp.stanza.*;
-import org.json.simple.JSONValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.json.simple.JSONObject;
 
 
 /**
@@ -48,10 +48,13 @@ public class GCMMessageHandler extends DefaultMessageHandler {
 
   final Logger logger = LoggerFactory.getLogger(GCMMessageHandler.class);
 
-  // Ack delay in milliseconds (randomized)
-  private static final long ACK_DELAY_MS = 1000;
-  // delivery receipt delay in milliseconds (randomized)
-  private static final long DELIVERY_RECEIPT_DELAY_MS = 2000;
+  // without the pipeline, each handler thread decides into its own event
+  private static final ThreadLocal<MessageEvent> SCRATCH_EVENT = new ThreadLocal<MessageEvent>() {
+    @Override
+    protected MessageEvent initialValue() {
+      return new MessageEvent();
+    }
+  };
 
   private Entity moduleDomain;
 
@@ -76,15 +79,26 @@ public class GCMMessageHandler extends DefaultMessageHandler {
   public static final String JSON_ERROR_DESCRIPTION = "error_description";
   
   private ServiceContext serviceContext;
-  private String badRegistrationTag;
-  private String drainingTag;
+  private RelayMetrics relayMetrics;
+  private MessageTracer messageTracer;
+  private MessageRelayManager messageRelayManager;
+  private MessageDecider messageDecider;
+  // null unless relay.pipeline.enabled
+  private RelayPipeline relayPipeline;
+  // responses of a provider session share one target
+  private final ConcurrentMap<SessionContext, ResponseRelayJob.Target> relayTargets = new ConcurrentHashMap<>();
 
   public GCMMessageHandler(ServiceContext serviceContext, Entity moduleDomain) {
     this.serviceContext = serviceContext;
     this.moduleDomain = moduleDomain;
-    Config config = serviceContext.getConfig();
-    this.badRegistrationTag = config.getProperty("bad.registration.id", "BAD_REGISTRATION");
-    this.drainingTag = config.getProperty("draining.registration.id", "DRAIN_ME");
+    this.relayMetrics = serviceContext.getMessageRelayManager().getRelayMetrics();
+    this.messageTracer = serviceContext.getMessageTracer();
+    this.messageRelayManager = serviceContext.getMessageRelayManager();
+    this.messageDecider = new MessageDecider(serviceContext);
+    if (serviceContext.getRelayPipeline().isEnabled()) {
+      this.relayPipeline = serviceContext.getRelayPipeline();
+      relayPipeline.start(messageDecider);
+    }
   }
 
   @Override
@@ -107,40 +121,35 @@ public class GCMMessageHandler extends DefaultMessageHandler {
   protected Stanza executeMessageLogic(MessageStanza stanza, ServerRuntimeContext serverRuntimeContext,
                                        SessionContext sessionContext) {
 
+    long ingressNanos = System.nanoTime();
     try {
       String incomingMessage = stanza.getInnerElements().get(0).getSingleInnerText().getText();
-      logger.info("Received message. stanza.gcm={}", incomingMessage);
+      if (messageTracer.isPayloadLogging()) {
+        logger.info("Received message. stanza.gcm={}", incomingMessage);
+      }
       Entity from = extractSenderJID(stanza, sessionContext);
 
       MessageStanzaType type = stanza.getMessageType();
       if (!MessageStanzaType.NORMAL.equals(type))
         return null; // no immediate response
 
-      GCMMessage gcmMessage = GCMMessage.fromStanza(stanza);
-      JSONObject jsonObject = gcmMessage.getJsonObject();
-
-      if (jsonObject.get(JSON_TO).equals(badRegistrationTag)) {
-        Stanza outboundStanza = createNackBadRegIdMessageStanza(stanza, jsonObject);
-        MessageRelayJobImpl messageRelayJob = new MessageRelayJobImpl(ThreadLocalRandom.current().nextLong(ACK_DELAY_MS), from, outboundStanza, serverRuntimeContext);
-        serviceContext.getMessageRelayManager().addJob(messageRelayJob);
+      String stanzaId = stanza.getAttributeValue("id");
+      ResponseRelayJob.Target target = relayTarget(sessionContext, from, serverRuntimeContext);
+      if (relayPipeline != null) {
+        relayPipeline.publish(sessionContext, target, stanzaId, incomingMessage, ingressNanos);
         return null;
       }
 
-      Stanza outboundStanza = createAckMessageStanza(stanza, jsonObject);
-      MessageRelayJobImpl messageRelayJob = new MessageRelayJobImpl(ThreadLocalRandom.current().nextLong(ACK_DELAY_MS), from, outboundStanza, serverRuntimeContext);
-      serviceContext.getMessageRelayManager().addJob(messageRelayJob);
-
-      outboundStanza = createDeliveryReceiptMessageStanza(stanza, jsonObject);
-      messageRelayJob = new MessageRelayJobImpl(ThreadLocalRandom.current().nextLong(DELIVERY_RECEIPT_DELAY_MS), from, outboundStanza, serverRuntimeContext,
-          (String)jsonObject.get(JSON_TO), incomingMessage);
-      serviceContext.getMessageRelayManager().addJob(messageRelayJob);
-
-      // draining control message test
-      if (jsonObject.get(JSON_TO).equals(drainingTag)) {
-        outboundStanza = createDrainingMessageStanza(stanza, jsonObject);
-        messageRelayJob = new MessageRelayJobImpl(500, from, outboundStanza, serverRuntimeContext,
-            (String)jsonObject.get(JSON_TO), incomingMessage);
-        serviceContext.getMessageRelayManager().addJob(messageRelayJob);
+      MessageEvent event = SCRATCH_EVENT.get();
+      try {
+        event.set(sessionContext, target, stanzaId, incomingMessage, ingressNanos);
+        event.parse();
+        if (messageDecider.decide(event)) {
+          addJobs(event);
+          relayMetrics.recordIngressToScheduled(ingressNanos);
+        }
+      } finally {
+        event.clear();
       }
     } catch (Exception ex) {
       logger.error("got exception: ", ex);
@@ -148,6 +157,56 @@ public class GCMMessageHandler extends DefaultMessageHandler {
     return null;
   }
 
+  /**
+   * turn the responses decided for a message into relay jobs
+   */
+  private void addJobs(MessageEvent event) {
+    for (int i = 0; i < event.responseCount; i++) {
+      ResponseRelayJob relayJob = new ResponseRelayJob(event.delayNanos[i], TimeUnit.NANOSECONDS, event.target,
+          event.templates[i], event.stanzaId, event.getRegId(), event.getMessageId());
+      if (i == event.releaseIndex) {
+        relayJob.setInFlightCounter(event.inFlightCounter);
+      }
+      if (i == event.storeIndex) {
+        // the pending receipt only holds on to the payload when there is a store to write it to
+        relayJob.setIncomingMessage(event.incomingMessage);
+      }
+      relayJob.setSheddable(event.sheddable[i]);
+      if (event.immediate) {
+        messageRelayManager.execute(relayJob);
+      } else {
+        messageRelayManager.addJob(relayJob);
+      }
+    }
+  }
+
+  /**
+   * @return the session's relay target, replaced if the sender changed
+   */
+  private ResponseRelayJob.Target relayTarget(SessionContext sessionContext, Entity from,
+                                              ServerRuntimeContext serverRuntimeContext) {
+    ResponseRelayJob.Target target = relayTargets.get(sessionContext);
+    if (target != null && target.getReceiver().equals(from)) {
+      return target;
+    }
+    target = new ResponseRelayJob.Target(from, serverRuntimeContext);
+    if (relayTargets.put(sessionContext, target) == null) {
+      // a new connection, forget the ones that are gone
+      removeClosedSessions();
+    }
+    return target;
+  }
+
+  private void removeClosedSessions() {
+    Iterator<SessionContext> it = relayTargets.keySet().iterator();
+    while (it.hasNext()) {
+      SessionState state = it.next().getState();
+      if (state == SessionState.ENDED || state == SessionState.CLOSED) {
+        it.remove();
+      }
+    }
+  }
+
   /**
    * Create Ack Message
 
@@ -162,24 +221,14 @@ public class GCMMessageHandler extends DefaultMessageHandler {
    </message>
 
    * @param original
-   * @param jsonObject
+   * @param to
+   * @param messageId
    * @return
    * @throws EntityFormatException
    */
-  private static Stanza createAckMessageStanza(Stanza original, JSONObject jsonObject) throws EntityFormatException {
-    Map<String, Object> message = new HashMap<>();
-    message.put(JSON_MESSAGE_TYPE, JSON_ACK);
-    message.put(JSON_FROM, jsonObject.get(JSON_TO));
-    message.put(JSON_MESSAGE_ID, jsonObject.get(JSON_MESSAGE_ID));
-    String payload = JSONValue.toJSONString(message);
-
-    // no from & to
-    StanzaBuilder builder = new StanzaBuilder("message");
-    builder.addAttribute("id", original.getAttributeValue("id") == null ? "": original.getAttributeValue("id"));
-    GCMMessage.Builder gcmMessageBuilder = new GCMMessage.Builder();
-    gcmMessageBuilder.addText(payload);
-    builder.addPreparedElement(gcmMessageBuilder.build());
-    return builder.build();
+  static Stanza createAckMessageStanza(Stanza original, String to, String messageId) throws EntityFormatException {
+    String payload = ResponseRenderer.ACK.render(to, messageId, 0);
+    return ResponseRenderer.toStanza(original.getAttributeValue("id"), payload);
   }
 
   /**
@@ -198,27 +247,97 @@ public class GCMMessageHandler extends DefaultMessageHandler {
    </message>
 
    * @param original
-   * @param jsonObject
+   * @param to
+   * @param messageId
    * @return
    * @throws EntityFormatException
    */
-  private static Stanza createNackBadRegIdMessageStanza(Stanza original, JSONObject jsonObject) throws EntityFormatException {
-
-    Map<String, Object> message = new HashMap<>();
-    message.put(JSON_MESSAGE_TYPE, JSON_NACK);
-    message.put(JSON_FROM, jsonObject.get(JSON_TO));
-    message.put(JSON_MESSAGE_ID, jsonObject.get(JSON_MESSAGE_ID));
-    message.put(JSON_ERROR, JSON_ERROR_BAD_REGISTRATION);
-    message.put(JSON_ERROR_DESCRIPTION, "Invalid token on 'to' field: "+jsonObject.get(JSON_TO));
-
-    String payload = JSONValue.toJSONString(message);
-
-    StanzaBuilder builder = new StanzaBuilder("message");
-    builder.addAttribute("id", original.getAttributeValue("id") == null ? "": original.getAttributeValue("id"));
-    GCMMessage.Builder gcmMessageBuilder = new GCMMessage.Builder();
-    gcmMessageBuilder.addText(payload);
-    builder.addPreparedElement(gcmMessageBuilder.build());
-    return builder.build();
+  static Stanza createNackBadRegIdMessageStanza(Stanza original, String to, String messageId) throws EntityFormatException {
+    String payload = ResponseRenderer.NACK_BAD_REGISTRATION.render(to, messageId, 0);
+    return ResponseRenderer.toStanza(original.getAttributeValue("id"), payload);
+  }
+
+  /**
+   * Create a Nack for a message over the flow control window
+
+   <message>
+     <gcm xmlns="google:mobile:data">
+     {
+       "message_type":"nack",
+       "message_id":"msgId1",
+       "from":"REGID",
+       "error":"SERVICE_UNAVAILABLE",
+       "error_description":"Too many unacknowledged messages on this connection"
+     }
+     </gcm>
+   </message>
+
+   * @param original
+   * @param to
+   * @param messageId
+   * @param error
+   * @return
+   * @throws EntityFormatException
+   */
+  static Stanza createNackFlowControlMessageStanza(Stanza original, String to, String messageId, String error)
+      throws EntityFormatException {
+    String payload = ResponseRenderer.NACK.render(to, messageId, 0, error,
+        "Too many unacknowledged messages on this connection");
+    return ResponseRenderer.toStanza(original.getAttributeValue("id"), payload);
+  }
+
+  /**
+   * Create a Nack for a message received while the relay queue is full
+
+   <message>
+     <gcm xmlns="google:mobile:data">
+     {
+       "message_type":"nack",
+       "message_id":"msgId1",
+       "from":"REGID",
+       "error":"SERVICE_UNAVAILABLE",
+       "error_description":"The server is overloaded, retry later"
+     }
+     </gcm>
+   </message>
+
+   * @param original
+   * @param to
+   * @param messageId
+   * @return
+   * @throws EntityFormatException
+   */
+  static Stanza createNackOverloadedMessageStanza(Stanza original, String to, String messageId)
+      throws EntityFormatException {
+    String payload = ResponseRenderer.NACK_OVERLOADED.render(to, messageId, 0);
+    return ResponseRenderer.toStanza(original.getAttributeValue("id"), payload);
+  }
+
+  /**
+   * Create a Nack for a message over the device's rate limit
+
+   <message>
+     <gcm xmlns="google:mobile:data">
+     {
+       "message_type":"nack",
+       "message_id":"msgId1",
+       "from":"REGID",
+       "error":"DEVICE_MESSAGE_RATE_EXCEEDED",
+       "error_description":"Downstream message rate exceeded for this device"
+     }
+     </gcm>
+   </message>
+
+   * @param original
+   * @param to
+   * @param messageId
+   * @return
+   * @throws EntityFormatException
+   */
+  static Stanza createNackRateExceededMessageStanza(Stanza original, String to, String messageId)
+      throws EntityFormatException {
+    String payload = ResponseRenderer.NACK_RATE_EXCEEDED.render(to, messageId, 0);
+    return ResponseRenderer.toStanza(original.getAttributeValue("id"), payload);
   }
 
   /**
@@ -244,32 +363,14 @@ public class GCMMessageHandler extends DefaultMessageHandler {
    </message>
 
    * @param original
-   * @param jsonObject
+   * @param to
+   * @param messageId
    * @return
    * @throws EntityFormatException
    */
-  private static Stanza createDeliveryReceiptMessageStanza(Stanza original, JSONObject jsonObject) throws EntityFormatException {
-
-    Map<String, Object> message = new HashMap<>();
-    message.put(JSON_MESSAGE_TYPE, JSON_RECEIPT);
-    message.put(JSON_FROM, "gcm.googleapis.com");
-    // TODO made up
-    message.put(JSON_CATEGORY, "com.itsoninc.client");
-    message.put(JSON_MESSAGE_ID, "dr2:"+jsonObject.get(JSON_MESSAGE_ID));
-    Map<String, Object> data = new HashMap<>();
-    data.put(JSON_MESSAGE_STATUS, JSON_MESSAGE_STATUS_SENT_TO_DEVICE);
-    data.put(JSON_ORIGINAL_MESSAGE_ID, jsonObject.get(JSON_MESSAGE_ID));
-    data.put(JSON_DEVICE_REG_ID, jsonObject.get(JSON_TO));
-    data.put(JSON_SENT_TIMESTAMP, Long.toString(System.currentTimeMillis()));
-    message.put("data", data);
-    String payload = JSONValue.toJSONString(message);
-
-    StanzaBuilder builder = new StanzaBuilder("message");
-    builder.addAttribute("id", original.getAttributeValue("id") == null ? "": original.getAttributeValue("id"));
-    GCMMessage.Builder gcmMessageBuilder = new GCMMessage.Builder();
-    gcmMessageBuilder.addText(payload);
-    builder.addPreparedElement(gcmMessageBuilder.build());
-    return builder.build();
+  static Stanza createDeliveryReceiptMessageStanza(Stanza original, String to, String messageId) throws EntityFormatException {
+    String payload = ResponseRenderer.RECEIPT.render(to, messageId, System.currentTimeMillis());
+    return ResponseRenderer.toStanza(original.getAttributeValue("id"), payload);
   }
 
   /**
@@ -285,22 +386,12 @@ public class GCMMessageHandler extends DefaultMessageHandler {
    </message>
 
    * @param original
-   * @param jsonObject
    * @return
    * @throws EntityFormatException
    */
-  private static Stanza createDrainingMessageStanza(Stanza original, JSONObject jsonObject) throws EntityFormatException {
-    Map<String, Object> message = new HashMap<>();
-    message.put(JSON_MESSAGE_TYPE, JSON_CONTROL);
-    message.put(JSON_CONTROL_TYPE, "CONNECTION_DRAINING");
-    String payload = JSONValue.toJSONString(message);
-
-    StanzaBuilder builder = new StanzaBuilder("message");
-    builder.addAttribute("id", original.getAttributeValue("id") == null ? "": original.getAttributeValue("id"));
-    GCMMessage.Builder gcmMessageBuilder = new GCMMessage.Builder();
-    gcmMessageBuilder.addText(payload);
-    builder.addPreparedElement(gcmMessageBuilder.build());
-    return builder.build();
+  static Stanza createDrainingMessageStanza(Stanza original) throws EntityFormatException {
+    String payload = ResponseRenderer.DRAINING.render(null, null, 0);
+    return ResponseRenderer.toStanza(original.getAttributeValue("id"), payload);
   }
 
   private String getFieldValue(List<XMLElement> fields, String var) {
@@ -16,6 +16,8 @@
 
 package com.jql.gcmccsmock;
 
+import java.util.List;
+
 /**
  *
  * Message Store for persisting a message
@@ -26,4 +28,10 @@ package com.jql.gcmccsmock;
 public interface GCMMessageStore {
   void shutdown();
   boolean storeMessage(String regId, String message);
+
+  /**
+   * @param regId
+   * @return the stored messages for the regId, most recent first
+   */
+  List<String> getMessages(String regId);
 }
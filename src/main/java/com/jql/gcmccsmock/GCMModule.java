@@ -76,6 +76,7 @@ public class GCMModule extends DefaultDiscoAwareModule implements Component, Com
 
     this.stanzaProcessor = new ComponentStanzaProcessor(serverRuntimeContext);
     stanzaProcessor.addHandler(getMessageHandler());
+    serviceContext.getUpstreamGenerator().start(serverRuntimeContext);
 
     logger.info("GCMModule is initialized");
   }
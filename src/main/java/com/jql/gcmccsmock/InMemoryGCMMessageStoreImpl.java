@@ -0,0 +1,340 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process GCM Message Store
+ *
+ * Messages are stored UTF-8 encoded in one circular log made of a few large buffers
+ * (on-heap or direct), sized by the memory budget. Appends reserve space with a CAS
+ * on the log position, so concurrent writers never lock. When the log wraps, the
+ * oldest messages of all regIds are overwritten first, which is the global eviction.
+ *
+ * Each regId has a fixed-capacity ring of log positions pointing at its most recent
+ * messages. Readers copy a message out and then check that the log has not lapped
+ * it in the meantime; overwritten entries are skipped.
+ */
+public class InMemoryGCMMessageStoreImpl implements GCMMessageStore {
+  final Logger logger = LoggerFactory.getLogger(InMemoryGCMMessageStoreImpl.class);
+
+  private static final int RECORD_HEADER_BYTES = 4;
+  private static final int CHUNK_BYTES = 64 * 1024 * 1024;
+  private static final long EMPTY = -1;
+  // any position below this has been overwritten
+  private static final long STALE = Long.MIN_VALUE / 2;
+
+  private static final String DEFAULT_RING_CAPACITY = "16";
+  private static final String DEFAULT_BUDGET_MB = "512";
+  private static final String DEFAULT_SWEEP_INTERVAL_SEC = "60";
+
+  private final AtomicBoolean isActive = new AtomicBoolean(false);
+  private final ConcurrentMap<String, MessageRing> rings = new ConcurrentHashMap<>();
+  private final AtomicLong reservedPosition = new AtomicLong();
+  private final AtomicLong storedCount = new AtomicLong();
+  private ByteBuffer[] chunks;
+  private int chunkBytes;
+  private long capacityBytes;
+  private int ringCapacity;
+  private ScheduledExecutorService sweeper;
+
+  public InMemoryGCMMessageStoreImpl(Config config) {
+    init(config);
+  }
+
+  public void init(Config config) {
+    String messageStoreEnabledStr = config.getProperty("message.store.enabled", "true");
+    if (!Boolean.parseBoolean(messageStoreEnabledStr))
+      return;
+    ringCapacity = Integer.parseInt(config.getProperty("store.memory.ring.capacity", DEFAULT_RING_CAPACITY));
+    long budgetBytes = Long.parseLong(config.getProperty("store.memory.budget.mb", DEFAULT_BUDGET_MB)) * 1024 * 1024;
+    boolean offHeap = Boolean.parseBoolean(config.getProperty("store.memory.offheap", "false"));
+    if (ringCapacity <= 0) {
+      throw new IllegalArgumentException("invalid store.memory.ring.capacity: " + ringCapacity);
+    }
+    if (budgetBytes <= 0) {
+      throw new IllegalArgumentException("invalid store.memory.budget.mb");
+    }
+
+    chunkBytes = (int) Math.min(CHUNK_BYTES, budgetBytes);
+    int chunkCount = (int) ((budgetBytes + chunkBytes - 1) / chunkBytes);
+    chunks = new ByteBuffer[chunkCount];
+    for (int i = 0; i < chunkCount; i++) {
+      chunks[i] = offHeap ? ByteBuffer.allocateDirect(chunkBytes) : ByteBuffer.allocate(chunkBytes);
+    }
+    capacityBytes = (long) chunkCount * chunkBytes;
+
+    long sweepIntervalSec = Long.parseLong(config.getProperty("store.memory.sweep.interval.sec", DEFAULT_SWEEP_INTERVAL_SEC));
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "memory-store-sweeper");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        sweepEvictedRings();
+      }
+    }, sweepIntervalSec, sweepIntervalSec, TimeUnit.SECONDS);
+
+    logger.info("in-memory message store: budget={} bytes, offHeap={}, ring capacity={}",
+        capacityBytes, offHeap, ringCapacity);
+    isActive.set(true);
+  }
+
+  @Override
+  public void shutdown() {
+    if (!isActive.getAndSet(false))
+      return;
+    sweeper.shutdownNow();
+    rings.clear();
+  }
+
+  @Override
+  public boolean storeMessage(String regId, String message) {
+    if (!isActive.get())
+      return false;
+    byte[] bytes = message.getBytes(Strings.UTF_8);
+    int recordBytes = RECORD_HEADER_BYTES + bytes.length;
+    if (recordBytes > chunkBytes) {
+      logger.warn("message too large for the in-memory store. regId={}, size={}", regId, bytes.length);
+      return false;
+    }
+
+    long position = reserve(recordBytes);
+    ByteBuffer buffer = chunks[chunkIndex(position)].duplicate();
+    buffer.position(chunkOffset(position));
+    buffer.putInt(bytes.length);
+    buffer.put(bytes);
+
+    appendToRing(regId, position);
+    storedCount.incrementAndGet();
+    return true;
+  }
+
+  @Override
+  public List<String> getMessages(String regId) {
+    MessageRing ring = rings.get(regId);
+    if (ring == null || !isActive.get()) {
+      return Collections.emptyList();
+    }
+    long count = ring.published.get();
+    List<String> messages = new ArrayList<>();
+    for (long seq = count - 1; seq >= 0 && seq >= count - ringCapacity; seq--) {
+      long position = ring.positions.get((int) (seq % ringCapacity));
+      if (position == EMPTY) {
+        continue;
+      }
+      String message = read(position);
+      if (message != null) {
+        messages.add(message);
+      }
+    }
+    return messages;
+  }
+
+  public long getStoredCount() {
+    return storedCount.get();
+  }
+
+  public int getRegIdCount() {
+    return rings.size();
+  }
+
+  /**
+   * reserve room for a record; a record never spans two chunks
+   *
+   * @param recordBytes
+   * @return log position of the record
+   */
+  private long reserve(int recordBytes) {
+    for (;;) {
+      long current = reservedPosition.get();
+      long start = current;
+      int offset = (int) (current % chunkBytes);
+      if (offset + recordBytes > chunkBytes) {
+        start = current - offset + chunkBytes;
+      }
+      if (reservedPosition.compareAndSet(current, start + recordBytes)) {
+        return start;
+      }
+    }
+  }
+
+  private String read(long position) {
+    if (isOverwritten(position)) {
+      return null;
+    }
+    ByteBuffer buffer = chunks[chunkIndex(position)].duplicate();
+    buffer.position(chunkOffset(position));
+    int length = buffer.getInt();
+    if (length < 0 || length > chunkBytes - chunkOffset(position) - RECORD_HEADER_BYTES) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    // the log may have lapped the record while we were copying it
+    if (isOverwritten(position)) {
+      return null;
+    }
+    return new String(bytes, Strings.UTF_8);
+  }
+
+  private boolean isOverwritten(long position) {
+    return reservedPosition.get() - position > capacityBytes;
+  }
+
+  private int chunkIndex(long position) {
+    return (int) ((position / chunkBytes) % chunks.length);
+  }
+
+  private int chunkOffset(long position) {
+    return (int) (position % chunkBytes);
+  }
+
+  private void appendToRing(String regId, long position) {
+    for (;;) {
+      MessageRing ring = rings.get(regId);
+      if (ring == null) {
+        MessageRing newRing = new MessageRing(ringCapacity);
+        ring = rings.putIfAbsent(regId, newRing);
+        if (ring == null) {
+          ring = newRing;
+        }
+      }
+      if (ring.add(position)) {
+        return;
+      }
+      // the sweeper holds this ring retired; it either removes it or revives it shortly
+      Thread.yield();
+    }
+  }
+
+  /**
+   * drop the rings whose messages have all been overwritten by the log
+   */
+  private void sweepEvictedRings() {
+    int removed = 0;
+    for (Map.Entry<String, MessageRing> entry : rings.entrySet()) {
+      MessageRing ring = entry.getValue();
+      if (!isOverwritten(ring.newest()) || !ring.retire()) {
+        continue;
+      }
+      // no append is in flight once retired, so this check cannot race with one
+      if (!isOverwritten(ring.newest())) {
+        ring.revive();
+        continue;
+      }
+      if (rings.remove(entry.getKey(), ring)) {
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      logger.debug("memory store sweeper removed {} evicted regIds", removed);
+    }
+  }
+
+  /**
+   * Appends claim a sequence from reserved, fill the slot and then publish in sequence
+   * order, so a reader that sees published never reads a slot that has not been set.
+   * state counts the appends in flight, or is RETIRED while the sweeper owns the ring;
+   * an append and the sweeper's retire agree through a CAS on it.
+   */
+  private static final class MessageRing {
+    private static final int RETIRED = -1;
+
+    final AtomicLongArray positions;
+    final AtomicLong reserved = new AtomicLong();
+    final AtomicLong published = new AtomicLong();
+    final AtomicInteger state = new AtomicInteger();
+
+    MessageRing(int capacity) {
+      positions = new AtomicLongArray(capacity);
+      for (int i = 0; i < capacity; i++) {
+        positions.set(i, EMPTY);
+      }
+    }
+
+    /**
+     * @return false if the ring is retired and nothing was appended
+     */
+    boolean add(long position) {
+      for (;;) {
+        int current = state.get();
+        if (current == RETIRED) {
+          return false;
+        }
+        if (state.compareAndSet(current, current + 1)) {
+          break;
+        }
+      }
+      try {
+        long seq = reserved.getAndIncrement();
+        positions.set((int) (seq % positions.length()), position);
+        // appends to one regId rarely overlap; wait for the earlier ones to publish
+        while (published.get() != seq) {
+          Thread.yield();
+        }
+        published.set(seq + 1);
+        return true;
+      } finally {
+        state.decrementAndGet();
+      }
+    }
+
+    /**
+     * @return true if no append was in flight and the ring is now retired
+     */
+    boolean retire() {
+      return state.compareAndSet(0, RETIRED);
+    }
+
+    void revive() {
+      state.set(0);
+    }
+
+    long newest() {
+      long seq = published.get() - 1;
+      if (seq < 0) {
+        return STALE;
+      }
+      long position = positions.get((int) (seq % positions.length()));
+      return position == EMPTY ? STALE : position;
+    }
+  }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only journal GCM Message Store backed by memory-mapped segment files.
+ *
+ * Writers reserve room with a CAS on the journal position and encode the regId and
+ * payload straight from the Strings into the mapped segment, without an intermediate
+ * byte array. A segment is rolled when the next record does not fit. Each segment has
+ * a side index of (regId hash, offset) entries used by getMessages().
+ * See JournalReader for the file layout and the exporter.
+ *
+ * Every process run starts a new segment after the existing ones. On a roll the previous
+ * segment is forced to disk and only kept for the appends that reserved room in it before
+ * the roll; older segments are read through a small cache of read-only mappings.
+ */
+public class JournalGCMMessageStoreImpl implements GCMMessageStore {
+  final Logger logger = LoggerFactory.getLogger(JournalGCMMessageStoreImpl.class);
+
+  private static final String DEFAULT_JOURNAL_DIR = "journal";
+  private static final String DEFAULT_SEGMENT_MB = "256";
+  private static final String DEFAULT_MAPPED_SEGMENTS = "4";
+
+  private static final ThreadLocal<CharsetEncoder> ENCODER = new ThreadLocal<CharsetEncoder>() {
+    @Override
+    protected CharsetEncoder initialValue() {
+      return Strings.UTF_8.newEncoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+  };
+
+  private final AtomicBoolean isActive = new AtomicBoolean(false);
+  private final AtomicLong position = new AtomicLong();
+  private final Object rollLock = new Object();
+  // the segment being appended to and the one before it, which late appends may still fill
+  private volatile Segment current;
+  private volatile Segment previous;
+  private Map<Long, Segment> readOnlySegments;
+  private File dir;
+  private int segmentBytes;
+
+  public JournalGCMMessageStoreImpl(Config config) {
+    init(config);
+  }
+
+  public void init(Config config) {
+    String messageStoreEnabledStr = config.getProperty("message.store.enabled", "true");
+    if (!Boolean.parseBoolean(messageStoreEnabledStr))
+      return;
+    dir = new File(config.getProperty("store.journal.dir", DEFAULT_JOURNAL_DIR));
+    long segmentMb = Long.parseLong(config.getProperty("store.journal.segment.mb", DEFAULT_SEGMENT_MB));
+    if (segmentMb <= 0 || segmentMb > 1024) {
+      throw new IllegalArgumentException("invalid store.journal.segment.mb: " + segmentMb);
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IllegalArgumentException("cannot create store.journal.dir: " + dir);
+    }
+    segmentBytes = (int) (segmentMb * 1024 * 1024);
+    final int mappedSegments = Integer.parseInt(config.getProperty("store.journal.mapped.segments",
+        DEFAULT_MAPPED_SEGMENTS));
+    if (mappedSegments <= 0) {
+      throw new IllegalArgumentException("invalid store.journal.mapped.segments: " + mappedSegments);
+    }
+    // evicted mappings are released by the GC once no reader holds them
+    readOnlySegments = new LinkedHashMap<Long, Segment>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Segment> eldest) {
+        return size() > mappedSegments;
+      }
+    };
+
+    long[] existing = JournalReader.listSegments(dir);
+    long firstSegment = existing.length == 0 ? 0 : existing[existing.length - 1] + 1;
+    position.set(firstSegment * segmentBytes);
+    logger.info("journal message store: dir={}, segment={} bytes, first segment={}",
+        dir.getAbsolutePath(), segmentBytes, firstSegment);
+    isActive.set(true);
+  }
+
+  @Override
+  public void shutdown() {
+    if (!isActive.getAndSet(false))
+      return;
+    Segment segment = previous;
+    if (segment != null) {
+      segment.force();
+    }
+    segment = current;
+    if (segment != null) {
+      segment.force();
+    }
+    synchronized (readOnlySegments) {
+      readOnlySegments.clear();
+    }
+  }
+
+  @Override
+  public boolean storeMessage(String regId, String message) {
+    if (!isActive.get())
+      return false;
+    int regIdBytes = utf8Length(regId);
+    int recordBytes = JournalReader.RECORD_HEADER_BYTES + regIdBytes + utf8Length(message);
+    if (recordBytes > segmentBytes) {
+      logger.warn("message too large for the journal. regId={}, size={}", regId, recordBytes);
+      return false;
+    }
+
+    long recordPosition = reserve(recordBytes);
+    Segment segment;
+    try {
+      segment = getSegment(recordPosition / segmentBytes);
+    } catch (IOException e) {
+      logger.error("failed to open journal segment", e);
+      return false;
+    }
+    int offset = (int) (recordPosition % segmentBytes);
+    ByteBuffer buffer = segment.data.duplicate();
+    buffer.position(offset + 4);
+    buffer.putLong(System.currentTimeMillis());
+    buffer.putInt(regIdBytes);
+    encode(regId, buffer);
+    encode(message, buffer);
+    // the length goes in last, a sequential reader stops at a zero length
+    segment.data.putInt(offset, recordBytes);
+    segment.addIndexEntry(Strings.hash(regId), offset);
+    return true;
+  }
+
+  @Override
+  public List<String> getMessages(final String regId) {
+    if (!isActive.get())
+      return Collections.emptyList();
+    final List<String> messages = new ArrayList<>();
+    JournalReader.Visitor collector = new JournalReader.Visitor() {
+      @Override
+      public boolean visit(long timestamp, String recordRegId, String payload) {
+        messages.add(payload);
+        return true;
+      }
+    };
+    long hash = Strings.hash(regId);
+    Segment live = current;
+    Segment last = previous;
+    long firstLive = last != null ? last.number : live != null ? live.number : Long.MAX_VALUE;
+    try {
+      // closed segments, then the writable ones
+      for (long segmentNumber : JournalReader.listSegments(dir)) {
+        if (segmentNumber >= firstLive) {
+          break;
+        }
+        Segment segment = getReadOnlySegment(segmentNumber);
+        if (segment != null) {
+          JournalReader.readIndexed(segment.index.duplicate(), segment.data.duplicate(), regId, hash, true, collector);
+        }
+      }
+      for (Segment segment : new Segment[] { last, live }) {
+        if (segment != null) {
+          JournalReader.readIndexed(segment.indexView(), segment.data.duplicate(), regId, hash, false, collector);
+        }
+      }
+    } catch (IOException e) {
+      logger.error("failed to read journal", e);
+    }
+    Collections.reverse(messages);
+    return messages;
+  }
+
+  /**
+   * reserve room for a record; a record never spans two segments
+   *
+   * @param recordBytes
+   * @return journal position of the record
+   */
+  private long reserve(int recordBytes) {
+    for (;;) {
+      long current = position.get();
+      long start = current;
+      int offset = (int) (current % segmentBytes);
+      if (offset + recordBytes > segmentBytes) {
+        start = current - offset + segmentBytes;
+      }
+      if (position.compareAndSet(current, start + recordBytes)) {
+        return start;
+      }
+    }
+  }
+
+  private Segment getSegment(long segmentNumber) throws IOException {
+    Segment segment = current;
+    if (segment != null && segment.number == segmentNumber) {
+      return segment;
+    }
+    Segment rolled;
+    synchronized (rollLock) {
+      segment = current;
+      if (segment != null && segment.number == segmentNumber) {
+        return segment;
+      }
+      Segment last = previous;
+      if (last != null && last.number == segmentNumber) {
+        return last;
+      }
+      if (segment != null && segmentNumber < segment.number) {
+        throw new IOException("journal segment " + segmentNumber + " is already closed");
+      }
+      rolled = segment;
+      previous = rolled;
+      current = new Segment(segmentNumber, true);
+      segment = current;
+      logger.info("rolled journal segment {}", segmentNumber);
+    }
+    // appends that reserved room in the rolled segment may still be writing; they land
+    // in the mapping and reach the file with the next write-back
+    if (rolled != null) {
+      rolled.force();
+    }
+    return segment;
+  }
+
+  private Segment getReadOnlySegment(long segmentNumber) throws IOException {
+    synchronized (readOnlySegments) {
+      Segment segment = readOnlySegments.get(segmentNumber);
+      if (segment == null && JournalReader.indexFile(dir, segmentNumber).exists()) {
+        segment = new Segment(segmentNumber, false);
+        readOnlySegments.put(segmentNumber, segment);
+      }
+      return segment;
+    }
+  }
+
+  private static void encode(String value, ByteBuffer buffer) {
+    CharsetEncoder encoder = ENCODER.get();
+    encoder.reset();
+    encoder.encode(CharBuffer.wrap(value), buffer, true);
+    encoder.flush(buffer);
+  }
+
+  /**
+   * UTF-8 length of value as written by encode(); lone surrogates become one '?' byte
+   */
+  static int utf8Length(String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        length++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  private final class Segment {
+    final long number;
+    final MappedByteBuffer data;
+    final MappedByteBuffer index;
+    final AtomicInteger indexEntries = new AtomicInteger();
+
+    Segment(long number, boolean writable) throws IOException {
+      this.number = number;
+      if (writable) {
+        data = map(JournalReader.segmentFile(dir, number), segmentBytes);
+        // every record is at least as large as an index entry, so the index cannot overflow
+        index = map(JournalReader.indexFile(dir, number),
+            segmentBytes / JournalReader.RECORD_HEADER_BYTES * JournalReader.INDEX_ENTRY_BYTES);
+      } else {
+        data = map(JournalReader.segmentFile(dir, number), -1);
+        index = map(JournalReader.indexFile(dir, number), -1);
+      }
+    }
+
+    void addIndexEntry(long hash, int offset) {
+      int entry = indexEntries.getAndIncrement() * JournalReader.INDEX_ENTRY_BYTES;
+      index.putLong(entry + 8, offset);
+      index.putLong(entry, hash);
+    }
+
+    ByteBuffer indexView() {
+      ByteBuffer view = index.duplicate();
+      view.limit(indexEntries.get() * JournalReader.INDEX_ENTRY_BYTES);
+      return view;
+    }
+
+    void force() {
+      data.force();
+      index.force();
+    }
+  }
+
+  /**
+   * map a file read-write at size bytes, or read-only as it is when size is negative.
+   * The file is closed right away, the mapping stays valid until it is garbage collected.
+   */
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, size < 0 ? "r" : "rw");
+         FileChannel channel = raf.getChannel()) {
+      if (size < 0) {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Sequential reader and exporter for the segments written by JournalGCMMessageStoreImpl.
+ *
+ * Segment layout: records back to back, each
+ * [int record length][long timestamp ms][int regId length][regId utf-8][payload utf-8].
+ * A zero record length marks the unused tail of a segment.
+ * Each segment has a side index of 16-byte entries [long regId hash][long record offset],
+ * terminated by a zero hash.
+ *
+ * Export usage: java -cp ... com.jql.gcmccsmock.JournalReader JOURNAL_DIR [REG_ID]
+ * prints one tab-separated line per message: timestamp, regId, payload.
+ */
+public class JournalReader {
+  static final String SEGMENT_SUFFIX = ".seg";
+  static final String INDEX_SUFFIX = ".idx";
+  static final int RECORD_HEADER_BYTES = 16;
+  static final int INDEX_ENTRY_BYTES = 16;
+
+  public interface Visitor {
+    /**
+     * @return false to stop reading
+     */
+    boolean visit(long timestamp, String regId, String payload);
+  }
+
+  private final File dir;
+
+  public JournalReader(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * visit every record of every segment, oldest first
+   *
+   * @param visitor
+   * @throws IOException
+   */
+  public void readAll(Visitor visitor) throws IOException {
+    for (long segment : listSegments(dir)) {
+      ByteBuffer buffer = map(segmentFile(dir, segment));
+      if (!readSegment(buffer, visitor)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * visit the records of one regId through the side indexes, oldest first
+   *
+   * @param regId
+   * @param visitor
+   * @throws IOException
+   */
+  public void readRegId(String regId, Visitor visitor) throws IOException {
+    readRegId(regId, Long.MAX_VALUE, visitor);
+  }
+
+  /**
+   * @param untilSegment only read the segments numbered below this
+   */
+  void readRegId(String regId, long untilSegment, Visitor visitor) throws IOException {
+    long hash = Strings.hash(regId);
+    for (long segment : listSegments(dir)) {
+      if (segment >= untilSegment) {
+        break;
+      }
+      File indexFile = indexFile(dir, segment);
+      if (!indexFile.exists()) {
+        continue;
+      }
+      ByteBuffer index = map(indexFile);
+      ByteBuffer data = map(segmentFile(dir, segment));
+      if (!readIndexed(index, data, regId, hash, true, visitor)) {
+        return;
+      }
+    }
+  }
+
+  static boolean readSegment(ByteBuffer data, Visitor visitor) {
+    int offset = 0;
+    while (offset + RECORD_HEADER_BYTES <= data.limit()) {
+      int recordLength = data.getInt(offset);
+      if (recordLength <= 0) {
+        break;
+      }
+      if (!visitRecord(data, offset, null, visitor)) {
+        return false;
+      }
+      offset += recordLength;
+    }
+    return true;
+  }
+
+  /**
+   * @param stopAtEmpty true for a closed segment. A live segment may have empty entries
+   *                    that are still being written, in which case the index limit must be set.
+   */
+  static boolean readIndexed(ByteBuffer index, ByteBuffer data, String regId, long hash, boolean stopAtEmpty,
+                             Visitor visitor) {
+    for (int entry = 0; entry + INDEX_ENTRY_BYTES <= index.limit(); entry += INDEX_ENTRY_BYTES) {
+      long entryHash = index.getLong(entry);
+      if (entryHash == 0) {
+        if (stopAtEmpty) {
+          break;
+        }
+        continue;
+      }
+      if (entryHash == hash && !visitRecord(data, (int) index.getLong(entry + 8), regId, visitor)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * decode the record at offset
+   *
+   * @param regId if not null, skip the record unless it belongs to this regId (hash collisions)
+   */
+  private static boolean visitRecord(ByteBuffer data, int offset, String regId, Visitor visitor) {
+    int recordLength = data.getInt(offset);
+    long timestamp = data.getLong(offset + 4);
+    int regIdLength = data.getInt(offset + 12);
+    String recordRegId = decode(data, offset + RECORD_HEADER_BYTES, regIdLength);
+    if (regId != null && !regId.equals(recordRegId)) {
+      return true;
+    }
+    int payloadOffset = offset + RECORD_HEADER_BYTES + regIdLength;
+    String payload = decode(data, payloadOffset, offset + recordLength - payloadOffset);
+    return visitor.visit(timestamp, recordRegId, payload);
+  }
+
+  private static String decode(ByteBuffer data, int offset, int length) {
+    ByteBuffer slice = data.duplicate();
+    slice.limit(offset + length);
+    slice.position(offset);
+    return Strings.UTF_8.decode(slice).toString();
+  }
+
+  static long[] listSegments(File dir) {
+    String[] names = dir.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File d, String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    if (names == null) {
+      return new long[0];
+    }
+    long[] segments = new long[names.length];
+    for (int i = 0; i < names.length; i++) {
+      segments[i] = Long.parseLong(names[i].substring(0, names[i].length() - SEGMENT_SUFFIX.length()));
+    }
+    Arrays.sort(segments);
+    return segments;
+  }
+
+  static File segmentFile(File dir, long segment) {
+    return new File(dir, String.format("%010d%s", segment, SEGMENT_SUFFIX));
+  }
+
+  static File indexFile(File dir, long segment) {
+    return new File(dir, String.format("%010d%s", segment, INDEX_SUFFIX));
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+         FileChannel channel = raf.getChannel()) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  public static void main(String[] argv) throws IOException {
+    if (argv.length < 1) {
+      System.err.println("usage: JournalReader JOURNAL_DIR [REG_ID]");
+      System.exit(1);
+    }
+    JournalReader reader = new JournalReader(new File(argv[0]));
+    final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, Strings.UTF_8), 1 << 16);
+    Visitor exporter = new Visitor() {
+      @Override
+      public boolean visit(long timestamp, String regId, String payload) {
+        try {
+          out.write(Long.toString(timestamp));
+          out.write('\t');
+          out.write(regId);
+          out.write('\t');
+          // raw tabs and line breaks can only be JSON whitespace, so flattening them is lossless
+          for (int i = 0; i < payload.length(); i++) {
+            char c = payload.charAt(i);
+            out.write(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+          }
+          out.write('\n');
+          return true;
+        } catch (IOException e) {
+          return false;
+        }
+      }
+    };
+    if (argv.length > 1) {
+      reader.readRegId(argv[1], exporter);
+    } else {
+      reader.readAll(exporter);
+    }
+    out.flush();
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+/**
+ * Single-pass extractor for top-level string and number fields of a JSON object.
+ *
+ * The scanner walks the payload once, skips everything it is not asked for
+ * (nested objects, arrays, numbers, literals) and only allocates the values of
+ * the requested keys. Keys are compared in place against the payload.
+ */
+public final class JsonFieldScanner {
+
+  private final String json;
+  private int pos;
+  // whether the last string skipped contained an escape sequence
+  private boolean escaped;
+
+  private JsonFieldScanner(String json) {
+    this.json = json;
+  }
+
+  /**
+   * Extract the string values of the given top-level keys. A number is returned as its
+   * literal text, so an id sent as a number can still be echoed back.
+   *
+   * @param json the payload
+   * @param keys the keys to look for
+   * @param values receives the value of keys[i] at index i; null if absent, an object,
+   *               an array or a literal
+   * @return false if the payload is not a well-formed JSON object
+   */
+  public static boolean scan(String json, String[] keys, String[] values) {
+    try {
+      return new JsonFieldScanner(json).scanObject(keys, values);
+    } catch (IndexOutOfBoundsException | NumberFormatException e) {
+      return false;
+    }
+  }
+
+  private boolean scanObject(String[] keys, String[] values) {
+    skipWhitespace();
+    if (!consume('{')) {
+      return false;
+    }
+    skipWhitespace();
+    if (consume('}')) {
+      return trailingWhitespaceOnly();
+    }
+    for (;;) {
+      skipWhitespace();
+      if (json.charAt(pos) != '"') {
+        return false;
+      }
+      int keyIndex = matchKey(keys);
+      skipWhitespace();
+      if (!consume(':')) {
+        return false;
+      }
+      skipWhitespace();
+      char first = json.charAt(pos);
+      if (keyIndex >= 0 && first == '"') {
+        values[keyIndex] = readString();
+      } else {
+        int start = pos;
+        if (!skipValue()) {
+          return false;
+        }
+        if (keyIndex >= 0 && (first == '-' || (first >= '0' && first <= '9'))) {
+          values[keyIndex] = json.substring(start, pos);
+        }
+      }
+      skipWhitespace();
+      if (consume(',')) {
+        continue;
+      }
+      if (consume('}')) {
+        return trailingWhitespaceOnly();
+      }
+      return false;
+    }
+  }
+
+  /**
+   * consume a key and return the index of the requested key it matches, or -1
+   */
+  private int matchKey(String[] keys) {
+    int start = pos + 1;
+    int end = skipString();
+    int length = end - 1 - start;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i].length() == length && json.regionMatches(start, keys[i], 0, length)) {
+        return i;
+      }
+    }
+    if (escaped) {
+      // escaped key, compare the decoded form
+      pos = start - 1;
+      String key = readString();
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i].equals(key)) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * skip a string starting at pos
+   *
+   * @return the position after the closing quote
+   */
+  private int skipString() {
+    pos++;
+    escaped = false;
+    for (;;) {
+      char c = json.charAt(pos++);
+      if (c == '"') {
+        return pos;
+      }
+      if (c == '\\') {
+        escaped = true;
+        pos++;
+      }
+    }
+  }
+
+  private String readString() {
+    int start = pos + 1;
+    int end = skipString();
+    if (!escaped) {
+      return json.substring(start, end - 1);
+    }
+    StringBuilder sb = new StringBuilder(end - start);
+    for (int i = start; i < end - 1; i++) {
+      char c = json.charAt(i);
+      if (c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      char e = json.charAt(++i);
+      switch (e) {
+        case 'b': sb.append('\b'); break;
+        case 'f': sb.append('\f'); break;
+        case 'n': sb.append('\n'); break;
+        case 'r': sb.append('\r'); break;
+        case 't': sb.append('\t'); break;
+        case 'u':
+          sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+          i += 4;
+          break;
+        default: sb.append(e);
+      }
+    }
+    return sb.toString();
+  }
+
+  private boolean skipValue() {
+    char c = json.charAt(pos);
+    if (c == '"') {
+      skipString();
+      return true;
+    }
+    if (c == '{' || c == '[') {
+      // skip a nested structure by depth counting, strings may contain brackets
+      int depth = 0;
+      for (;;) {
+        c = json.charAt(pos);
+        if (c == '"') {
+          skipString();
+          continue;
+        }
+        pos++;
+        if (c == '{' || c == '[') {
+          depth++;
+        } else if (c == '}' || c == ']') {
+          if (--depth == 0) {
+            return true;
+          }
+        }
+      }
+    }
+    // number, true, false or null
+    int start = pos;
+    while (pos < json.length()) {
+      c = json.charAt(pos);
+      if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+        break;
+      }
+      pos++;
+    }
+    return pos > start;
+  }
+
+  private void skipWhitespace() {
+    while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+      pos++;
+    }
+  }
+
+  private boolean consume(char c) {
+    if (json.charAt(pos) == c) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  private boolean trailingWhitespaceOnly() {
+    skipWhitespace();
+    return pos == json.length();
+  }
+}
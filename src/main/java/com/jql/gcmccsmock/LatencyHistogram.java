@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * HDR latency histogram in microseconds.
+ *
+ * Writers record through a Recorder, which is wait-free. Readers fold the interval
+ * histograms into a cumulative one on each snapshot.
+ */
+public class LatencyHistogram {
+  private static final int SIGNIFICANT_DIGITS = 3;
+
+  private final String name;
+  private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+  private final Histogram cumulative = new Histogram(SIGNIFICANT_DIGITS);
+  private Histogram interval;
+
+  public LatencyHistogram(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void recordNanos(long nanos) {
+    recorder.recordValue(Math.max(0, nanos / 1000));
+  }
+
+  public void recordMicros(long micros) {
+    recorder.recordValue(Math.max(0, micros));
+  }
+
+  /**
+   * @return a copy of everything recorded since start
+   */
+  public synchronized Histogram snapshot() {
+    interval = recorder.getIntervalHistogram(interval);
+    cumulative.add(interval);
+    return cumulative.copy();
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Summary of a LatencyHistogram, in microseconds, as exposed over JMX
+ */
+public class LatencySnapshot {
+  private final long count;
+  private final double mean;
+  private final long p50;
+  private final long p90;
+  private final long p99;
+  private final long p999;
+  private final long max;
+
+  public LatencySnapshot(Histogram histogram) {
+    this.count = histogram.getTotalCount();
+    this.mean = count == 0 ? 0 : histogram.getMean();
+    this.p50 = histogram.getValueAtPercentile(50);
+    this.p90 = histogram.getValueAtPercentile(90);
+    this.p99 = histogram.getValueAtPercentile(99);
+    this.p999 = histogram.getValueAtPercentile(99.9);
+    this.max = histogram.getMaxValue();
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  public long getP50() {
+    return p50;
+  }
+
+  public long getP90() {
+    return p90;
+  }
+
+  public long getP99() {
+    return p99;
+  }
+
+  public long getP999() {
+    return p999;
+  }
+
+  public long getMax() {
+    return max;
+  }
+}
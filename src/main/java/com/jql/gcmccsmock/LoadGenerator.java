@@ -0,0 +1,325 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Load driver for the mock server, in the same artifact:
+ *
+ *   java -cp ...jar-with-dependencies.jar -DconfigFile=CONFIG_FILE com.jql.gcmccsmock.LoadGenerator
+ *
+ * Opens loadgen.sessions TLS XMPP sessions as the configured xmpp.users/xmpp.passwords and sends
+ * GCM messages at loadgen.rate messages per second for loadgen.duration.sec, spread over the
+ * sessions round-robin. loadgen.port may list several ports, e.g. the nodes of a cluster on one
+ * box; the sessions are spread over them round-robin. Pacing is open-loop: the send schedule
+ * does not wait for responses, and latencies are measured from the scheduled send time, so a
+ * stalled server shows up as latency rather than as a lower send rate. Acks, nacks and receipts
+ * are matched to the sent messages by message_id. Upstream messages from the server
+ * (upstream.enabled) are acked the way a provider would. Progress is printed every
+ * loadgen.report.interval.sec, then a summary with throughput and latency percentiles.
+ *
+ * The server certificate is trusted from keystore.path, the key store the server uses.
+ */
+public class LoadGenerator {
+  private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+  private static final String RECEIPT_ID_PREFIX = "dr2:";
+  private static final String[] RESPONSE_KEYS = {
+      GCMMessageHandler.JSON_MESSAGE_TYPE, GCMMessageHandler.JSON_MESSAGE_ID, GCMMessageHandler.JSON_ERROR,
+      GCMMessageHandler.JSON_FROM};
+
+  private final String host;
+  private final int[] ports;
+  private final String domain;
+  private final String[] users;
+  private final String[] passwords;
+  private final int sessionCount;
+  private final double rate;
+  private final long durationSec;
+  private final long drainSec;
+  private final int regIdCount;
+  private final long reportIntervalSec;
+  private final String payloadData;
+  private final SSLSocketFactory sslSocketFactory;
+
+  // message_id -> scheduled send time (nanoTime), until the ack/nack, then until the receipt
+  private final ConcurrentMap<String, Long> pendingAcks = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Long> pendingReceipts = new ConcurrentHashMap<>();
+  // receipts that overtook their ack; a session's responses are handled by one reader thread
+  private final ConcurrentMap<String, Boolean> earlyReceipts = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AtomicLong> nacksByError = new ConcurrentHashMap<>();
+  private final Recorder ackLatency = new Recorder(3);
+  private final Recorder receiptLatency = new Recorder(3);
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong sendFailures = new AtomicLong();
+  private final AtomicLong acks = new AtomicLong();
+  private final AtomicLong nacks = new AtomicLong();
+  private final AtomicLong receipts = new AtomicLong();
+  private final AtomicLong unmatched = new AtomicLong();
+  private final AtomicLong upstreamAcked = new AtomicLong();
+  private final Histogram totalAckLatency = new Histogram(3);
+  private final Histogram totalReceiptLatency = new Histogram(3);
+
+  public LoadGenerator(Config config) throws Exception {
+    this.domain = config.getProperty("xmpp.domain", "localhost");
+    this.host = config.getProperty("loadgen.host", "localhost");
+    String[] portStrings = config.getProperty("loadgen.port", config.getProperty("xmpp.port", "5235"))
+        .split(MockGCMXmppServer.REGEX_COMMA);
+    this.ports = new int[portStrings.length];
+    for (int i = 0; i < portStrings.length; i++) {
+      ports[i] = Integer.parseInt(portStrings[i]);
+    }
+    String usersString = config.getProperty("xmpp.users", "");
+    String passwordsString = config.getProperty("xmpp.passwords", "");
+    this.users = usersString.split(MockGCMXmppServer.REGEX_COMMA);
+    this.passwords = passwordsString.split(MockGCMXmppServer.REGEX_COMMA);
+    if (usersString.isEmpty() || users.length != passwords.length) {
+      throw new IllegalArgumentException("xmpp.users and xmpp.passwords do not match");
+    }
+    this.sessionCount = Integer.parseInt(config.getProperty("loadgen.sessions", "4"));
+    this.rate = Double.parseDouble(config.getProperty("loadgen.rate", "1000"));
+    this.durationSec = Long.parseLong(config.getProperty("loadgen.duration.sec", "30"));
+    this.drainSec = Long.parseLong(config.getProperty("loadgen.drain.sec", "10"));
+    this.regIdCount = Integer.parseInt(config.getProperty("loadgen.regid.count", "10000"));
+    this.reportIntervalSec = Long.parseLong(config.getProperty("loadgen.report.interval.sec", "5"));
+    this.payloadData = config.getProperty("loadgen.payload.data", "{\"hello\":\"world\"}");
+    if (sessionCount <= 0 || rate <= 0 || regIdCount <= 0 || reportIntervalSec <= 0) {
+      throw new IllegalArgumentException("invalid loadgen settings");
+    }
+    this.sslSocketFactory = createSocketFactory(config);
+  }
+
+  private static SSLSocketFactory createSocketFactory(Config config) throws Exception {
+    String certFile = config.getProperty("keystore.path", "mockgcm.keystore");
+    KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    try (InputStream is = certFile.contains("/") ? new FileInputStream(certFile)
+        : Thread.currentThread().getContextClassLoader().getResourceAsStream(certFile)) {
+      trustStore.load(is, config.getProperty("keystore.password", "password").toCharArray());
+    }
+    TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(trustStore);
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+    return sslContext.getSocketFactory();
+  }
+
+  public void run() throws Exception {
+    List<XmppClientSession> sessions = new ArrayList<>(sessionCount);
+    for (int i = 0; i < sessionCount; i++) {
+      int user = i % users.length;
+      final XmppClientSession session = new XmppClientSession(host, ports[i % ports.length], domain, users[user], passwords[user],
+          "loadgen-" + i, sslSocketFactory);
+      session.connect();
+      session.startReader(new XmppClientSession.StanzaListener() {
+        @Override
+        public void onGCMPayload(String payload) {
+          handleResponse(session, payload);
+        }
+      });
+      sessions.add(session);
+    }
+    logger.info("opened {} sessions to {}:{}, sending {} messages/s for {}s", sessionCount, host, Arrays.toString(ports),
+        rate, durationSec);
+
+    long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(durationSec);
+    long nextReport = start + TimeUnit.SECONDS.toNanos(reportIntervalSec);
+    long lastReport = start;
+    long lastSent = 0;
+    long lastAcks = 0;
+    for (long seq = 0; ; seq++) {
+      long scheduled = start + seq * intervalNanos;
+      if (scheduled >= end) {
+        break;
+      }
+      long now;
+      while ((now = System.nanoTime()) < scheduled) {
+        LockSupport.parkNanos(scheduled - now);
+      }
+      if (now >= nextReport) {
+        long sentNow = sent.get();
+        long acksNow = acks.get() + nacks.get();
+        double seconds = (now - lastReport) / 1e9;
+        logger.info("sent {}/s, acked {}/s, receipts {}, outstanding acks {}, behind schedule {}ms",
+            Math.round((sentNow - lastSent) / seconds), Math.round((acksNow - lastAcks) / seconds),
+            receipts.get(), pendingAcks.size(), TimeUnit.NANOSECONDS.toMillis(now - scheduled));
+        lastReport = now;
+        lastSent = sentNow;
+        lastAcks = acksNow;
+        nextReport += TimeUnit.SECONDS.toNanos(reportIntervalSec);
+      }
+      send(sessions.get((int) (seq % sessionCount)), seq, scheduled);
+    }
+    long sendEnd = System.nanoTime();
+
+    long drainDeadline = sendEnd + TimeUnit.SECONDS.toNanos(drainSec);
+    while ((!pendingAcks.isEmpty() || !pendingReceipts.isEmpty()) && System.nanoTime() < drainDeadline) {
+      Thread.sleep(50);
+    }
+    for (XmppClientSession session : sessions) {
+      session.close();
+    }
+    report((sendEnd - start) / 1e9);
+  }
+
+  private void send(XmppClientSession session, long seq, long scheduled) {
+    String messageId = "lg-" + seq;
+    String regId = "loadgen-regid-" + (seq % regIdCount);
+    StringBuilder payload = new StringBuilder(96 + payloadData.length());
+    payload.append("{\"to\":\"").append(regId).append("\",\"message_id\":\"").append(messageId)
+        .append("\",\"data\":").append(payloadData).append(",\"delivery_receipt_requested\":true}");
+    pendingAcks.put(messageId, scheduled);
+    try {
+      session.sendGCM(messageId, payload.toString());
+      sent.incrementAndGet();
+    } catch (IOException e) {
+      pendingAcks.remove(messageId);
+      if (sendFailures.getAndIncrement() == 0) {
+        logger.error("send failed", e);
+      }
+    }
+  }
+
+  private void handleResponse(XmppClientSession session, String payload) {
+    long now = System.nanoTime();
+    String[] values = new String[RESPONSE_KEYS.length];
+    if (!JsonFieldScanner.scan(payload, RESPONSE_KEYS, values) || values[1] == null) {
+      unmatched.incrementAndGet();
+      return;
+    }
+    String messageType = values[0];
+    String messageId = values[1];
+    if (messageType == null && messageId.startsWith(UpstreamGenerator.UPSTREAM_ID_PREFIX)) {
+      ackUpstream(session, values[3], messageId);
+      return;
+    }
+    if (GCMMessageHandler.JSON_ACK.equals(messageType)) {
+      Long scheduled = pendingAcks.remove(messageId);
+      if (scheduled == null) {
+        unmatched.incrementAndGet();
+        return;
+      }
+      ackLatency.recordValue(Math.max(0, (now - scheduled) / 1000));
+      if (earlyReceipts.remove(messageId) == null) {
+        pendingReceipts.put(messageId, scheduled);
+      }
+      acks.incrementAndGet();
+    } else if (GCMMessageHandler.JSON_NACK.equals(messageType)) {
+      Long scheduled = pendingAcks.remove(messageId);
+      if (scheduled == null) {
+        unmatched.incrementAndGet();
+        return;
+      }
+      ackLatency.recordValue(Math.max(0, (now - scheduled) / 1000));
+      nacks.incrementAndGet();
+      String error = values[2] == null ? "unknown" : values[2];
+      AtomicLong count = nacksByError.get(error);
+      if (count == null) {
+        AtomicLong newCount = new AtomicLong();
+        count = nacksByError.putIfAbsent(error, newCount);
+        if (count == null) {
+          count = newCount;
+        }
+      }
+      count.incrementAndGet();
+    } else if (GCMMessageHandler.JSON_RECEIPT.equals(messageType)) {
+      String originalId = messageId.startsWith(RECEIPT_ID_PREFIX) ? messageId.substring(RECEIPT_ID_PREFIX.length()) : messageId;
+      Long scheduled = pendingReceipts.remove(originalId);
+      if (scheduled == null) {
+        // the receipt can overtake the ack
+        scheduled = pendingAcks.get(originalId);
+        if (scheduled != null) {
+          earlyReceipts.put(originalId, Boolean.TRUE);
+        }
+      }
+      if (scheduled == null) {
+        unmatched.incrementAndGet();
+        return;
+      }
+      receiptLatency.recordValue(Math.max(0, (now - scheduled) / 1000));
+      receipts.incrementAndGet();
+    }
+  }
+
+  private void ackUpstream(XmppClientSession session, String from, String messageId) {
+    StringBuilder ack = new StringBuilder(96);
+    ack.append("{\"to\":\"").append(from).append("\",\"message_id\":\"").append(messageId)
+        .append("\",\"message_type\":\"ack\"}");
+    try {
+      session.sendGCM("", ack.toString());
+      upstreamAcked.incrementAndGet();
+    } catch (IOException e) {
+      logger.warn("failed to ack upstream message {}", messageId);
+    }
+  }
+
+  private void report(double sendSeconds) {
+    totalAckLatency.add(ackLatency.getIntervalHistogram());
+    totalReceiptLatency.add(receiptLatency.getIntervalHistogram());
+    Map<String, Long> nackErrors = new TreeMap<>();
+    for (Map.Entry<String, AtomicLong> entry : nacksByError.entrySet()) {
+      nackErrors.put(entry.getKey(), entry.getValue().get());
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("sent: %d in %.1fs (%.0f/s, target %.0f/s), send failures: %d%n",
+        sent.get(), sendSeconds, sent.get() / sendSeconds, rate, sendFailures.get()));
+    sb.append(String.format("acks: %d, nacks: %d %s, receipts: %d, unmatched: %d%n",
+        acks.get(), nacks.get(), nackErrors, receipts.get(), unmatched.get()));
+    sb.append(String.format("missing: %d acks, %d receipts%n", pendingAcks.size(), pendingReceipts.size()));
+    if (upstreamAcked.get() > 0) {
+      sb.append(String.format("upstream messages acked: %d%n", upstreamAcked.get()));
+    }
+    appendPercentiles(sb, "ack/nack latency ms", totalAckLatency);
+    appendPercentiles(sb, "receipt latency ms", totalReceiptLatency);
+    System.out.print(sb);
+  }
+
+  private static void appendPercentiles(StringBuilder sb, String name, Histogram histogram) {
+    sb.append(String.format("%s: p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n", name,
+        histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+        histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+        histogram.getMaxValue() / 1000.0));
+  }
+
+  public static void main(String[] argv) throws Exception {
+    new LoadGenerator(new Config()).run();
+    System.exit(0);
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jql.gcmccsmock;
+
+import java.util.Arrays;
+
+/**
+ * LZ4 block format compressor and decompressor with an optional preset dictionary.
+ *
+ * The dictionary acts as history in front of the payload: matches may reach back into it,
+ * so short payloads made of the same keys compress well. The dictionary's hash table is
+ * built once and copied for each payload. Greedy parsing with a 4-byte hash, no acceleration;
+ * the output is a plain LZ4 block that any LZ4 decoder given the same dictionary can read.
+ */
+final class Lz4Block {
+
+  static final int MAX_DICTIONARY_BYTES = 65535;
+
+  private static final int MIN_MATCH = 4;
+  // the last match must start this far before the end, the last bytes are always literals
+  private static final int MF_LIMIT = 12;
+  private static final int LAST_LITERALS = 5;
+  private static final int MAX_OFFSET = 65535;
+  private static final int HASH_BITS = 12;
+  private static final int RUN_MASK = 15;
+  private static final int ML_MASK = 15;
+
+  private final byte[] dictionary;
+  private final int[] dictionaryTable;
+  // per thread: the dictionary followed by room for the payload, and the hash table
+  private final ThreadLocal<byte[]> inputBuffer = new ThreadLocal<>();
+  private final ThreadLocal<int[]> hashTable = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1 << HASH_BITS];
+    }
+  };
+
+  /**
+   * @param dictionary may be empty; only the last MAX_DICTIONARY_BYTES are used
+   */
+  Lz4Block(byte[] dictionary) {
+    int length = Math.min(dictionary.length, MAX_DICTIONARY_BYTES);
+    this.dictionary = Arrays.copyOfRange(dictionary, dictionary.length - length, dictionary.length);
+    this.dictionaryTable = new int[1 << HASH_BITS];
+    Arrays.fill(dictionaryTable, -1);
+    for (int i = 0; i + MIN_MATCH <= this.dictionary.length; i++) {
+      dictionaryTable[hash(readInt(this.dictionary, i))] = i;
+    }
+  }
+
+  static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * @param src
+   * @param dst at least maxCompressedLength(src.length) from dstOffset
+   * @param dstOffset
+   * @return the end of the block in dst
+   */
+  int compress(byte[] src, byte[] dst, int dstOffset) {
+    int base = dictionary.length;
+    byte[] in = inputBuffer.get();
+    if (in == null || in.length < base + src.length) {
+      in = Arrays.copyOf(dictionary, base + Math.max(src.length, 1024));
+      inputBuffer.set(in);
+    }
+    System.arraycopy(src, 0, in, base, src.length);
+    int[] table = hashTable.get();
+    System.arraycopy(dictionaryTable, 0, table, 0, table.length);
+
+    int end = base + src.length;
+    int matchLimit = end - LAST_LITERALS;
+    int mfLimit = end - MF_LIMIT;
+    int anchor = base;
+    int pos = base;
+    int op = dstOffset;
+    while (pos < mfLimit) {
+      int sequence = readInt(in, pos);
+      int h = hash(sequence);
+      int ref = table[h];
+      table[h] = pos;
+      if (ref < 0 || pos - ref > MAX_OFFSET || readInt(in, ref) != sequence) {
+        pos++;
+        continue;
+      }
+      // extend backwards over pending literals, then forwards
+      while (pos > anchor && ref > 0 && in[pos - 1] == in[ref - 1]) {
+        pos--;
+        ref--;
+      }
+      int matchLength = MIN_MATCH;
+      while (pos + matchLength < matchLimit && in[ref + matchLength] == in[pos + matchLength]) {
+        matchLength++;
+      }
+      op = writeSequence(in, anchor, pos - anchor, pos - ref, matchLength, dst, op);
+      pos += matchLength;
+      anchor = pos;
+    }
+    return writeLiterals(in, anchor, end - anchor, dst, op);
+  }
+
+  private static int writeSequence(byte[] in, int literalStart, int literalLength, int offset, int matchLength,
+                                   byte[] dst, int op) {
+    int tokenPos = op++;
+    int token = (Math.min(literalLength, RUN_MASK) << 4) | Math.min(matchLength - MIN_MATCH, ML_MASK);
+    dst[tokenPos] = (byte) token;
+    op = writeLength(literalLength, RUN_MASK, dst, op);
+    System.arraycopy(in, literalStart, dst, op, literalLength);
+    op += literalLength;
+    dst[op++] = (byte) offset;
+    dst[op++] = (byte) (offset >>> 8);
+    return writeLength(matchLength - MIN_MATCH, ML_MASK, dst, op);
+  }
+
+  private static int writeLiterals(byte[] in, int literalStart, int literalLength, byte[] dst, int op) {
+    dst[op++] = (byte) (Math.min(literalLength, RUN_MASK) << 4);
+    op = writeLength(literalLength, RUN_MASK, dst, op);
+    System.arraycopy(in, literalStart, dst, op, literalLength);
+    return op + literalLength;
+  }
+
+  private static int writeLength(int length, int mask, byte[] dst, int op) {
+    if (length < mask) {
+      return op;
+    }
+    length -= mask;
+    while (length >= 255) {
+      dst[op++] = (byte) 255;
+      length -= 255;
+    }
+    dst[op++] = (byte) length;
+    return op;
+  }
+
+  /**
+   * @param src
+   * @param offset start of the block
+   * @param length of the block
+   * @param rawLength length of the payload
+   * @return the payload
+   * @throws IllegalArgumentException if the block is corrupt
+   */
+  byte[] decompress(byte[] src, int offset, int length, int rawLength) {
+    int base = dictionary.length;
+    byte[] out = new byte[base + rawLength];
+    System.arraycopy(dictionary, 0, out, 0, base);
+    int ip = offset;
+    int end = offset + length;
+    int op = base;
+    try {
+      for (;;) {
+        int token = src[ip++] & 0xff;
+        int literalLength = token >>> 4;
+        if (literalLength == RUN_MASK) {
+          int b;
+          do {
+            b = src[ip++] & 0xff;
+            literalLength += b;
+          } while (b == 255);
+        }
+        System.arraycopy(src, ip, out, op, literalLength);
+        ip += literalLength;
+        op += literalLength;
+        if (ip >= end) {
+          break;
+        }
+        int matchOffset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+        ip += 2;
+        int matchLength = token & ML_MASK;
+        if (matchLength == ML_MASK) {
+          int b;
+          do {
+            b = src[ip++] & 0xff;
+            matchLength += b;
+          } while (b == 255);
+        }
+        matchLength += MIN_MATCH;
+        int ref = op - matchOffset;
+        if (matchOffset == 0 || ref < 0) {
+          throw new IllegalArgumentException("invalid match offset " + matchOffset);
+        }
+        // byte by byte, a match may overlap its own output
+        for (int i = 0; i < matchLength; i++) {
+          out[op++] = out[ref++];
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("corrupt LZ4 block", e);
+    }
+    if (op != out.length) {
+      throw new IllegalArgumentException("LZ4 block decodes to " + (op - base) + " bytes, expected " + rawLength);
+    }
+    return base == 0 ? out : Arrays.copyOfRange(out, base, out.length);
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | (b[i + 3] << 24);
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_BITS);
+  }
+}
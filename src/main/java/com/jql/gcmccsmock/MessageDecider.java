@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how the mock CCS answers a parsed incoming message: overload and flow control nacks,
+ * duplicates, response rules, the device rate limit, and otherwise an ack, a receipt and, for
+ * draining devices, a control message. The responses and their delays are written into the
+ * MessageEvent; the caller turns them into relay jobs or schedules them on the pipeline.
+ */
+final class MessageDecider {
+  private static final Logger logger = LoggerFactory.getLogger(MessageDecider.class);
+
+  // flow control nacks go out right away
+  private static final long FLOW_CONTROL_NACK_DELAY_NS = 0;
+
+  private final FlowController flowController;
+  private final DelayProfiles delayProfiles;
+  private final ResponseRules responseRules;
+  private final DeviceRateLimiter deviceRateLimiter;
+  private final DuplicateDetector duplicateDetector;
+  private final UpstreamGenerator upstreamGenerator;
+  private final MessageTracer messageTracer;
+  private final ClusterState clusterState;
+  private final MessageRelayManager messageRelayManager;
+  private final ResponseTemplate flowControlNack;
+  private final boolean messageStoreEnabled;
+
+  MessageDecider(ServiceContext serviceContext) {
+    this.flowController = serviceContext.getFlowController();
+    this.delayProfiles = serviceContext.getDelayProfiles();
+    this.responseRules = serviceContext.getResponseRules();
+    this.deviceRateLimiter = serviceContext.getDeviceRateLimiter();
+    this.duplicateDetector = serviceContext.getDuplicateDetector();
+    this.upstreamGenerator = serviceContext.getUpstreamGenerator();
+    this.messageTracer = serviceContext.getMessageTracer();
+    this.clusterState = serviceContext.getClusterState();
+    this.messageRelayManager = serviceContext.getMessageRelayManager();
+    this.flowControlNack = ResponseRenderer.compileNack(flowController.getNackError(),
+        "Too many unacknowledged messages on this connection");
+    this.messageStoreEnabled = Boolean.parseBoolean(
+        serviceContext.getConfig().getProperty("message.store.enabled", "true"));
+  }
+
+  /**
+   * decide the responses of a parsed event
+   *
+   * @param event
+   * @return false if the message gets no response at all
+   */
+  boolean decide(MessageEvent event) {
+    if (!event.wellFormed) {
+      logger.warn("ignoring malformed GCM message: {}", event.incomingMessage);
+      return false;
+    }
+    String messageType = event.getMessageType();
+    if (GCMMessageHandler.JSON_ACK.equals(messageType) || GCMMessageHandler.JSON_NACK.equals(messageType)) {
+      // the provider acknowledging an upstream message or a delivery receipt; CCS does not respond
+      upstreamGenerator.onProviderAck(event.getMessageId(), GCMMessageHandler.JSON_NACK.equals(messageType));
+      return false;
+    }
+    String to = event.getRegId();
+    String messageId = event.getMessageId();
+    if (to == null) {
+      logger.warn("ignoring GCM message without a 'to' field: {}", event.incomingMessage);
+      return false;
+    }
+    messageTracer.trace(MessageTracer.EVENT_RECEIVED, messageId, to);
+
+    // an overloaded relay queue sheds the message right away; the nack does not queue behind the backlog
+    if (messageRelayManager.shouldRejectIngress()) {
+      logger.debug("relay queue full, nacking message. message_id={}", messageId);
+      event.respond(ResponseRenderer.NACK_OVERLOADED, 0, false);
+      event.immediate = true;
+      return true;
+    }
+
+    // the message counts against the connection's window until its ack/nack is relayed
+    AtomicInteger inFlight = null;
+    if (flowController.isEnabled()) {
+      inFlight = flowController.acquire(event.sessionContext);
+      if (inFlight == null) {
+        logger.warn("flow control window of {} exceeded, nacking message. message_id={}",
+            flowController.getWindow(), messageId);
+        event.respond(flowControlNack, FLOW_CONTROL_NACK_DELAY_NS, false);
+        return true;
+      }
+    }
+
+    // a retry may come in on another node's connection
+    if (duplicateDetector.isEnabled() && messageId != null
+        && (duplicateDetector.isDuplicate(event.sessionContext, messageId) || clusterState.isEnabled()
+            && clusterState.isDuplicate(event.sessionContext.getInitiatingEntity().getNode(), to, messageId))) {
+      logger.debug("duplicate message_id, nacking message. message_id={}", messageId);
+      event.releaseWith(event.respond(duplicateDetector.getNackTemplate(),
+          delayProfiles.sampleNanos(DelayProfiles.ResponseType.NACK), false), inFlight);
+      return true;
+    }
+
+    // a device rule set for the cluster wins over the rules file
+    ResponseRule rule = clusterState.isEnabled() ? clusterState.matchDeviceRule(to) : null;
+    if (rule == null) {
+      rule = responseRules.match(to);
+    }
+    ResponseRule.Action action = rule == null ? ResponseRule.Action.ACK : rule.getAction();
+    if (action == ResponseRule.Action.DROP) {
+      logger.debug("dropping message by rule {}. message_id={}", rule, messageId);
+      messageTracer.trace(MessageTracer.EVENT_DROPPED, messageId, to);
+      if (inFlight != null) {
+        inFlight.decrementAndGet();
+      }
+      return true;
+    }
+
+    if (action == ResponseRule.Action.NACK) {
+      event.releaseWith(event.respond(rule.getResponse(), delay(rule, DelayProfiles.ResponseType.NACK), false),
+          inFlight);
+      return true;
+    }
+
+    // CCS limits the rate of messages per device
+    if (deviceRateLimiter.isEnabled()
+        && !(clusterState.isEnabled() ? clusterState.tryAcquire(to) : deviceRateLimiter.tryAcquire(to))) {
+      logger.debug("device message rate exceeded, nacking message. to={}, message_id={}", to, messageId);
+      event.releaseWith(event.respond(ResponseRenderer.NACK_RATE_EXCEEDED,
+          delayProfiles.sampleNanos(DelayProfiles.ResponseType.NACK), false), inFlight);
+      return true;
+    }
+
+    ResponseTemplate ackTemplate = rule == null || rule.getResponse() == null ? ResponseRenderer.ACK : rule.getResponse();
+    event.releaseWith(event.respond(ackTemplate, delay(rule, DelayProfiles.ResponseType.ACK), false), inFlight);
+    int receipt = event.respond(ResponseRenderer.RECEIPT, delay(rule, DelayProfiles.ResponseType.RECEIPT), true);
+    if (messageStoreEnabled) {
+      event.storeIndex = receipt;
+    }
+
+    // draining control message test
+    if (action == ResponseRule.Action.DRAIN) {
+      event.respond(ResponseRenderer.DRAINING, delayProfiles.sampleNanos(DelayProfiles.ResponseType.CONTROL), true);
+    }
+    return true;
+  }
+
+  /**
+   * @return the delay set by the rule, or one drawn from the response type's distribution
+   */
+  private long delay(ResponseRule rule, DelayProfiles.ResponseType type) {
+    long ruleDelay = -1;
+    if (rule != null) {
+      ruleDelay = type == DelayProfiles.ResponseType.RECEIPT ? rule.getReceiptDelayNanos() : rule.getAckDelayNanos();
+    }
+    return ruleDelay >= 0 ? ruleDelay : delayProfiles.sampleNanos(type);
+  }
+}
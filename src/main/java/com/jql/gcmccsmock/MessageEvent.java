@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jql.gcmccsmock;
+
+import org.apache.vysper.xmpp.server.SessionContext;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One incoming message on its way from ingress to relay: a slot of the RelayPipeline ring,
+ * or the handler's per-thread scratch event when the pipeline is off.
+ *
+ * Each stage owns a group of fields and only touches the ones written by earlier stages:
+ * ingress fills in the session and payload, parse the scanned fields, decide the responses
+ * (up to one ack/nack, one receipt and one control message), and the relay stage the wheel
+ * bookkeeping. Slots are allocated once and cleared for reuse, so the arrays live next to
+ * their event and a message costs no job objects.
+ */
+final class MessageEvent {
+
+  static final int MAX_RESPONSES = 3;
+
+  // ingress
+  SessionContext sessionContext;
+  ResponseRelayJob.Target target;
+  String stanzaId;
+  String incomingMessage;
+  long ingressNanos;
+
+  // parse
+  final String[] fields = new String[GCMMessage.FIELD_COUNT];
+  boolean wellFormed;
+
+  // decide
+  int responseCount;
+  final ResponseTemplate[] templates = new ResponseTemplate[MAX_RESPONSES];
+  final long[] delayNanos = new long[MAX_RESPONSES];
+  final boolean[] sheddable = new boolean[MAX_RESPONSES];
+  // the response that releases the flow control window, -1 if none
+  int releaseIndex = -1;
+  AtomicInteger inFlightCounter;
+  // the response the incoming message is stored with, -1 if it is not stored
+  int storeIndex = -1;
+  // relayed right away instead of being scheduled
+  boolean immediate;
+
+  // relay: responses still to fire; the slot is free again at zero
+  int pending;
+
+  // written last by the publishing thread
+  volatile long sequence = -1;
+
+  void set(SessionContext sessionContext, ResponseRelayJob.Target target, String stanzaId, String incomingMessage,
+           long ingressNanos) {
+    this.sessionContext = sessionContext;
+    this.target = target;
+    this.stanzaId = stanzaId;
+    this.incomingMessage = incomingMessage;
+    this.ingressNanos = ingressNanos;
+  }
+
+  /**
+   * scan the payload
+   *
+   * @return false if it is not a JSON object
+   */
+  boolean parse() {
+    wellFormed = GCMMessage.scan(incomingMessage, fields);
+    return wellFormed;
+  }
+
+  String getRegId() {
+    return fields[GCMMessage.TO];
+  }
+
+  String getMessageId() {
+    return fields[GCMMessage.MESSAGE_ID];
+  }
+
+  String getMessageType() {
+    return fields[GCMMessage.MESSAGE_TYPE];
+  }
+
+  /**
+   * add a response to the message
+   *
+   * @return its index
+   */
+  int respond(ResponseTemplate template, long delayNanos, boolean sheddable) {
+    int index = responseCount++;
+    templates[index] = template;
+    this.delayNanos[index] = delayNanos;
+    this.sheddable[index] = sheddable;
+    return index;
+  }
+
+  /**
+   * the response at index releases the connection's flow control window once relayed
+   */
+  void releaseWith(int index, AtomicInteger inFlightCounter) {
+    if (inFlightCounter != null) {
+      this.releaseIndex = index;
+      this.inFlightCounter = inFlightCounter;
+    }
+  }
+
+  /**
+   * drop the references of the message so the slot does not keep it alive
+   */
+  void clear() {
+    sessionContext = null;
+    target = null;
+    stanzaId = null;
+    incomingMessage = null;
+    Arrays.fill(fields, null);
+    wellFormed = false;
+    Arrays.fill(templates, 0, responseCount, null);
+    responseCount = 0;
+    releaseIndex = -1;
+    inFlightCounter = null;
+    storeIndex = -1;
+    immediate = false;
+    pending = 0;
+  }
+}
@@ -20,52 +20,89 @@ package com.jql.gcmccsmock;
 import org.apache.vysper.xml.fragment.XMLSemanticError;
 import org.apache.vysper.xmpp.addressing.Entity;
 import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
-import org.apache.vysper.xmpp.delivery.failure.IgnoreFailureStrategy;
 import org.apache.vysper.xmpp.server.ServerRuntimeContext;
 import org.apache.vysper.xmpp.stanza.Stanza;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * ScheduledJob for relaying an outbound message/stanza to the provider
+ * ScheduledJob for relaying a prebuilt outbound message/stanza to the provider.
+ * The responses to incoming messages use the compact ResponseRelayJob instead.
  *
  * @author dennisli
  * 7/12/15.
  */
 public class MessageRelayJobImpl extends ScheduledJob {
-  final Logger logger = LoggerFactory.getLogger(MessageRelayJobImpl.class);
+  private static final Logger logger = LoggerFactory.getLogger(MessageRelayJobImpl.class);
 
   private Entity receiver;
   private Stanza stanza;
   private ServerRuntimeContext serverRuntimeContext;
   private String regId;
   private String incomingMessage;
+  private AtomicInteger inFlightCounter;
+  private boolean sheddable;
 
-  public MessageRelayJobImpl(long delay, Entity receiver, Stanza stanza, ServerRuntimeContext serverRuntimeContext) {
-    super(delay);
+  public MessageRelayJobImpl(long delay, TimeUnit unit, Entity receiver, Stanza stanza, ServerRuntimeContext serverRuntimeContext) {
+    super(delay, unit);
     this.receiver = receiver;
     this.stanza = stanza;
     this.serverRuntimeContext = serverRuntimeContext;
   }
 
-  public MessageRelayJobImpl(long delay, Entity receiver, Stanza stanza, ServerRuntimeContext serverRuntimeContext, String regId, String incomingMessage) {
-    this(delay, receiver, stanza, serverRuntimeContext);
+  public MessageRelayJobImpl(long delay, TimeUnit unit, Entity receiver, Stanza stanza, ServerRuntimeContext serverRuntimeContext,
+                             String regId, String incomingMessage) {
+    this(delay, unit, receiver, stanza, serverRuntimeContext);
     this.regId = regId;
     this.incomingMessage = incomingMessage;
   }
 
+  /**
+   * flow control counter of the connection, released once this job has relayed its stanza
+   *
+   * @param inFlightCounter may be null
+   */
+  public void setInFlightCounter(AtomicInteger inFlightCounter) {
+    this.inFlightCounter = inFlightCounter;
+  }
+
+  /**
+   * @param sheddable true for stanzas that may be dropped under overload, i.e. receipts
+   */
+  public void setSheddable(boolean sheddable) {
+    this.sheddable = sheddable;
+  }
+
+  @Override
+  public boolean isSheddable() {
+    return sheddable;
+  }
+
+  @Override
+  public Object getRoutingKey() {
+    return receiver;
+  }
+
   @Override
   public boolean execute(MessageRelayManager messageRelayManager) {
     try {
       if (incomingMessage != null) {
-        logger.debug("storing message into message store. regId={}, incomingMessage={}", regId, incomingMessage);
-        messageRelayManager.getGCMMessageStore().storeMessage(regId, incomingMessage);
+        messageRelayManager.storeMessage(regId, incomingMessage);
+      }
+      if (messageRelayManager.getMessageTracer().isPayloadLogging()) {
+        logger.info("relaying message: {}", stanza.getInnerElements().get(0).getSingleInnerText().getText());
       }
-      logger.info("relaying message: {}", stanza.getInnerElements().get(0).getSingleInnerText().getText());
-      serverRuntimeContext.getStanzaRelay().relay(receiver, stanza, new IgnoreFailureStrategy());
+      messageRelayManager.relay(this, serverRuntimeContext, receiver, stanza);
     } catch (DeliveryException | XMLSemanticError e) {
       logger.warn("failed to relay message", e);
       return false;
+    } finally {
+      if (inFlightCounter != null) {
+        inFlightCounter.decrementAndGet();
+      }
     }
 
     return true;
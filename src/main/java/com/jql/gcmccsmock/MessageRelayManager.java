@@ -16,14 +16,19 @@
 
 package com.jql.gcmccsmock;
 
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
+import org.apache.vysper.xmpp.delivery.failure.IgnoreFailureStrategy;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.apache.vysper.xmpp.stanza.Stanza;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.DelayQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.inject.Singleton;
 import javax.inject.Inject;
 
@@ -35,65 +40,392 @@ import javax.inject.Inject;
  * 7/9/15.
  */
 @Singleton
-public class MessageRelayManager {
+public class MessageRelayManager implements JobDispatcher {
   final Logger logger = LoggerFactory.getLogger(MessageRelayManager.class);
 
-  private final ExecutorService executorService;
-  private static final int EXECUTOR_POOL_SIZE = 6;
+  private static final String DEFAULT_EXECUTOR_POOL_SIZE = "6";
 
-  private final DelayQueue<ScheduledJob> queue;
+  private static final String ENGINE_POOLED = "pooled";
+  private static final String ENGINE_SHARDED = "sharded";
+
+  private static final String FAST_PATH_OFF = "off";
+  private static final String FAST_PATH_INLINE = "inline";
+  private static final String FAST_PATH_HANDOFF = "handoff";
+
+  private static final String EXECUTOR_FIXED = "fixed";
+  private static final String EXECUTOR_VIRTUAL_JOB = "virtual-job";
+  private static final String EXECUTOR_VIRTUAL_SESSION = "virtual-session";
+
+  private static final String OVERLOAD_BLOCK = "block";
+  private static final String OVERLOAD_NACK = "nack";
+  private static final String OVERLOAD_SHED_RECEIPTS = "shed-receipts";
+  private static final long BLOCK_WAIT_MS = 10;
+
+  // pooled engine: one scheduler feeding the shared executor
+  private ExecutorService executorService;
+  private RelayScheduler scheduler;
   private Future<?> schedulerFuture;
-  private AtomicBoolean keepRunning;
+  private int workerCount;
+  // virtual executor modes: the scheduler runs on its own platform thread
+  private Thread schedulerThread;
+  // virtual-session mode: one lane (and virtual thread while busy) per receiver
+  private SessionLaneExecutor sessionLanes;
+  // sharded engine: jobs are routed to a shard by their receiver
+  private RelayShard[] shards;
+
+  private final RelayMetrics relayMetrics;
+  // jobs due when added: relayed on the caller thread, handed to the executor, or scheduled like any other
+  private final boolean fastPathInline;
+  private final boolean fastPathHandoff;
+  // null unless relay.coalesce.enabled
+  private final StanzaWriteCoalescer writeCoalescer;
+
+  // overload control: jobs admitted and not executed yet, bounded by queueCapacity (0: unbounded)
+  private final AtomicInteger admittedJobs = new AtomicInteger();
+  private final AtomicInteger admittedJobMax = new AtomicInteger();
+  private final AtomicInteger blockedCallers = new AtomicInteger();
+  private final Object roomSignal = new Object();
+  private final int queueCapacity;
+  private final int shedThreshold;
+  private final boolean overloadNack;
+  private final boolean overloadShed;
+
   @Inject GCMMessageStore gcmMessageStore;
+  @Inject MessageTracer messageTracer;
 
   @Inject
-  public MessageRelayManager() {
-    this.queue = new DelayQueue<>();
-    this.executorService = Executors.newFixedThreadPool(EXECUTOR_POOL_SIZE);
-    this.keepRunning = new AtomicBoolean(true);
-    schedulerFuture = executorService.submit(new JobScheduler(this));
+  public MessageRelayManager(Config config, RelayMetrics relayMetrics) {
+    this.relayMetrics = relayMetrics;
+    RelaySchedulerFactory schedulerFactory = new RelaySchedulerFactory(config);
+    String engine = config.getProperty("relay.engine", ENGINE_POOLED);
+    if (ENGINE_SHARDED.equalsIgnoreCase(engine)) {
+      int shardCount = Integer.parseInt(config.getProperty("relay.shards", "0"));
+      if (shardCount <= 0) {
+        shardCount = Runtime.getRuntime().availableProcessors();
+      }
+      shards = new RelayShard[shardCount];
+      for (int i = 0; i < shardCount; i++) {
+        shards[i] = new RelayShard(this, schedulerFactory, i);
+        shards[i].start();
+      }
+      logger.info("using sharded relay engine. shards={}, scheduler={}", shardCount, schedulerFactory);
+    } else if (ENGINE_POOLED.equalsIgnoreCase(engine)) {
+      this.scheduler = schedulerFactory.create(this);
+      String executor = config.getProperty("relay.executor", EXECUTOR_FIXED);
+      if (EXECUTOR_FIXED.equalsIgnoreCase(executor)) {
+        int poolSize = Integer.parseInt(config.getProperty("relay.executor.pool.size", DEFAULT_EXECUTOR_POOL_SIZE));
+        if (poolSize < 2) {
+          throw new IllegalArgumentException("relay.executor.pool.size must be at least 2: " + poolSize);
+        }
+        this.executorService = Executors.newFixedThreadPool(poolSize);
+        // the scheduler loop occupies one of the pool threads
+        this.workerCount = poolSize - 1;
+        schedulerFuture = executorService.submit(scheduler);
+      } else if (EXECUTOR_VIRTUAL_JOB.equalsIgnoreCase(executor) || EXECUTOR_VIRTUAL_SESSION.equalsIgnoreCase(executor)) {
+        this.executorService = VirtualThreads.newThreadPerTaskExecutor("relay-vt-");
+        if (EXECUTOR_VIRTUAL_SESSION.equalsIgnoreCase(executor)) {
+          this.sessionLanes = new SessionLaneExecutor(executorService);
+        }
+        // virtual threads are multiplexed over the carrier threads
+        this.workerCount = Runtime.getRuntime().availableProcessors();
+        schedulerThread = new Thread(scheduler, "relay-scheduler");
+        schedulerThread.setDaemon(true);
+        schedulerThread.start();
+      } else {
+        throw new IllegalArgumentException("unknown relay.executor: " + executor);
+      }
+      logger.info("using pooled relay engine. scheduler={}, executor={}", schedulerFactory, executor);
+    } else {
+      throw new IllegalArgumentException("unknown relay.engine: " + engine);
+    }
+
+    String fastPath = config.getProperty("relay.fastpath", FAST_PATH_OFF);
+    this.fastPathInline = FAST_PATH_INLINE.equalsIgnoreCase(fastPath);
+    this.fastPathHandoff = FAST_PATH_HANDOFF.equalsIgnoreCase(fastPath);
+    if (!fastPathInline && !fastPathHandoff && !FAST_PATH_OFF.equalsIgnoreCase(fastPath)) {
+      throw new IllegalArgumentException("unknown relay.fastpath: " + fastPath);
+    }
+    if (fastPathHandoff && shards != null) {
+      // a shard's only thread is its scheduler, there is nothing to hand off to
+      throw new IllegalArgumentException("relay.fastpath=handoff needs relay.engine=pooled");
+    }
+    logger.info("zero delay fast path: {}", fastPath);
+
+    if (Boolean.parseBoolean(config.getProperty("relay.coalesce.enabled", "false"))) {
+      int maxBatch = Integer.parseInt(config.getProperty("relay.coalesce.max.batch", "64"));
+      long lingerUs = Long.parseLong(config.getProperty("relay.coalesce.linger.us", "0"));
+      this.writeCoalescer = new StanzaWriteCoalescer(maxBatch, TimeUnit.MICROSECONDS.toNanos(lingerUs), relayMetrics);
+      logger.info("coalescing session writes. max batch={}, linger={}us; coalesced stanzas bypass Vysper's"
+          + " session writer and may reorder against stanzas Vysper writes itself", maxBatch, lingerUs);
+    } else {
+      this.writeCoalescer = null;
+    }
+
+    this.queueCapacity = Integer.parseInt(config.getProperty("relay.queue.capacity", "0"));
+    String overloadPolicy = config.getProperty("relay.overload.policy", OVERLOAD_BLOCK);
+    this.overloadNack = OVERLOAD_NACK.equalsIgnoreCase(overloadPolicy);
+    this.overloadShed = OVERLOAD_SHED_RECEIPTS.equalsIgnoreCase(overloadPolicy);
+    if (!overloadNack && !overloadShed && !OVERLOAD_BLOCK.equalsIgnoreCase(overloadPolicy)) {
+      throw new IllegalArgumentException("unknown relay.overload.policy: " + overloadPolicy);
+    }
+    double shedFraction = Double.parseDouble(config.getProperty("relay.overload.shed.threshold", "0.8"));
+    if (queueCapacity < 0 || shedFraction <= 0 || shedFraction > 1) {
+      throw new IllegalArgumentException("invalid relay.queue.capacity or relay.overload.shed.threshold");
+    }
+    this.shedThreshold = (int) Math.ceil(queueCapacity * shedFraction);
+    if (queueCapacity > 0) {
+      logger.info("relay queue capacity: {}, overload policy: {}", queueCapacity, overloadPolicy);
+    }
   }
 
   public GCMMessageStore getGCMMessageStore() {
     return gcmMessageStore;
   }
 
+  public MessageTracer getMessageTracer() {
+    return messageTracer;
+  }
+
+  public RelayMetrics getRelayMetrics() {
+    return relayMetrics;
+  }
+
+  /**
+   * persist an incoming message on behalf of a job, timing the store write
+   *
+   * @param regId
+   * @param message
+   */
+  public void storeMessage(String regId, String message) {
+    logger.debug("storing message into message store. regId={}, incomingMessage={}", regId, message);
+    long storeStart = System.nanoTime();
+    gcmMessageStore.storeMessage(regId, message);
+    relayMetrics.recordStoreWrite(System.nanoTime() - storeStart);
+  }
+
+  /**
+   * write a job's stanza to the provider, through the write coalescer if enabled
+   *
+   * @param job
+   * @param serverRuntimeContext
+   * @param receiver
+   * @param stanza
+   * @throws DeliveryException
+   */
+  public void relay(ScheduledJob job, ServerRuntimeContext serverRuntimeContext, Entity receiver, Stanza stanza)
+      throws DeliveryException {
+    relay(job.getScheduledNanoTime(), serverRuntimeContext, receiver, stanza);
+  }
+
+  /**
+   * write a stanza due at scheduledNanoTime to the provider, through the write coalescer if enabled
+   *
+   * @param scheduledNanoTime System.nanoTime() the stanza was due at
+   * @param serverRuntimeContext
+   * @param receiver
+   * @param stanza
+   * @throws DeliveryException
+   */
+  public void relay(long scheduledNanoTime, ServerRuntimeContext serverRuntimeContext, Entity receiver, Stanza stanza)
+      throws DeliveryException {
+    if (writeCoalescer == null || !writeCoalescer.write(serverRuntimeContext, receiver, stanza)) {
+      serverRuntimeContext.getStanzaRelay().relay(receiver, stanza, new IgnoreFailureStrategy());
+    }
+    relayMetrics.recordRelayed(scheduledNanoTime);
+  }
+
+  /**
+   * @return the session write coalescer, null if relay.coalesce.enabled is off
+   */
+  public StanzaWriteCoalescer getWriteCoalescer() {
+    return writeCoalescer;
+  }
+
+  /**
+   * @return number of threads executing due jobs
+   */
+  public int getWorkerCount() {
+    return shards != null ? shards.length : workerCount;
+  }
+
   public boolean shutdown() {
-    this.keepRunning.set(false);
+    if (shards != null) {
+      for (RelayShard shard : shards) {
+        shard.stop();
+      }
+    } else {
+      scheduler.stop();
+      if (schedulerThread != null) {
+        schedulerThread.interrupt();
+      } else {
+        schedulerFuture.cancel(true);
+      }
+      executorService.shutdown();
+    }
+    if (writeCoalescer != null) {
+      writeCoalescer.shutdown();
+    }
     gcmMessageStore.shutdown();
-    queue.clear();
-    schedulerFuture.cancel(true);
+    return true;
+  }
+
+  /**
+   * relay.overload.policy=nack: whether an incoming message should be nacked right away
+   * instead of having its responses queued. Counts the nack.
+   *
+   * @return
+   */
+  public boolean shouldRejectIngress() {
+    if (!overloadNack || queueCapacity == 0 || admittedJobs.get() < queueCapacity) {
+      return false;
+    }
+    relayMetrics.recordOverloadNack();
     return true;
   }
 
   public boolean addJob(ScheduledJob job) {
-    return queue.add(job);
-  }
-
-  private class JobScheduler implements Runnable {
-    private MessageRelayManager messageRelayManager;
-
-    public JobScheduler(MessageRelayManager relayManager) {
-      this.messageRelayManager = relayManager;
-    }
-
-    @SuppressWarnings("unchecked")
-    @Override
-    public void run() {
-      while (keepRunning.get()) {
-        try {
-          final ScheduledJob scheduledJob = queue.take();
-          executorService.execute(new Runnable() {
-            @Override
-            public void run() {
-              scheduledJob.execute(messageRelayManager);
-            }
-          });
-        } catch (Exception e) {
-          logger.error("JobScheduler.run() got exception: {}", e);
-          // ignore for now
+    if (fastPathInline && job.isDue()) {
+      execute(job);
+      return true;
+    }
+    if (!admit(job)) {
+      return false;
+    }
+    if (fastPathHandoff && job.isDue()) {
+      dispatch(job);
+      return true;
+    }
+    if (shards != null) {
+      return shards[shardIndex(job.getRoutingKey())].schedule(job);
+    }
+    return scheduler.schedule(job);
+  }
+
+  /**
+   * count the job against the queue capacity, waiting for room or shedding it per the overload policy.
+   * The bound is soft: callers racing for the last slot may overshoot it by one job each.
+   *
+   * @param job
+   * @return false if the job was shed
+   */
+  private boolean admit(ScheduledJob job) {
+    if (queueCapacity > 0) {
+      if (overloadShed && job.isSheddable() && admittedJobs.get() >= shedThreshold) {
+        relayMetrics.recordOverloadShed();
+        return false;
+      }
+      if (!overloadNack && admittedJobs.get() >= queueCapacity) {
+        awaitRoom();
+      }
+    }
+    int admitted = admittedJobs.incrementAndGet();
+    job.admitted = true;
+    for (;;) {
+      int max = admittedJobMax.get();
+      if (admitted <= max || admittedJobMax.compareAndSet(max, admitted)) {
+        break;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * block the caller, and with it the session it serves, until the queue is below capacity
+   */
+  private void awaitRoom() {
+    long start = System.nanoTime();
+    blockedCallers.incrementAndGet();
+    try {
+      synchronized (roomSignal) {
+        while (admittedJobs.get() >= queueCapacity) {
+          roomSignal.wait(BLOCK_WAIT_MS);
         }
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      blockedCallers.decrementAndGet();
+      relayMetrics.recordOverloadBlocked(System.nanoTime() - start);
+    }
+  }
+
+  private void release(ScheduledJob job) {
+    if (!job.admitted) {
+      return;
+    }
+    job.admitted = false;
+    if (admittedJobs.decrementAndGet() < queueCapacity && blockedCallers.get() > 0) {
+      synchronized (roomSignal) {
+        roomSignal.notifyAll();
+      }
+    }
+  }
+
+  public int getAdmittedJobCount() {
+    return admittedJobs.get();
+  }
+
+  public int getAdmittedJobMax() {
+    return admittedJobMax.get();
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public int getPendingJobCount() {
+    if (shards != null) {
+      int count = 0;
+      for (RelayShard shard : shards) {
+        count += shard.size();
+      }
+      return count;
+    }
+    return scheduler.size();
+  }
+
+  private int shardIndex(Object routingKey) {
+    if (routingKey == null) {
+      return 0;
+    }
+    int h = routingKey.hashCode();
+    h ^= (h >>> 16);
+    return (h & Integer.MAX_VALUE) % shards.length;
+  }
+
+  /**
+   * pooled engine: hand a due job to the shared executor
+   *
+   * @param scheduledJob
+   */
+  @Override
+  public void dispatch(final ScheduledJob scheduledJob) {
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        execute(scheduledJob);
+      }
+    };
+    if (sessionLanes != null) {
+      sessionLanes.execute(scheduledJob.getRoutingKey(), task);
+    } else {
+      executorService.execute(task);
+    }
+  }
+
+  /**
+   * execute a due job on the calling worker thread
+   *
+   * @param scheduledJob
+   * @return
+   */
+  public boolean execute(ScheduledJob scheduledJob) {
+    long start = relayMetrics.jobStarted(scheduledJob);
+    try {
+      return scheduledJob.execute(this);
+    } finally {
+      relayMetrics.jobFinished(start);
+      release(scheduledJob);
     }
   }
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.ObjectName;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sampled, asynchronous trace of the message path.
+ *
+ * The message path only decides whether a message is sampled and offers a small record
+ * to a bounded queue; a full queue drops the record instead of slowing the path down.
+ * A dedicated thread drains the queue in batches into trace.file, one JSON line per event:
+ * {"ts":1760000000000,"event":"ack","message_id":"m-1","reg_id":"APA91..."}.
+ * Sampling hashes the message_id, so every event of a sampled message is traced.
+ *
+ * The full payload log lines (message.log.payloads) are separate and meant for debug runs.
+ */
+@Singleton
+public class MessageTracer implements MessageTracerMXBean, Runnable {
+  final Logger logger = LoggerFactory.getLogger(MessageTracer.class);
+
+  public static final String EVENT_RECEIVED = "received";
+  public static final String EVENT_DROPPED = "dropped";
+
+  private static final int BATCH_SIZE = 1024;
+  private static final long POLL_INTERVAL_MS = 100;
+  private static final long SHUTDOWN_DRAIN_TIMEOUT_MS = 5000;
+
+  private final boolean enabled;
+  private final boolean payloadLogging;
+  private final double sampleRate;
+  // sampled if the top 53 bits of the mixed hash are below this
+  private final long sampleThreshold;
+  private final String file;
+  private final BlockingQueue<TraceRecord> queue;
+  private final AtomicBoolean keepRunning = new AtomicBoolean(true);
+  private Thread writerThread;
+
+  private final AtomicLong traced = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  @Inject
+  public MessageTracer(Config config) {
+    this.payloadLogging = Boolean.parseBoolean(config.getProperty("message.log.payloads", "true"));
+    this.enabled = Boolean.parseBoolean(config.getProperty("trace.enabled", "false"));
+    this.sampleRate = Double.parseDouble(config.getProperty("trace.sample.rate", "0.01"));
+    int capacity = Integer.parseInt(config.getProperty("trace.buffer.capacity", "65536"));
+    this.file = config.getProperty("trace.file", "trace.log");
+    if (sampleRate < 0 || sampleRate > 1 || capacity <= 0) {
+      throw new IllegalArgumentException("invalid trace.sample.rate or trace.buffer.capacity");
+    }
+    this.sampleThreshold = (long) (sampleRate * (1L << 53));
+    this.queue = new ArrayBlockingQueue<>(enabled ? capacity : 1);
+    if (enabled) {
+      writerThread = new Thread(this, "message-tracer");
+      writerThread.setDaemon(true);
+      writerThread.start();
+      logger.info("message trace: sample rate {}, buffer {}, file {}", sampleRate, capacity, file);
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+            new ObjectName("com.jql.gcmccsmock:type=MessageTracer"));
+      } catch (Exception e) {
+        logger.warn("failed to register the message tracer MBean", e);
+      }
+    }
+  }
+
+  /**
+   * record an event of a message if the message is sampled
+   *
+   * @param event
+   * @param messageId sampling key; may be null
+   * @param regId used as the sampling key if messageId is null
+   */
+  public void trace(String event, String messageId, String regId) {
+    if (!enabled) {
+      return;
+    }
+    String key = messageId != null ? messageId : regId;
+    long hash = key == null ? 0 : Strings.mix(Strings.hash(key));
+    if ((hash >>> 11) >= sampleThreshold) {
+      return;
+    }
+    if (queue.offer(new TraceRecord(System.currentTimeMillis(), event, messageId, regId))) {
+      traced.incrementAndGet();
+    } else {
+      dropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * stop the writer after flushing what is already queued
+   */
+  public void shutdown() {
+    if (writerThread == null) {
+      return;
+    }
+    keepRunning.set(false);
+    try {
+      writerThread.join(SHUTDOWN_DRAIN_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void run() {
+    List<TraceRecord> batch = new ArrayList<>(BATCH_SIZE);
+    StringBuilder sb = new StringBuilder(256);
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+        Strings.UTF_8), 1 << 16)) {
+      while (keepRunning.get() || !queue.isEmpty()) {
+        TraceRecord first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, BATCH_SIZE - 1);
+        for (TraceRecord record : batch) {
+          sb.setLength(0);
+          record.appendTo(sb);
+          out.write(sb.toString());
+        }
+        out.flush();
+        written.addAndGet(batch.size());
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      logger.error("message trace stopped, failed to write {}", file, e);
+    }
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return true to log every received and relayed payload at INFO
+   */
+  @Override
+  public boolean isPayloadLogging() {
+    return payloadLogging;
+  }
+
+  @Override
+  public double getSampleRate() {
+    return sampleRate;
+  }
+
+  @Override
+  public long getTracedCount() {
+    return traced.get();
+  }
+
+  @Override
+  public long getWrittenCount() {
+    return written.get();
+  }
+
+  @Override
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  @Override
+  public int getBufferDepth() {
+    return queue.size();
+  }
+
+  private static final class TraceRecord {
+    final long timestamp;
+    final String event;
+    final String messageId;
+    final String regId;
+
+    TraceRecord(long timestamp, String event, String messageId, String regId) {
+      this.timestamp = timestamp;
+      this.event = event;
+      this.messageId = messageId;
+      this.regId = regId;
+    }
+
+    void appendTo(StringBuilder sb) {
+      sb.append("{\"ts\":").append(timestamp).append(",\"event\":");
+      appendString(sb, event);
+      sb.append(",\"message_id\":");
+      appendString(sb, messageId);
+      sb.append(",\"reg_id\":");
+      appendString(sb, regId);
+      sb.append("}\n");
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+      if (value == null) {
+        sb.append("null");
+        return;
+      }
+      sb.append('"');
+      ResponseTemplate.appendEscaped(sb, value);
+      sb.append('"');
+    }
+  }
+}
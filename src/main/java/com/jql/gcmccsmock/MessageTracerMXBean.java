@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+/**
+ * JMX view of the message trace log
+ */
+public interface MessageTracerMXBean {
+  boolean isEnabled();
+  boolean isPayloadLogging();
+  double getSampleRate();
+  /**
+   * @return records queued for the trace file
+   */
+  long getTracedCount();
+  long getWrittenCount();
+  /**
+   * @return records dropped because the buffer was full
+   */
+  long getDroppedCount();
+  int getBufferDepth();
+}
@@ -47,6 +47,7 @@ public class MockGCMXmppServer {
   public static final String REGEX_COMMA = "\\s*,\\s*";
 
   @Inject ServiceContext serviceContext;
+  @Inject RelayMetricsReporter relayMetricsReporter;
 
   public MockGCMXmppServer() {
   }
@@ -78,6 +79,12 @@ public class MockGCMXmppServer {
         accountManagement.addUser(EntityImpl.parse(users[i] + "@" + domain), passwords[i]);
       }
 
+      if (!serviceContext.getMessageTracer().isPayloadLogging()) {
+        // Vysper logs every stanza in full; its loggers are created when the endpoint starts
+        quietLogger("stanza.server");
+        quietLogger("stanza.client");
+      }
+
       int port = Integer.parseInt(config.getProperty("xmpp.port", DEFAULT_PORT));
       final XMPPServer server = new XMPPServer(domain);
       TCPEndpoint tcpEndpoint = new TCPEndpoint();
@@ -92,6 +99,7 @@ public class MockGCMXmppServer {
         server.setTLSCertificateInfo(is, config.getProperty("keystore.password", "password"));
         server.start();
         server.addModule(new GCMModule(serviceContext));
+        relayMetricsReporter.start();
         logger.info("server started at port: {}", port);
       }
 
@@ -100,7 +108,12 @@ public class MockGCMXmppServer {
         public void run() {
           try {
             server.stop();
+            relayMetricsReporter.stop();
+            serviceContext.getUpstreamGenerator().shutdown();
+            serviceContext.getRelayPipeline().shutdown();
             serviceContext.getMessageRelayManager().shutdown();
+            serviceContext.getMessageTracer().shutdown();
+            serviceContext.getClusterState().shutdown();
             logger.info("mock GCM XMPP server is shut down.");
           } catch (Exception ex) {
             logger.error("Caught an exception during shutdown", ex);
@@ -113,6 +126,16 @@ public class MockGCMXmppServer {
     }
   }
 
+  /**
+   * raise a slf4j-simple logger to warn, unless its level is set explicitly
+   */
+  private static void quietLogger(String name) {
+    String property = "org.slf4j.simpleLogger.log." + name;
+    if (System.getProperty(property) == null) {
+      System.setProperty(property, "warn");
+    }
+  }
+
   public static void main(String[] argv) {
     ObjectGraph objectGraph = ObjectGraph.create(new MockServerModule());
     MockGCMXmppServer mockGCMXmppServer = objectGraph.get(MockGCMXmppServer.class);
@@ -19,6 +19,8 @@ package com.jql.gcmccsmock;
 import dagger.Module;
 import dagger.Provides;
 
+import javax.inject.Singleton;
+
 /**
  * @author dennisli
  * 7/10/2015
@@ -27,7 +29,17 @@ import dagger.Provides;
     injects = MockGCMXmppServer.class
 )
 class MockServerModule {
-  @Provides GCMMessageStore provideGCMMessageStore(Config config) {
-    return new RedisGCMMessageStoreImpl(config);
+  @Provides @Singleton GCMMessageStore provideGCMMessageStore(Config config) {
+    String storeType = config.getProperty("message.store.type", "redis");
+    if ("memory".equalsIgnoreCase(storeType)) {
+      return new InMemoryGCMMessageStoreImpl(config);
+    }
+    if ("journal".equalsIgnoreCase(storeType)) {
+      return new JournalGCMMessageStoreImpl(config);
+    }
+    if ("redis".equalsIgnoreCase(storeType)) {
+      return new RedisGCMMessageStoreImpl(config);
+    }
+    throw new IllegalArgumentException("unknown message.store.type: " + storeType);
   }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jql.gcmccsmock;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes stored payloads to bytes, compressed with raw deflate or LZ4 and an optional
+ * preset dictionary (see PayloadDictionary).
+ *
+ * A compressed payload is [tag][dictionary id][raw length varint][data]: the tag names the
+ * codec and whether a dictionary was used, the 4-byte Adler-32 id of the dictionary is only
+ * present then. With codec none the payload is stored as plain UTF-8 JSON, as before; JSON
+ * never starts with a tag byte, so decode reads both.
+ */
+public final class PayloadCodec {
+
+  public enum Type {
+    NONE,
+    DEFLATE,
+    LZ4
+  }
+
+  static final int DEFAULT_LEVEL = 6;
+
+  private static final int TAG_DEFLATE = 0x01;
+  private static final int TAG_LZ4 = 0x02;
+  private static final int TAG_CODEC_MASK = 0x0f;
+  private static final int FLAG_DICTIONARY = 0x10;
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+
+  private final Type type;
+  private final byte[] dictionary;
+  private final int dictionaryId;
+  private final int level;
+  private final Lz4Block lz4;
+  private final Lz4Block lz4WithoutDictionary;
+
+  private final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      return new Deflater(level, true);
+    }
+  };
+  private final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater(true);
+    }
+  };
+  private final ThreadLocal<byte[]> buffer = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[INITIAL_BUFFER_SIZE];
+    }
+  };
+
+  /**
+   * @param type
+   * @param dictionary may be empty; LZ4 uses its last Lz4Block.MAX_DICTIONARY_BYTES
+   * @param level deflate level, 1 (fastest) to 9 (smallest)
+   */
+  public PayloadCodec(Type type, byte[] dictionary, int level) {
+    if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("invalid deflate level: " + level);
+    }
+    this.type = type;
+    this.dictionary = type == Type.LZ4 && dictionary.length > Lz4Block.MAX_DICTIONARY_BYTES
+        ? Arrays.copyOfRange(dictionary, dictionary.length - Lz4Block.MAX_DICTIONARY_BYTES, dictionary.length)
+        : dictionary;
+    Adler32 adler32 = new Adler32();
+    adler32.update(this.dictionary, 0, this.dictionary.length);
+    this.dictionaryId = (int) adler32.getValue();
+    this.level = level;
+    this.lz4 = new Lz4Block(this.dictionary);
+    this.lz4WithoutDictionary = this.dictionary.length == 0 ? lz4 : new Lz4Block(new byte[0]);
+  }
+
+  /**
+   * store.codec (none, deflate or lz4), store.codec.dictionary (builtin, none or a file)
+   * and store.codec.level for deflate
+   *
+   * @param config
+   * @return
+   */
+  public static PayloadCodec fromConfig(Config config) {
+    String codec = config.getProperty("store.codec", "none");
+    Type type;
+    try {
+      type = Type.valueOf(codec.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("unknown store.codec: " + codec);
+    }
+    String dictionarySpec = config.getProperty("store.codec.dictionary", PayloadDictionary.BUILTIN);
+    byte[] dictionary;
+    try {
+      dictionary = type == Type.NONE ? new byte[0] : PayloadDictionary.load(dictionarySpec);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("cannot read store.codec.dictionary: " + dictionarySpec, e);
+    }
+    return new PayloadCodec(type, dictionary,
+        Integer.parseInt(config.getProperty("store.codec.level", Integer.toString(DEFAULT_LEVEL))));
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @param payload
+   * @return the bytes to store
+   */
+  public byte[] encode(String payload) {
+    byte[] raw = payload.getBytes(Strings.UTF_8);
+    if (type == Type.NONE) {
+      return raw;
+    }
+    byte[] out = buffer.get();
+    int bound = 10 + Lz4Block.maxCompressedLength(raw.length);
+    if (out.length < bound) {
+      out = new byte[Math.max(bound, out.length * 2)];
+      buffer.set(out);
+    }
+    int tag = type == Type.LZ4 ? TAG_LZ4 : TAG_DEFLATE;
+    int pos = 0;
+    if (dictionary.length > 0) {
+      out[pos++] = (byte) (tag | FLAG_DICTIONARY);
+      out[pos++] = (byte) (dictionaryId >>> 24);
+      out[pos++] = (byte) (dictionaryId >>> 16);
+      out[pos++] = (byte) (dictionaryId >>> 8);
+      out[pos++] = (byte) dictionaryId;
+    } else {
+      out[pos++] = (byte) tag;
+    }
+    for (int length = raw.length; ; length >>>= 7) {
+      if (length < 0x80) {
+        out[pos++] = (byte) length;
+        break;
+      }
+      out[pos++] = (byte) ((length & 0x7f) | 0x80);
+    }
+    int end = type == Type.LZ4 ? lz4.compress(raw, out, pos) : deflate(raw, out, pos);
+    return Arrays.copyOf(out, end);
+  }
+
+  private int deflate(byte[] raw, byte[] out, int pos) {
+    Deflater d = deflater.get();
+    d.reset();
+    if (dictionary.length > 0) {
+      d.setDictionary(dictionary);
+    }
+    d.setInput(raw);
+    d.finish();
+    // the buffer is sized for LZ4's bound, which is above deflate's
+    while (!d.finished()) {
+      if (pos == out.length) {
+        throw new IllegalStateException("deflate output exceeds its bound");
+      }
+      pos += d.deflate(out, pos, out.length - pos);
+    }
+    return pos;
+  }
+
+  /**
+   * @param stored bytes written by encode, or a plain UTF-8 payload
+   * @return the payload
+   * @throws IllegalArgumentException if the bytes are corrupt or need another dictionary
+   */
+  public String decode(byte[] stored) {
+    int tag = stored.length == 0 ? 0 : stored[0] & 0xff;
+    int codec = tag & TAG_CODEC_MASK;
+    if ((codec != TAG_DEFLATE && codec != TAG_LZ4) || (tag & ~(TAG_CODEC_MASK | FLAG_DICTIONARY)) != 0) {
+      return new String(stored, Strings.UTF_8);
+    }
+    int pos = 1;
+    if ((tag & FLAG_DICTIONARY) != 0) {
+      int id = ((stored[1] & 0xff) << 24) | ((stored[2] & 0xff) << 16) | ((stored[3] & 0xff) << 8)
+          | (stored[4] & 0xff);
+      if (dictionary.length == 0 || id != dictionaryId) {
+        throw new IllegalArgumentException("payload was compressed with another dictionary, id "
+            + Integer.toHexString(id));
+      }
+      pos = 5;
+    }
+    int rawLength = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = stored[pos++];
+      rawLength |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        break;
+      }
+    }
+    byte[] raw;
+    if (codec == TAG_LZ4) {
+      Lz4Block block = (tag & FLAG_DICTIONARY) != 0 ? lz4 : lz4WithoutDictionary;
+      raw = block.decompress(stored, pos, stored.length - pos, rawLength);
+    } else {
+      raw = inflate(stored, pos, rawLength, (tag & FLAG_DICTIONARY) != 0);
+    }
+    return new String(raw, Strings.UTF_8);
+  }
+
+  private byte[] inflate(byte[] stored, int pos, int rawLength, boolean useDictionary) {
+    Inflater i = inflater.get();
+    i.reset();
+    if (useDictionary) {
+      i.setDictionary(dictionary);
+    }
+    i.setInput(stored, pos, stored.length - pos);
+    byte[] raw = new byte[rawLength];
+    try {
+      int length = 0;
+      while (length < rawLength) {
+        int n = i.inflate(raw, length, rawLength - length);
+        if (n == 0 && (i.finished() || i.needsInput() || i.needsDictionary())) {
+          break;
+        }
+        length += n;
+      }
+      if (length != rawLength) {
+        throw new IllegalArgumentException("deflate data decodes to " + length + " bytes, expected " + rawLength);
+      }
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("corrupt deflate data", e);
+    }
+    return raw;
+  }
+}
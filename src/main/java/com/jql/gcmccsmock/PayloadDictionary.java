@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jql.gcmccsmock;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Preset dictionaries for PayloadCodec: the built-in one of common GCM downstream fields,
+ * a file, or one trained from sample payloads.
+ *
+ * Training splits each sample into JSON members at ',', '{' and '}' and keeps the members,
+ * and the key part of members whose value varies, that occur in at least two samples. The
+ * dictionary holds the highest scoring pieces (document frequency times length) up to the
+ * size limit, most valuable last, where matches are closest to the payload.
+ *
+ * Training usage: java -cp ... com.jql.gcmccsmock.PayloadDictionary SAMPLES_FILE DICTIONARY_FILE [MAX_BYTES]
+ * with one payload per line, e.g. the third column of the JournalReader export. It prints the
+ * compressed size of the samples with and without the dictionary.
+ */
+public final class PayloadDictionary {
+
+  public static final String BUILTIN = "builtin";
+  public static final String NONE = "none";
+  // deflate hashes the whole dictionary for every payload, so it pays to keep it small
+  static final int DEFAULT_MAX_BYTES = 4 * 1024;
+
+  private static final String BUILTIN_DICTIONARY =
+      "\"dry_run\":true,\"restricted_package_name\":\"com.\",\"content_available\":true,\"mutable_content\":true,"
+      + "\"notification\":{\"title\":\"\",\"body\":\"\",\"icon\":\"\",\"sound\":\"default\",\"badge\":\"1\","
+      + "\"tag\":\"\",\"color\":\"#\",\"click_action\":\"\",\"body_loc_key\":\"\",\"title_loc_key\":\"\"},"
+      + "\"delay_while_idle\":false,\"collapse_key\":\"\",\"time_to_live\":86400,\"time_to_live\":0,"
+      + "\"priority\":\"normal\",\"priority\":\"high\",\"delivery_receipt_requested\":true,"
+      + "\"data\":{\"message\":\"\",\"type\":\"\",\"id\":\"\",\"title\":\"\",\"timestamp\":\"\"},"
+      + "{\"to\":\"/topics/\",{\"to\":\"APA91b\",\"message_id\":\"";
+
+  private PayloadDictionary() {
+  }
+
+  /**
+   * @param spec builtin, none or the path of a dictionary file
+   * @return the dictionary, empty for none
+   * @throws IOException
+   */
+  public static byte[] load(String spec) throws IOException {
+    if (spec == null || spec.isEmpty() || NONE.equalsIgnoreCase(spec)) {
+      return new byte[0];
+    }
+    if (BUILTIN.equalsIgnoreCase(spec)) {
+      return BUILTIN_DICTIONARY.getBytes(Strings.UTF_8);
+    }
+    return Files.readAllBytes(Paths.get(spec));
+  }
+
+  /**
+   * @param samples payloads
+   * @param maxBytes dictionary size limit
+   * @return the dictionary
+   */
+  public static byte[] train(List<String> samples, int maxBytes) {
+    final Map<String, Integer> frequency = new HashMap<>();
+    for (String sample : samples) {
+      Set<String> pieces = new HashSet<>();
+      int start = 0;
+      for (int i = 0; i < sample.length(); i++) {
+        char c = sample.charAt(i);
+        if (c == ',' || c == '{' || c == '}') {
+          addPieces(sample.substring(start, i + 1), pieces);
+          start = i + 1;
+        }
+      }
+      addPieces(sample.substring(start), pieces);
+      for (String piece : pieces) {
+        Integer count = frequency.get(piece);
+        frequency.put(piece, count == null ? 1 : count + 1);
+      }
+    }
+
+    List<String> candidates = new ArrayList<>();
+    for (Map.Entry<String, Integer> entry : frequency.entrySet()) {
+      if (entry.getValue() >= 2 && entry.getKey().length() >= 4) {
+        candidates.add(entry.getKey());
+      }
+    }
+    Collections.sort(candidates, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        long scoreA = (long) frequency.get(a) * a.length();
+        long scoreB = (long) frequency.get(b) * b.length();
+        return scoreA != scoreB ? Long.compare(scoreB, scoreA) : a.compareTo(b);
+      }
+    });
+
+    // take the best pieces that fit, then lay them out best last
+    List<byte[]> chosen = new ArrayList<>();
+    int size = 0;
+    for (String candidate : candidates) {
+      byte[] bytes = candidate.getBytes(Strings.UTF_8);
+      if (size + bytes.length <= maxBytes) {
+        chosen.add(bytes);
+        size += bytes.length;
+      }
+    }
+    byte[] dictionary = new byte[size];
+    int offset = size;
+    for (byte[] bytes : chosen) {
+      offset -= bytes.length;
+      System.arraycopy(bytes, 0, dictionary, offset, bytes.length);
+    }
+    return dictionary;
+  }
+
+  /**
+   * a member, plus its key and the value's opening quote when the value is a string
+   */
+  private static void addPieces(String member, Set<String> pieces) {
+    if (member.isEmpty()) {
+      return;
+    }
+    pieces.add(member);
+    int colon = member.indexOf("\":");
+    if (colon > 0) {
+      int keyEnd = colon + 2;
+      if (keyEnd < member.length() && member.charAt(keyEnd) == '"') {
+        keyEnd++;
+      }
+      pieces.add(member.substring(0, keyEnd));
+    }
+  }
+
+  public static void main(String[] argv) throws IOException {
+    if (argv.length < 2) {
+      System.err.println("usage: PayloadDictionary SAMPLES_FILE DICTIONARY_FILE [MAX_BYTES]");
+      System.exit(1);
+    }
+    int maxBytes = argv.length > 2 ? Integer.parseInt(argv[2]) : DEFAULT_MAX_BYTES;
+    List<String> samples = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(argv[0]),
+        Strings.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          samples.add(line);
+        }
+      }
+    }
+    byte[] dictionary = train(samples, maxBytes);
+    try (OutputStream out = new FileOutputStream(argv[1])) {
+      out.write(dictionary);
+    }
+    System.out.println("dictionary: " + dictionary.length + " bytes from " + samples.size() + " samples");
+
+    long raw = 0;
+    for (String sample : samples) {
+      raw += sample.getBytes(Strings.UTF_8).length;
+    }
+    System.out.println("samples: " + raw + " bytes");
+    for (PayloadCodec.Type type : new PayloadCodec.Type[] {PayloadCodec.Type.DEFLATE, PayloadCodec.Type.LZ4}) {
+      long plain = 0;
+      long trained = 0;
+      PayloadCodec withoutDictionary = new PayloadCodec(type, new byte[0], PayloadCodec.DEFAULT_LEVEL);
+      PayloadCodec withDictionary = new PayloadCodec(type, dictionary, PayloadCodec.DEFAULT_LEVEL);
+      for (String sample : samples) {
+        plain += withoutDictionary.encode(sample).length;
+        trained += withDictionary.encode(sample).length;
+      }
+      System.out.println(type.name().toLowerCase() + ": " + plain + " bytes without the dictionary, "
+          + trained + " bytes with it");
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind writer for RedisGCMMessageStoreImpl.
+ *
+ * Messages are put on a bounded queue and a dedicated thread drains them in batches,
+ * one pipelined round trip per batch. Messages for the same regId within a batch
+ * are sent with a single multi-value LPUSH, in arrival order. The SYNC overflow policy
+ * is the exception: its writes are not ordered against the queue.
+ */
+public class RedisBatchWriter implements Runnable {
+  final Logger logger = LoggerFactory.getLogger(RedisBatchWriter.class);
+
+  /**
+   * what to do when the queue is full, i.e. Redis falls behind
+   */
+  public enum OverflowPolicy {
+    BLOCK,    // wait for room in the queue (back-pressure onto the relay worker)
+    DROP,     // discard the message and count it
+    SYNC      // write it through on the caller thread; it can overtake queued messages for the same regId
+  }
+
+  private static final long SHUTDOWN_DRAIN_TIMEOUT_MS = 5000;
+
+  private final JedisPool pool;
+  private final BlockingQueue<PendingWrite> queue;
+  private final int batchSize;
+  private final long flushIntervalMs;
+  private final OverflowPolicy overflowPolicy;
+  private final AtomicBoolean keepRunning = new AtomicBoolean(true);
+  private final Thread writerThread;
+
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  public RedisBatchWriter(JedisPool pool, int queueCapacity, int batchSize, long flushIntervalMs,
+                          OverflowPolicy overflowPolicy) {
+    if (queueCapacity <= 0 || batchSize <= 0 || flushIntervalMs <= 0) {
+      throw new IllegalArgumentException("invalid write-behind settings: capacity=" + queueCapacity
+          + ", batchSize=" + batchSize + ", flushIntervalMs=" + flushIntervalMs);
+    }
+    this.pool = pool;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.batchSize = batchSize;
+    this.flushIntervalMs = flushIntervalMs;
+    this.overflowPolicy = overflowPolicy;
+    this.writerThread = new Thread(this, "redis-batch-writer");
+    this.writerThread.setDaemon(true);
+  }
+
+  public void start() {
+    writerThread.start();
+  }
+
+  /**
+   * queue a message for writing
+   *
+   * @param regId
+   * @param message encoded by the store's PayloadCodec
+   * @return false if the message was dropped
+   */
+  public boolean write(String regId, byte[] message) {
+    PendingWrite pendingWrite = new PendingWrite(regId, message);
+    if (queue.offer(pendingWrite)) {
+      return true;
+    }
+    switch (overflowPolicy) {
+      case BLOCK:
+        try {
+          queue.put(pendingWrite);
+          return true;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          dropped.incrementAndGet();
+          return false;
+        }
+      case SYNC:
+        try (Jedis jedis = pool.getResource()) {
+          jedis.lpush(SafeEncoder.encode(regId), message);
+        }
+        return true;
+      default:
+        if (dropped.incrementAndGet() % 10000 == 1) {
+          logger.warn("write-behind queue is full, dropping messages. dropped so far: {}", dropped.get());
+        }
+        return false;
+    }
+  }
+
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * stop the writer after flushing what is already queued
+   */
+  public void shutdown() {
+    keepRunning.set(false);
+    try {
+      writerThread.join(SHUTDOWN_DRAIN_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!queue.isEmpty()) {
+      logger.warn("write-behind queue not fully flushed at shutdown. remaining={}", queue.size());
+    }
+  }
+
+  @Override
+  public void run() {
+    List<PendingWrite> batch = new ArrayList<>(batchSize);
+    while (keepRunning.get() || !queue.isEmpty()) {
+      try {
+        PendingWrite first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        flush(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (Exception e) {
+        failed.addAndGet(batch.size());
+        logger.error("failed to write batch of {} messages: {}", batch.size(), e);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void flush(List<PendingWrite> batch) {
+    // group by regId, keeping arrival order within each regId
+    Map<String, List<byte[]>> byRegId = new LinkedHashMap<>();
+    for (PendingWrite pendingWrite : batch) {
+      List<byte[]> messages = byRegId.get(pendingWrite.regId);
+      if (messages == null) {
+        messages = new ArrayList<>(1);
+        byRegId.put(pendingWrite.regId, messages);
+      }
+      messages.add(pendingWrite.message);
+    }
+    try (Jedis jedis = pool.getResource()) {
+      Pipeline pipeline = jedis.pipelined();
+      for (Map.Entry<String, List<byte[]>> entry : byRegId.entrySet()) {
+        List<byte[]> messages = entry.getValue();
+        pipeline.lpush(SafeEncoder.encode(entry.getKey()), messages.toArray(new byte[messages.size()][]));
+      }
+      pipeline.sync();
+    }
+  }
+
+  private static final class PendingWrite {
+    final String regId;
+    final byte[] message;
+
+    PendingWrite(String regId, byte[] message) {
+      this.regId = regId;
+      this.message = message;
+    }
+  }
+}
@@ -19,17 +19,32 @@ package com.jql.gcmccsmock;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Redis based GCM Message Store
  *
+ * Messages are pushed onto a list per regId as bytes encoded by the store.codec PayloadCodec,
+ * through the binary-safe Jedis calls. RedisMessageReader prints them back.
+ *
  * @author dennisli
  * 5/10/2015.
  */
 public class RedisGCMMessageStoreImpl implements GCMMessageStore {
+  private static final String DEFAULT_WRITE_BEHIND_QUEUE_CAPACITY = "100000";
+  private static final String DEFAULT_WRITE_BEHIND_BATCH_SIZE = "500";
+  private static final String DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL_MS = "10";
+  private static final String DEFAULT_WRITE_BEHIND_OVERFLOW_POLICY = "block";
+
   private JedisPool pool;
+  private PayloadCodec codec;
+  // null unless write-behind mode is enabled
+  private RedisBatchWriter batchWriter;
   private AtomicBoolean isActive = new AtomicBoolean(false);
 
   public RedisGCMMessageStoreImpl(Config config) {
@@ -48,15 +63,30 @@ public class RedisGCMMessageStoreImpl implements GCMMessageStore {
     if (redisPort == null || redisPort.isEmpty()) {
       throw new IllegalArgumentException("null redis.port");
     }
+    codec = PayloadCodec.fromConfig(config);
     pool = new JedisPool(
         new JedisPoolConfig(),
         config.getProperty("redis.host"),
         Integer.parseInt(config.getProperty("redis.port")));
+    if (Boolean.parseBoolean(config.getProperty("redis.writebehind.enabled", "false"))) {
+      batchWriter = new RedisBatchWriter(pool,
+          Integer.parseInt(config.getProperty("redis.writebehind.queue.capacity", DEFAULT_WRITE_BEHIND_QUEUE_CAPACITY)),
+          Integer.parseInt(config.getProperty("redis.writebehind.batch.size", DEFAULT_WRITE_BEHIND_BATCH_SIZE)),
+          Long.parseLong(config.getProperty("redis.writebehind.flush.interval.ms", DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL_MS)),
+          RedisBatchWriter.OverflowPolicy.valueOf(
+              config.getProperty("redis.writebehind.overflow.policy", DEFAULT_WRITE_BEHIND_OVERFLOW_POLICY).toUpperCase()));
+      batchWriter.start();
+    }
     isActive.set(true);
   }
 
   @Override
   public void shutdown() {
+    if (!isActive.getAndSet(false))
+      return;
+    if (batchWriter != null) {
+      batchWriter.shutdown();
+    }
     pool.destroy();
   }
 
@@ -64,9 +94,29 @@ public class RedisGCMMessageStoreImpl implements GCMMessageStore {
   public boolean storeMessage(String regId, String message) {
     if (!isActive.get())
       return false;
+    // encoded on the caller thread, the write-behind queue only holds the compressed bytes
+    byte[] payload = codec.encode(message);
+    if (batchWriter != null) {
+      return batchWriter.write(regId, payload);
+    }
     try (Jedis jedis = pool.getResource()) {
-      jedis.lpush(regId, message);
+      jedis.lpush(SafeEncoder.encode(regId), payload);
     }
     return true;
   }
+
+  @Override
+  public List<String> getMessages(String regId) {
+    if (!isActive.get())
+      return Collections.emptyList();
+    List<byte[]> stored;
+    try (Jedis jedis = pool.getResource()) {
+      stored = jedis.lrange(SafeEncoder.encode(regId), 0, -1);
+    }
+    List<String> messages = new ArrayList<>(stored.size());
+    for (byte[] payload : stored) {
+      messages.add(codec.decode(payload));
+    }
+    return messages;
+  }
 }
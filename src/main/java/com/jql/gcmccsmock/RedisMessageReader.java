@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jql.gcmccsmock;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Reader for the messages RedisGCMMessageStoreImpl stored, decoded with the store.codec
+ * settings of the same config file. Payloads stored before a codec was configured are
+ * plain UTF-8 and are read as they are.
+ *
+ * Usage: java -DconfigFile=CONFIG -cp ... com.jql.gcmccsmock.RedisMessageReader REG_ID...
+ * prints one tab-separated line per message, most recent first: regId, payload. A summary of
+ * stored and decoded bytes goes to stderr.
+ */
+public class RedisMessageReader {
+
+  private final Jedis jedis;
+  private final PayloadCodec codec;
+  private long storedBytes;
+  private long payloadBytes;
+  private long messageCount;
+
+  public RedisMessageReader(Jedis jedis, PayloadCodec codec) {
+    this.jedis = jedis;
+    this.codec = codec;
+  }
+
+  /**
+   * write the messages of a regId, most recent first
+   *
+   * @param regId
+   * @param out
+   * @throws IOException
+   */
+  public void export(String regId, Writer out) throws IOException {
+    List<byte[]> stored = jedis.lrange(SafeEncoder.encode(regId), 0, -1);
+    for (byte[] bytes : stored) {
+      String payload = codec.decode(bytes);
+      storedBytes += bytes.length;
+      payloadBytes += payload.getBytes(Strings.UTF_8).length;
+      messageCount++;
+      out.write(regId);
+      out.write('\t');
+      // raw tabs and line breaks can only be JSON whitespace, so flattening them is lossless
+      for (int i = 0; i < payload.length(); i++) {
+        char c = payload.charAt(i);
+        out.write(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+      }
+      out.write('\n');
+    }
+  }
+
+  public static void main(String[] argv) throws IOException {
+    if (argv.length < 1) {
+      System.err.println("usage: java -DconfigFile=CONFIG RedisMessageReader REG_ID...");
+      System.exit(1);
+    }
+    Config config = new Config();
+    PayloadCodec codec = PayloadCodec.fromConfig(config);
+    try (Jedis jedis = new Jedis(config.getProperty("redis.host", "localhost"),
+        Integer.parseInt(config.getProperty("redis.port", "6379")))) {
+      RedisMessageReader reader = new RedisMessageReader(jedis, codec);
+      Writer out = new BufferedWriter(new OutputStreamWriter(System.out, Strings.UTF_8), 1 << 16);
+      for (String regId : argv) {
+        reader.export(regId, out);
+      }
+      out.flush();
+      System.err.println(reader.messageCount + " messages, " + reader.storedBytes + " bytes stored, "
+          + reader.payloadBytes + " bytes decoded (codec " + codec.getType().name().toLowerCase() + ")");
+    }
+  }
+}
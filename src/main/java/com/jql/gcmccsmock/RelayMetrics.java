@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relay path instrumentation. Recording is lock-free; see RelayMetricsReporter for
+ * the JMX and plain-text views.
+ *
+ * ingress to scheduled: from the handler receiving a message until its responses are queued
+ * scheduled to relayed: from a job's scheduled fire time until its stanza is relayed
+ * scheduler lateness: from a job's scheduled fire time until it starts executing
+ * store write: GCMMessageStore.storeMessage, the enqueue only in Redis write-behind mode
+ * upstream ack: from relaying a generated upstream message until the provider acks it
+ */
+@Singleton
+public class RelayMetrics {
+  final LatencyHistogram ingressToScheduled = new LatencyHistogram("relay_ingress_to_scheduled");
+  final LatencyHistogram scheduledToRelayed = new LatencyHistogram("relay_scheduled_to_relayed");
+  final LatencyHistogram schedulerLateness = new LatencyHistogram("relay_scheduler_lateness");
+  final LatencyHistogram storeWrite = new LatencyHistogram("store_write");
+  final LatencyHistogram upstreamAck = new LatencyHistogram("upstream_ack");
+
+  private final AtomicInteger activeJobs = new AtomicInteger();
+  private final AtomicLong executedJobs = new AtomicLong();
+  private final AtomicLong busyNanos = new AtomicLong();
+  private final AtomicLong sessionWrites = new AtomicLong();
+  private final AtomicLong writtenStanzas = new AtomicLong();
+  private final AtomicInteger maxStanzasPerWrite = new AtomicInteger();
+  private final AtomicLong overloadNacked = new AtomicLong();
+  private final AtomicLong overloadShed = new AtomicLong();
+  private final AtomicLong overloadBlocked = new AtomicLong();
+  private final AtomicLong overloadBlockedNanos = new AtomicLong();
+
+  @Inject
+  public RelayMetrics() {
+  }
+
+  public void recordIngressToScheduled(long ingressNanos) {
+    ingressToScheduled.recordNanos(System.nanoTime() - ingressNanos);
+  }
+
+  public void recordRelayed(ScheduledJob job) {
+    recordRelayed(job.getScheduledNanoTime());
+  }
+
+  /**
+   * @param scheduledNanoTime when the stanza was due, System.nanoTime()
+   */
+  public void recordRelayed(long scheduledNanoTime) {
+    scheduledToRelayed.recordNanos(System.nanoTime() - scheduledNanoTime);
+  }
+
+  public void recordStoreWrite(long nanos) {
+    storeWrite.recordNanos(nanos);
+  }
+
+  public void recordUpstreamAck(long nanos) {
+    upstreamAck.recordNanos(nanos);
+  }
+
+  /**
+   * a worker starts executing a due job
+   *
+   * @return the start time to pass to jobFinished
+   */
+  public long jobStarted(ScheduledJob job) {
+    return jobStarted(job.getScheduledNanoTime());
+  }
+
+  /**
+   * a job due at scheduledNanoTime starts, for the relay pipeline, which has no ScheduledJob
+   *
+   * @return the start time to pass to jobFinished
+   */
+  public long jobStarted(long scheduledNanoTime) {
+    long now = System.nanoTime();
+    schedulerLateness.recordNanos(now - scheduledNanoTime);
+    activeJobs.incrementAndGet();
+    return now;
+  }
+
+  public void jobFinished(long startNanos) {
+    busyNanos.addAndGet(System.nanoTime() - startNanos);
+    activeJobs.decrementAndGet();
+    executedJobs.incrementAndGet();
+  }
+
+  /**
+   * StanzaWriteCoalescer wrote a batch of stanzas to a session
+   */
+  public void recordSessionWrite(int stanzas) {
+    sessionWrites.incrementAndGet();
+    writtenStanzas.addAndGet(stanzas);
+    for (;;) {
+      int max = maxStanzasPerWrite.get();
+      if (stanzas <= max || maxStanzasPerWrite.compareAndSet(max, stanzas)) {
+        return;
+      }
+    }
+  }
+
+  public long getSessionWrites() {
+    return sessionWrites.get();
+  }
+
+  public long getWrittenStanzas() {
+    return writtenStanzas.get();
+  }
+
+  public int getMaxStanzasPerWrite() {
+    return maxStanzasPerWrite.get();
+  }
+
+  /**
+   * an incoming message was nacked because the relay queue is full
+   */
+  public void recordOverloadNack() {
+    overloadNacked.incrementAndGet();
+  }
+
+  /**
+   * a sheddable job was dropped because the relay queue is full
+   */
+  public void recordOverloadShed() {
+    overloadShed.incrementAndGet();
+  }
+
+  /**
+   * a caller waited for room in the relay queue
+   */
+  public void recordOverloadBlocked(long nanos) {
+    overloadBlocked.incrementAndGet();
+    overloadBlockedNanos.addAndGet(nanos);
+  }
+
+  public long getOverloadNacked() {
+    return overloadNacked.get();
+  }
+
+  public long getOverloadShed() {
+    return overloadShed.get();
+  }
+
+  public long getOverloadBlocked() {
+    return overloadBlocked.get();
+  }
+
+  public long getOverloadBlockedNanos() {
+    return overloadBlockedNanos.get();
+  }
+
+  public int getActiveJobs() {
+    return activeJobs.get();
+  }
+
+  public long getExecutedJobs() {
+    return executedJobs.get();
+  }
+
+  public long getBusyNanos() {
+    return busyNanos.get();
+  }
+}
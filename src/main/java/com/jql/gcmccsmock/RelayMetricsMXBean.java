@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+/**
+ * JMX view of RelayMetrics. Latencies are in microseconds.
+ */
+public interface RelayMetricsMXBean {
+  LatencySnapshot getIngressToScheduled();
+  LatencySnapshot getScheduledToRelayed();
+  LatencySnapshot getSchedulerLateness();
+  LatencySnapshot getStoreWrite();
+  LatencySnapshot getUpstreamAck();
+  int getQueueDepth();
+  /**
+   * @return jobs admitted to the relay and not executed yet, scheduled or waiting for a worker
+   */
+  int getAdmittedJobs();
+  /**
+   * @return the highest getAdmittedJobs() seen
+   */
+  int getAdmittedJobsMax();
+  /**
+   * @return relay.queue.capacity, 0 if unbounded
+   */
+  int getQueueCapacity();
+  /**
+   * @return coalesced session writes, see StanzaWriteCoalescer
+   */
+  long getSessionWrites();
+  /**
+   * @return stanzas per coalesced session write on average
+   */
+  double getStanzasPerWrite();
+  int getMaxStanzasPerWrite();
+  long getOverloadNacked();
+  long getOverloadShed();
+  long getOverloadBlocked();
+  long getOverloadBlockedMillis();
+  int getActiveJobs();
+  int getWorkerCount();
+  long getExecutedJobs();
+  /**
+   * @return fraction of worker time spent executing jobs since the previous call
+   */
+  double getExecutorUtilization();
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes RelayMetrics over JMX (com.jql.gcmccsmock:type=RelayMetrics) and as plain text,
+ * one "name value" line per sample, at http://metrics.http.host:metrics.http.port/metrics.
+ */
+@Singleton
+public class RelayMetricsReporter implements RelayMetricsMXBean {
+  final Logger logger = LoggerFactory.getLogger(RelayMetricsReporter.class);
+
+  private static final String DEFAULT_HTTP_PORT = "0";
+  private static final String DEFAULT_HTTP_HOST = "127.0.0.1";
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+
+  private final RelayMetrics relayMetrics;
+  private final MessageRelayManager messageRelayManager;
+  private final String httpHost;
+  private final int httpPort;
+  private HttpServer httpServer;
+
+  // state of getExecutorUtilization()
+  private long lastBusyNanos;
+  private long lastSampleNanos = System.nanoTime();
+
+  @Inject
+  public RelayMetricsReporter(Config config, RelayMetrics relayMetrics, MessageRelayManager messageRelayManager) {
+    this.relayMetrics = relayMetrics;
+    this.messageRelayManager = messageRelayManager;
+    this.httpHost = config.getProperty("metrics.http.host", DEFAULT_HTTP_HOST);
+    this.httpPort = Integer.parseInt(config.getProperty("metrics.http.port", DEFAULT_HTTP_PORT));
+  }
+
+  public void start() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("com.jql.gcmccsmock:type=RelayMetrics"));
+    } catch (Exception e) {
+      logger.warn("failed to register the relay metrics MBean", e);
+    }
+    if (httpPort <= 0) {
+      return;
+    }
+    try {
+      httpServer = HttpServer.create(new InetSocketAddress(httpHost, httpPort), 0);
+      httpServer.createContext("/metrics", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          byte[] body = scrape().getBytes(Strings.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+          }
+        }
+      });
+      httpServer.start();
+      logger.info("metrics available at http://{}:{}/metrics", httpHost, httpPort);
+    } catch (IOException e) {
+      logger.error("failed to start the metrics endpoint on port " + httpPort, e);
+    }
+  }
+
+  public void stop() {
+    if (httpServer != null) {
+      httpServer.stop(0);
+    }
+  }
+
+  /**
+   * @return the plain-text metrics, latencies in microseconds
+   */
+  public String scrape() {
+    StringBuilder sb = new StringBuilder(2048);
+    appendHistogram(sb, relayMetrics.ingressToScheduled);
+    appendHistogram(sb, relayMetrics.scheduledToRelayed);
+    appendHistogram(sb, relayMetrics.schedulerLateness);
+    appendHistogram(sb, relayMetrics.storeWrite);
+    appendHistogram(sb, relayMetrics.upstreamAck);
+    appendSample(sb, "relay_queue_depth", getQueueDepth());
+    appendSample(sb, "relay_active_jobs", getActiveJobs());
+    appendSample(sb, "relay_admitted_jobs", getAdmittedJobs());
+    appendSample(sb, "relay_admitted_jobs_max", getAdmittedJobsMax());
+    appendSample(sb, "relay_queue_capacity", getQueueCapacity());
+    appendSample(sb, "relay_session_writes_total", getSessionWrites());
+    appendSample(sb, "relay_written_stanzas_total", relayMetrics.getWrittenStanzas());
+    appendSample(sb, "relay_stanzas_per_write_max", getMaxStanzasPerWrite());
+    appendSample(sb, "relay_overload_nacked_total", getOverloadNacked());
+    appendSample(sb, "relay_overload_shed_total", getOverloadShed());
+    appendSample(sb, "relay_overload_blocked_total", getOverloadBlocked());
+    sb.append("relay_overload_blocked_seconds_total ").append(relayMetrics.getOverloadBlockedNanos() / 1e9).append('\n');
+    appendSample(sb, "relay_workers", getWorkerCount());
+    appendSample(sb, "relay_executed_jobs_total", getExecutedJobs());
+    sb.append("relay_executor_busy_seconds_total ").append(relayMetrics.getBusyNanos() / 1e9).append('\n');
+    return sb.toString();
+  }
+
+  private static void appendHistogram(StringBuilder sb, LatencyHistogram latencyHistogram) {
+    Histogram histogram = latencyHistogram.snapshot();
+    String name = latencyHistogram.getName() + "_us";
+    for (double quantile : QUANTILES) {
+      sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+          .append(quantile == 1.0 ? histogram.getMaxValue() : histogram.getValueAtPercentile(quantile * 100))
+          .append('\n');
+    }
+    appendSample(sb, name + "_count", histogram.getTotalCount());
+  }
+
+  private static void appendSample(StringBuilder sb, String name, long value) {
+    sb.append(name).append(' ').append(value).append('\n');
+  }
+
+  @Override
+  public LatencySnapshot getIngressToScheduled() {
+    return new LatencySnapshot(relayMetrics.ingressToScheduled.snapshot());
+  }
+
+  @Override
+  public LatencySnapshot getScheduledToRelayed() {
+    return new LatencySnapshot(relayMetrics.scheduledToRelayed.snapshot());
+  }
+
+  @Override
+  public LatencySnapshot getSchedulerLateness() {
+    return new LatencySnapshot(relayMetrics.schedulerLateness.snapshot());
+  }
+
+  @Override
+  public LatencySnapshot getStoreWrite() {
+    return new LatencySnapshot(relayMetrics.storeWrite.snapshot());
+  }
+
+  @Override
+  public LatencySnapshot getUpstreamAck() {
+    return new LatencySnapshot(relayMetrics.upstreamAck.snapshot());
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return messageRelayManager.getPendingJobCount();
+  }
+
+  @Override
+  public int getAdmittedJobs() {
+    return messageRelayManager.getAdmittedJobCount();
+  }
+
+  @Override
+  public int getAdmittedJobsMax() {
+    return messageRelayManager.getAdmittedJobMax();
+  }
+
+  @Override
+  public int getQueueCapacity() {
+    return messageRelayManager.getQueueCapacity();
+  }
+
+  @Override
+  public long getSessionWrites() {
+    return relayMetrics.getSessionWrites();
+  }
+
+  @Override
+  public double getStanzasPerWrite() {
+    long writes = relayMetrics.getSessionWrites();
+    return writes == 0 ? 0 : (double) relayMetrics.getWrittenStanzas() / writes;
+  }
+
+  @Override
+  public int getMaxStanzasPerWrite() {
+    return relayMetrics.getMaxStanzasPerWrite();
+  }
+
+  @Override
+  public long getOverloadNacked() {
+    return relayMetrics.getOverloadNacked();
+  }
+
+  @Override
+  public long getOverloadShed() {
+    return relayMetrics.getOverloadShed();
+  }
+
+  @Override
+  public long getOverloadBlocked() {
+    return relayMetrics.getOverloadBlocked();
+  }
+
+  @Override
+  public long getOverloadBlockedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(relayMetrics.getOverloadBlockedNanos());
+  }
+
+  @Override
+  public int getActiveJobs() {
+    return relayMetrics.getActiveJobs();
+  }
+
+  @Override
+  public int getWorkerCount() {
+    return messageRelayManager.getWorkerCount();
+  }
+
+  @Override
+  public long getExecutedJobs() {
+    return relayMetrics.getExecutedJobs();
+  }
+
+  @Override
+  public synchronized double getExecutorUtilization() {
+    long now = System.nanoTime();
+    long busy = relayMetrics.getBusyNanos();
+    long elapsed = now - lastSampleNanos;
+    double utilization = elapsed <= 0 ? 0 : (double) (busy - lastBusyNanos) / elapsed / getWorkerCount();
+    lastBusyNanos = busy;
+    lastSampleNanos = now;
+    return utilization;
+  }
+}
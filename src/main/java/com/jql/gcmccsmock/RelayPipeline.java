@@ -0,0 +1,592 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jql.gcmccsmock;
+
+import org.apache.vysper.xmpp.server.SessionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring buffer pipeline from stanza ingress to relay, in the style of the LMAX Disruptor.
+ *
+ * The ring holds preallocated MessageEvent slots. A handler thread claims the next sequence,
+ * fills in the slot and publishes it; that is all the work done on the connection's thread.
+ * Each stage then runs on its own thread and follows the one before it by sequence number:
+ *
+ *   parse   - scans the payload fields
+ *   decide  - flow control, duplicates, rules and rate limits; fills in the responses
+ *   persist - stores the messages that get a receipt
+ *   relay   - schedules the responses on a timing wheel of slot indexes and relays them when due
+ *
+ * A stage handles everything published since its last pass as one batch and then advances
+ * its sequence once, so the hand-off between stages costs one ordered write per batch.
+ * A slot is free again once all its responses are relayed; slots are released in ring order,
+ * so the ring has to cover the message rate times the longest response delay. When it is full
+ * the handler thread waits, stalling its connection like relay.overload.policy=block.
+ */
+@Singleton
+public class RelayPipeline implements RelayPipelineMXBean {
+  final Logger logger = LoggerFactory.getLogger(RelayPipeline.class);
+
+  private static final int SPIN_TRIES = 100;
+  private static final int YIELD_TRIES = 100;
+  private static final int STAGE_THREADS = 4;
+  // an idle stage is woken by its upstream; the timeout only bounds a missed wake-up
+  private static final long MAX_PARK_NS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOT_WAIT_NS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final int NONE = -1;
+
+  // a sequence number alone on its cache line, so stages do not invalidate each other's
+  static class LhsPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+  }
+
+  static class Value extends LhsPadding {
+    protected volatile long value = -1;
+  }
+
+  static final class Sequence extends Value {
+    private static final AtomicLongFieldUpdater<Value> VALUE = AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+
+    protected long p9, p10, p11, p12, p13, p14, p15;
+
+    long get() {
+      return value;
+    }
+
+    void set(long sequence) {
+      VALUE.lazySet(this, sequence);
+    }
+
+    long incrementAndGet() {
+      return VALUE.incrementAndGet(this);
+    }
+  }
+
+  private final boolean enabled;
+  private final MessageRelayManager messageRelayManager;
+  private final RelayMetrics relayMetrics;
+  private final MessageTracer messageTracer;
+  private final MessageEvent[] ring;
+  private final int mask;
+  // spinning only pays off when every stage thread can have a core
+  private final int spinTries;
+  private final int yieldTries;
+  private final AtomicBoolean keepRunning = new AtomicBoolean(true);
+
+  // claimed by handler threads
+  private final Sequence cursor = new Sequence();
+  // slots whose responses are all relayed; written by the relay thread
+  private final Sequence released = new Sequence();
+  private Stage[] stages;
+  // woken by the handler threads
+  private volatile Stage parseStage;
+
+  // timing wheel of the relay thread. An entry is slot * MAX_RESPONSES + response index
+  private final long tickNanos;
+  private final int wheelMask;
+  private final int[] bucketHeads;
+  private final int[] bucketTails;
+  private final int[] entryNext;
+  private final int[] entryRounds;
+  private final long startNanos;
+  private long tick;
+  private volatile int scheduledResponses;
+
+  private final AtomicLong producerWaits = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong batchedEvents = new AtomicLong();
+
+  @Inject
+  public RelayPipeline(Config config, MessageRelayManager messageRelayManager) {
+    this.enabled = Boolean.parseBoolean(config.getProperty("relay.pipeline.enabled", "false"));
+    this.messageRelayManager = messageRelayManager;
+    this.relayMetrics = messageRelayManager.getRelayMetrics();
+    this.messageTracer = messageRelayManager.getMessageTracer();
+    int ringSize = Integer.parseInt(config.getProperty("relay.pipeline.ring.size", "32768"));
+    long tickUs = Long.parseLong(config.getProperty("relay.pipeline.tick.us", "1000"));
+    int wheelSize = Integer.parseInt(config.getProperty("relay.pipeline.wheel.size", "4096"));
+    if (ringSize <= 0 || ringSize > (1 << 26) || wheelSize <= 0 || wheelSize > (1 << 24)
+        || tickUs <= 0) {
+      throw new IllegalArgumentException("invalid relay.pipeline ring size, wheel size or tick");
+    }
+    if (!enabled) {
+      // nothing is allocated unless the pipeline is used
+      ringSize = 1;
+      wheelSize = 1;
+    }
+    ringSize = powerOfTwo(ringSize);
+    wheelSize = powerOfTwo(wheelSize);
+    this.ring = new MessageEvent[ringSize];
+    for (int i = 0; i < ringSize; i++) {
+      ring[i] = new MessageEvent();
+    }
+    this.mask = ringSize - 1;
+    boolean spare = Runtime.getRuntime().availableProcessors() > STAGE_THREADS;
+    this.spinTries = spare ? SPIN_TRIES : 0;
+    this.yieldTries = spare ? YIELD_TRIES : 0;
+    this.tickNanos = TimeUnit.MICROSECONDS.toNanos(tickUs);
+    this.wheelMask = wheelSize - 1;
+    this.bucketHeads = new int[wheelSize];
+    this.bucketTails = new int[wheelSize];
+    Arrays.fill(bucketHeads, NONE);
+    Arrays.fill(bucketTails, NONE);
+    this.entryNext = new int[ringSize * MessageEvent.MAX_RESPONSES];
+    this.entryRounds = new int[ringSize * MessageEvent.MAX_RESPONSES];
+    this.startNanos = System.nanoTime();
+
+    if (enabled) {
+      logger.info("relay pipeline: ring {}, wheel {} x {}us", ringSize, wheelSize, tickUs);
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+            new ObjectName("com.jql.gcmccsmock:type=RelayPipeline"));
+      } catch (Exception e) {
+        logger.warn("failed to register the relay pipeline MBean", e);
+      }
+    }
+  }
+
+  private static int powerOfTwo(int size) {
+    int normalized = Integer.highestOneBit(size);
+    return normalized < size ? normalized << 1 : normalized;
+  }
+
+  /**
+   * start the stage threads; the pipeline decides with the first decider given
+   *
+   * @param decider
+   */
+  public synchronized void start(MessageDecider decider) {
+    if (!enabled || stages != null) {
+      return;
+    }
+    Stage parse = new ParseStage();
+    Stage decide = new DecideStage(parse, decider);
+    Stage persist = new PersistStage(decide);
+    Stage relay = new RelayStage(persist);
+    stages = new Stage[] {parse, decide, persist, relay};
+    String[] names = {"pipeline-parse", "pipeline-decide", "pipeline-persist", "pipeline-relay"};
+    for (int i = 0; i < stages.length; i++) {
+      stages[i].thread = new Thread(stages[i], names[i]);
+      stages[i].thread.setDaemon(true);
+      stages[i].thread.start();
+    }
+    parseStage = parse;
+  }
+
+  public void shutdown() {
+    keepRunning.set(false);
+    if (stages != null) {
+      for (Stage stage : stages) {
+        stage.thread.interrupt();
+      }
+    }
+  }
+
+  /**
+   * hand an incoming message to the pipeline, waiting for a free slot if the ring is full
+   *
+   * @param sessionContext
+   * @param target
+   * @param stanzaId may be null
+   * @param incomingMessage
+   * @param ingressNanos
+   */
+  public void publish(SessionContext sessionContext, ResponseRelayJob.Target target, String stanzaId,
+                      String incomingMessage, long ingressNanos) {
+    long sequence = cursor.incrementAndGet();
+    long wrapPoint = sequence - ring.length;
+    if (wrapPoint > released.get() && !waitForSlot(wrapPoint)) {
+      return;
+    }
+    MessageEvent event = ring[(int) (sequence & mask)];
+    event.set(sessionContext, target, stanzaId, incomingMessage, ingressNanos);
+    event.sequence = sequence;
+    parseStage.wake();
+  }
+
+  /**
+   * @return false if the pipeline was shut down while waiting
+   */
+  private boolean waitForSlot(long wrapPoint) {
+    producerWaits.incrementAndGet();
+    long start = System.nanoTime();
+    while (wrapPoint > released.get()) {
+      if (!keepRunning.get()) {
+        return false;
+      }
+      LockSupport.parkNanos(this, SLOT_WAIT_NS);
+    }
+    relayMetrics.recordOverloadBlocked(System.nanoTime() - start);
+    return true;
+  }
+
+  /**
+   * A stage thread: handles everything its upstream has finished as one batch, then wakes
+   * the stage after it. With nothing to do it spins, yields and then parks until woken.
+   */
+  private abstract class Stage implements Runnable {
+    final Sequence sequence = new Sequence();
+    final Stage upstream;
+    Stage downstream;
+    Thread thread;
+    volatile boolean sleeping;
+
+    Stage(Stage upstream) {
+      this.upstream = upstream;
+      if (upstream != null) {
+        upstream.downstream = this;
+      }
+    }
+
+    /**
+     * @return the highest sequence this stage may handle
+     */
+    long available(long next) {
+      return upstream.sequence.get();
+    }
+
+    abstract void onEvent(int slot);
+
+    /**
+     * work due regardless of new events
+     *
+     * @param handled the last sequence handled
+     * @return true if there was any
+     */
+    boolean poll(long handled) {
+      return false;
+    }
+
+    long parkNanos() {
+      return MAX_PARK_NS;
+    }
+
+    void wake() {
+      if (sleeping) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    @Override
+    public void run() {
+      long next = 0;
+      int idleCount = 0;
+      while (keepRunning.get()) {
+        boolean busy = false;
+        long available = available(next);
+        if (available >= next) {
+          for (long seq = next; seq <= available; seq++) {
+            try {
+              onEvent((int) (seq & mask));
+            } catch (Exception e) {
+              logger.error("relay pipeline stage failed on an event", e);
+            }
+          }
+          sequence.set(available);
+          if (downstream != null) {
+            downstream.wake();
+          }
+          batches.incrementAndGet();
+          batchedEvents.addAndGet(available - next + 1);
+          next = available + 1;
+          busy = true;
+        }
+        try {
+          busy |= poll(next - 1);
+        } catch (Exception e) {
+          logger.error("relay pipeline stage got exception", e);
+        }
+        idleCount = busy ? 0 : idle(idleCount, next);
+      }
+    }
+
+    /**
+     * @return the new idle count
+     */
+    private int idle(int idleCount, long next) {
+      if (idleCount < spinTries) {
+        return idleCount + 1;
+      }
+      if (idleCount < spinTries + yieldTries) {
+        Thread.yield();
+        return idleCount + 1;
+      }
+      sleeping = true;
+      // recheck after raising the flag, the upstream may have just missed it
+      if (available(next) < next) {
+        LockSupport.parkNanos(this, parkNanos());
+      }
+      sleeping = false;
+      return idleCount;
+    }
+  }
+
+  private final class ParseStage extends Stage {
+    ParseStage() {
+      super(null);
+    }
+
+    @Override
+    long available(long next) {
+      // handler threads publish out of claim order; stop at the first slot not published yet
+      long available = next - 1;
+      while (available - next < mask && ring[(int) ((available + 1) & mask)].sequence == available + 1) {
+        available++;
+      }
+      return available;
+    }
+
+    @Override
+    void onEvent(int slot) {
+      ring[slot].parse();
+    }
+  }
+
+  private final class DecideStage extends Stage {
+    private final MessageDecider decider;
+
+    DecideStage(Stage upstream, MessageDecider decider) {
+      super(upstream);
+      this.decider = decider;
+    }
+
+    @Override
+    void onEvent(int slot) {
+      decider.decide(ring[slot]);
+    }
+  }
+
+  private final class PersistStage extends Stage {
+    PersistStage(Stage upstream) {
+      super(upstream);
+    }
+
+    @Override
+    void onEvent(int slot) {
+      MessageEvent event = ring[slot];
+      if (event.storeIndex >= 0) {
+        messageRelayManager.storeMessage(event.getRegId(), event.incomingMessage);
+      }
+      // the responses are rendered from the scanned fields
+      event.incomingMessage = null;
+    }
+  }
+
+  /**
+   * the schedule and relay stages share a thread, which owns the timing wheel
+   */
+  private final class RelayStage extends Stage {
+    RelayStage(Stage upstream) {
+      super(upstream);
+    }
+
+    @Override
+    void onEvent(int slot) {
+      long now = System.nanoTime();
+      // fire what came due first, so nothing due earlier is left in a passed bucket
+      expireTicks(now);
+      schedule(slot, now);
+    }
+
+    @Override
+    boolean poll(long handled) {
+      boolean fired = expireTicks(System.nanoTime());
+      return releaseSlots(handled) || fired;
+    }
+
+    @Override
+    long parkNanos() {
+      if (scheduledResponses == 0) {
+        return MAX_PARK_NS;
+      }
+      // until the end of the current tick
+      return Math.min(MAX_PARK_NS, startNanos + (tick + 1) * tickNanos - System.nanoTime());
+    }
+  }
+
+  private void schedule(int slot, long now) {
+    MessageEvent event = ring[slot];
+    relayMetrics.recordIngressToScheduled(event.ingressNanos);
+    event.pending = event.responseCount;
+    for (int i = 0; i < event.responseCount; i++) {
+      long due = event.ingressNanos + event.delayNanos[i];
+      long dueTick = Math.max((due - startNanos) / tickNanos, tick);
+      int bucket = (int) (dueTick & wheelMask);
+      // a response already due only waits if the current bucket holds ones due before it
+      if (event.immediate || (due - now <= 0 && bucketHeads[bucket] == NONE)) {
+        fire(slot, i);
+      } else {
+        int entry = slot * MessageEvent.MAX_RESPONSES + i;
+        entryRounds[entry] = (int) Math.min((dueTick - tick) / bucketHeads.length, Integer.MAX_VALUE);
+        append(bucket, entry);
+        scheduledResponses++;
+      }
+    }
+  }
+
+  private void append(int bucket, int entry) {
+    entryNext[entry] = NONE;
+    if (bucketHeads[bucket] == NONE) {
+      bucketHeads[bucket] = entry;
+    } else {
+      entryNext[bucketTails[bucket]] = entry;
+    }
+    bucketTails[bucket] = entry;
+  }
+
+  /**
+   * fire the buckets of the ticks that have ended
+   *
+   * @return true if any response was relayed
+   */
+  private boolean expireTicks(long now) {
+    if (scheduledResponses == 0) {
+      // nothing to fire in the buckets passed while idle
+      tick = Math.max(tick, (now - startNanos) / tickNanos);
+      return false;
+    }
+    boolean fired = false;
+    while (startNanos + (tick + 1) * tickNanos - now <= 0) {
+      fired |= expireBucket((int) (tick & wheelMask));
+      tick++;
+    }
+    return fired;
+  }
+
+  private boolean expireBucket(int bucket) {
+    int entry = bucketHeads[bucket];
+    if (entry == NONE) {
+      return false;
+    }
+    bucketHeads[bucket] = NONE;
+    bucketTails[bucket] = NONE;
+    boolean fired = false;
+    while (entry != NONE) {
+      int next = entryNext[entry];
+      if (entryRounds[entry] <= 0) {
+        scheduledResponses--;
+        fire(entry / MessageEvent.MAX_RESPONSES, entry % MessageEvent.MAX_RESPONSES);
+        fired = true;
+      } else {
+        entryRounds[entry]--;
+        append(bucket, entry);
+      }
+      entry = next;
+    }
+    return fired;
+  }
+
+  private void fire(int slot, int index) {
+    MessageEvent event = ring[slot];
+    ResponseTemplate template = event.templates[index];
+    String regId = event.getRegId();
+    String messageId = event.getMessageId();
+    long due = event.ingressNanos + event.delayNanos[index];
+    long start = relayMetrics.jobStarted(due);
+    try {
+      // a receipt is stamped with the time it goes out
+      String payload = template.render(regId, messageId, System.currentTimeMillis());
+      if (messageTracer.isPayloadLogging()) {
+        logger.info("relaying message: {}", payload);
+      }
+      messageTracer.trace(template.getMessageType(), messageId, regId);
+      messageRelayManager.relay(due, event.target.getServerRuntimeContext(), event.target.getReceiver(),
+          ResponseRenderer.toStanza(event.stanzaId, payload));
+    } catch (Exception e) {
+      logger.warn("failed to relay message", e);
+    } finally {
+      relayMetrics.jobFinished(start);
+      if (index == event.releaseIndex) {
+        event.inFlightCounter.decrementAndGet();
+      }
+      event.pending--;
+    }
+  }
+
+  /**
+   * free the slots at the tail of the ring whose responses are all relayed
+   *
+   * @param scheduled the last sequence scheduled
+   * @return true if any slot was freed
+   */
+  private boolean releaseSlots(long scheduled) {
+    long last = released.get();
+    long sequence = last;
+    while (sequence < scheduled) {
+      MessageEvent event = ring[(int) ((sequence + 1) & mask)];
+      if (event.pending > 0) {
+        break;
+      }
+      event.clear();
+      sequence++;
+    }
+    if (sequence == last) {
+      return false;
+    }
+    released.set(sequence);
+    return true;
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public int getRingSize() {
+    return ring.length;
+  }
+
+  @Override
+  public long getPublishedEvents() {
+    return cursor.get() + 1;
+  }
+
+  @Override
+  public long getOccupiedSlots() {
+    return cursor.get() - released.get();
+  }
+
+  @Override
+  public int getScheduledResponses() {
+    return scheduledResponses;
+  }
+
+  @Override
+  public long getProducerWaits() {
+    return producerWaits.get();
+  }
+
+  @Override
+  public double getAverageBatchSize() {
+    long count = batches.get();
+    return count == 0 ? 0 : (double) batchedEvents.get() / count;
+  }
+}
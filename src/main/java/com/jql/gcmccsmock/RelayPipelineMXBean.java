@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jql.gcmccsmock;
+
+/**
+ * JMX view of the ring buffer relay pipeline
+ */
+public interface RelayPipelineMXBean {
+  boolean isEnabled();
+  int getRingSize();
+  /**
+   * @return incoming messages published to the ring
+   */
+  long getPublishedEvents();
+  /**
+   * @return slots taken by messages with responses still to relay
+   */
+  long getOccupiedSlots();
+  int getScheduledResponses();
+  /**
+   * @return times a handler thread waited for a free slot
+   */
+  long getProducerWaits();
+  /**
+   * @return events handled per stage pass, averaged over the stages
+   */
+  double getAverageBatchSize();
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the RelayScheduler selected by relay.scheduler
+ */
+public class RelaySchedulerFactory {
+  private static final String SCHEDULER_DELAY_QUEUE = "delayqueue";
+  private static final String SCHEDULER_TIMING_WHEEL = "timingwheel";
+  private static final String DEFAULT_TIMING_WHEEL_TICK_MS = "5";
+  private static final String DEFAULT_TIMING_WHEEL_SIZE = "512";
+
+  private final String type;
+  private final long tickMicros;
+  private final int wheelSize;
+
+  public RelaySchedulerFactory(Config config) {
+    this.type = config.getProperty("relay.scheduler", SCHEDULER_TIMING_WHEEL);
+    // relay.timingwheel.tick.us takes precedence, for sub-millisecond ticks
+    String tickMicrosStr = config.getProperty("relay.timingwheel.tick.us");
+    this.tickMicros = tickMicrosStr != null ? Long.parseLong(tickMicrosStr)
+        : TimeUnit.MILLISECONDS.toMicros(Long.parseLong(config.getProperty("relay.timingwheel.tick.ms", DEFAULT_TIMING_WHEEL_TICK_MS)));
+    this.wheelSize = Integer.parseInt(config.getProperty("relay.timingwheel.size", DEFAULT_TIMING_WHEEL_SIZE));
+    if (!SCHEDULER_DELAY_QUEUE.equalsIgnoreCase(type) && !SCHEDULER_TIMING_WHEEL.equalsIgnoreCase(type)) {
+      throw new IllegalArgumentException("unknown relay.scheduler: " + type);
+    }
+  }
+
+  public RelayScheduler create(JobDispatcher dispatcher) {
+    if (SCHEDULER_DELAY_QUEUE.equalsIgnoreCase(type)) {
+      return new DelayQueueRelayScheduler(dispatcher);
+    }
+    return new TimingWheelRelayScheduler(dispatcher, tickMicros, TimeUnit.MICROSECONDS, wheelSize);
+  }
+
+  @Override
+  public String toString() {
+    return SCHEDULER_DELAY_QUEUE.equalsIgnoreCase(type) ? type : type + "(tick=" + tickMicros + "us, size=" + wheelSize + ")";
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One shard of the sharded relay engine: a private RelayScheduler plus the single
+ * worker thread that runs it. Due jobs are executed inline on that thread, so all
+ * jobs routed to the shard fire strictly in scheduled order.
+ */
+public class RelayShard implements JobDispatcher {
+  final Logger logger = LoggerFactory.getLogger(RelayShard.class);
+
+  private final MessageRelayManager messageRelayManager;
+  private final RelayScheduler scheduler;
+  private final Thread worker;
+
+  public RelayShard(MessageRelayManager messageRelayManager, RelaySchedulerFactory schedulerFactory, int index) {
+    this.messageRelayManager = messageRelayManager;
+    this.scheduler = schedulerFactory.create(this);
+    this.worker = new Thread(scheduler, "relay-shard-" + index);
+    this.worker.setDaemon(true);
+  }
+
+  public void start() {
+    worker.start();
+  }
+
+  public boolean schedule(ScheduledJob job) {
+    return scheduler.schedule(job);
+  }
+
+  public int size() {
+    return scheduler.size();
+  }
+
+  public void stop() {
+    scheduler.stop();
+    worker.interrupt();
+  }
+
+  @Override
+  public void dispatch(ScheduledJob job) {
+    try {
+      messageRelayManager.execute(job);
+    } catch (Exception e) {
+      logger.error("failed to execute job", e);
+    }
+  }
+}
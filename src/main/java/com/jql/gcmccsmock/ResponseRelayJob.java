@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.delivery.failure.DeliveryException;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compact ScheduledJob for a response to an incoming message: ack, nack, receipt or control.
+ *
+ * The job only keeps the response template, the ids of the incoming message and the
+ * provider session's Target, which all jobs of the session share. The payload and the
+ * stanza are rendered when the job fires, so a pending job holds no XML tree and,
+ * unless it has to store the incoming message, no copy of it.
+ */
+public class ResponseRelayJob extends ScheduledJob {
+  private static final Logger logger = LoggerFactory.getLogger(ResponseRelayJob.class);
+
+  /**
+   * where the responses of a provider session go
+   */
+  public static final class Target {
+    private final Entity receiver;
+    private final ServerRuntimeContext serverRuntimeContext;
+
+    public Target(Entity receiver, ServerRuntimeContext serverRuntimeContext) {
+      this.receiver = receiver;
+      this.serverRuntimeContext = serverRuntimeContext;
+    }
+
+    public Entity getReceiver() {
+      return receiver;
+    }
+
+    public ServerRuntimeContext getServerRuntimeContext() {
+      return serverRuntimeContext;
+    }
+  }
+
+  private final Target target;
+  private final ResponseTemplate template;
+  private final String stanzaId;
+  private final String regId;
+  private final String messageId;
+  private String incomingMessage;
+  private AtomicInteger inFlightCounter;
+  private boolean sheddable;
+
+  /**
+   * @param delay
+   * @param unit
+   * @param target
+   * @param template the response payload
+   * @param stanzaId the id of the incoming message stanza, may be null
+   * @param regId the 'to' of the incoming message
+   * @param messageId the 'message_id' of the incoming message, may be null
+   */
+  public ResponseRelayJob(long delay, TimeUnit unit, Target target, ResponseTemplate template, String stanzaId,
+                          String regId, String messageId) {
+    super(delay, unit);
+    this.target = target;
+    this.template = template;
+    this.stanzaId = stanzaId;
+    this.regId = regId;
+    this.messageId = messageId;
+  }
+
+  /**
+   * @param incomingMessage stored into the message store before the response is relayed
+   */
+  public void setIncomingMessage(String incomingMessage) {
+    this.incomingMessage = incomingMessage;
+  }
+
+  /**
+   * flow control counter of the connection, released once this job has relayed its response
+   *
+   * @param inFlightCounter may be null
+   */
+  public void setInFlightCounter(AtomicInteger inFlightCounter) {
+    this.inFlightCounter = inFlightCounter;
+  }
+
+  /**
+   * @param sheddable true for responses that may be dropped under overload, i.e. receipts
+   */
+  public void setSheddable(boolean sheddable) {
+    this.sheddable = sheddable;
+  }
+
+  @Override
+  public boolean isSheddable() {
+    return sheddable;
+  }
+
+  @Override
+  public Object getRoutingKey() {
+    return target.receiver;
+  }
+
+  @Override
+  public boolean execute(MessageRelayManager messageRelayManager) {
+    try {
+      if (incomingMessage != null) {
+        messageRelayManager.storeMessage(regId, incomingMessage);
+      }
+      // a receipt is stamped with the time it goes out
+      String payload = template.render(regId, messageId, System.currentTimeMillis());
+      MessageTracer messageTracer = messageRelayManager.getMessageTracer();
+      if (messageTracer.isPayloadLogging()) {
+        logger.info("relaying message: {}", payload);
+      }
+      messageTracer.trace(template.getMessageType(), messageId, regId);
+      messageRelayManager.relay(this, target.serverRuntimeContext, target.receiver,
+          ResponseRenderer.toStanza(stanzaId, payload));
+    } catch (DeliveryException e) {
+      logger.warn("failed to relay message", e);
+      return false;
+    } finally {
+      if (inFlightCounter != null) {
+        inFlightCounter.decrementAndGet();
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.apache.vysper.xml.fragment.Attribute;
+import org.apache.vysper.xml.fragment.XMLElement;
+import org.apache.vysper.xml.fragment.XMLFragment;
+import org.apache.vysper.xml.fragment.XMLText;
+import org.apache.vysper.xmpp.stanza.Stanza;
+
+/**
+ * Precompiled templates of the CCS response payloads, and the stanza wrapper
+ * built directly instead of through StanzaBuilder/GCMMessage.Builder.
+ */
+public final class ResponseRenderer {
+
+  public static final ResponseTemplate ACK = ResponseTemplate.compile(
+      "{\"message_type\":\"ack\",\"from\":\"${regId}\",\"message_id\":\"${messageId}\"}");
+
+  public static final ResponseTemplate NACK = ResponseTemplate.compile(
+      "{\"message_type\":\"nack\",\"from\":\"${regId}\",\"message_id\":\"${messageId}\","
+          + "\"error\":\"${error}\",\"error_description\":\"${description}\"}");
+
+  public static final ResponseTemplate NACK_BAD_REGISTRATION = ResponseTemplate.compile(
+      "{\"message_type\":\"nack\",\"from\":\"${regId}\",\"message_id\":\"${messageId}\","
+          + "\"error\":\"BAD_REGISTRATION\",\"error_description\":\"Invalid token on 'to' field: ${regId}\"}");
+
+  public static final ResponseTemplate NACK_RATE_EXCEEDED = compileNack("DEVICE_MESSAGE_RATE_EXCEEDED",
+      "Downstream message rate exceeded for this device");
+
+  public static final ResponseTemplate NACK_OVERLOADED = compileNack("SERVICE_UNAVAILABLE",
+      "The server is overloaded, retry later");
+
+  // TODO category is made up
+  public static final ResponseTemplate RECEIPT = ResponseTemplate.compile(
+      "{\"message_type\":\"receipt\",\"from\":\"gcm.googleapis.com\",\"category\":\"com.itsoninc.client\","
+          + "\"message_id\":\"dr2:${messageId}\",\"data\":{\"message_status\":\"MESSAGE_SENT_TO_DEVICE\","
+          + "\"original_message_id\":\"${messageId}\",\"device_registration_id\":\"${regId}\","
+          + "\"message_sent_timestamp\":\"${timestamp}\"}}");
+
+  public static final ResponseTemplate DRAINING = ResponseTemplate.compile(
+      "{\"message_type\":\"control\",\"control_type\":\"CONNECTION_DRAINING\"}");
+
+  private static final Attribute[] NO_ATTRIBUTES = new Attribute[0];
+
+  private ResponseRenderer() {
+  }
+
+  /**
+   * @param error the CCS error code
+   * @param description may contain ${regId}
+   * @return a nack template with the error and description filled in
+   */
+  public static ResponseTemplate compileNack(String error, String description) {
+    StringBuilder sb = new StringBuilder(
+        "{\"message_type\":\"nack\",\"from\":\"${regId}\",\"message_id\":\"${messageId}\",\"error\":\"");
+    ResponseTemplate.appendEscaped(sb, error);
+    sb.append("\",\"error_description\":\"");
+    ResponseTemplate.appendEscaped(sb, description);
+    sb.append("\"}");
+    return ResponseTemplate.compile(sb.toString());
+  }
+
+  /**
+   * @param canonicalRegId
+   * @return an ack template telling the sender to use canonicalRegId from now on
+   */
+  public static ResponseTemplate compileCanonicalAck(String canonicalRegId) {
+    StringBuilder sb = new StringBuilder(
+        "{\"message_type\":\"ack\",\"from\":\"${regId}\",\"message_id\":\"${messageId}\",\"registration_id\":\"");
+    ResponseTemplate.appendEscaped(sb, canonicalRegId);
+    sb.append("\"}");
+    return ResponseTemplate.compile(sb.toString());
+  }
+
+  /**
+   * wrap a payload as <message id=""><gcm xmlns="google:mobile:data">payload</gcm></message>
+   *
+   * @param id the id of the original message stanza, may be null
+   * @param payload
+   * @return
+   */
+  public static Stanza toStanza(String id, String payload) {
+    XMLElement gcm = new XMLElement(Constants.NAME_SPACE_GCM, "gcm", null, NO_ATTRIBUTES,
+        new XMLFragment[]{new XMLText(payload)});
+    return new Stanza(null, "message", null, new Attribute[]{new Attribute("id", id == null ? "" : id)},
+        new XMLFragment[]{gcm});
+  }
+}
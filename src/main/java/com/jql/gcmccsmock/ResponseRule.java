@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What to answer for a message whose target registration id matched a rule.
+ * See ResponseRules for the file syntax.
+ */
+public final class ResponseRule {
+
+  public enum Action {
+    /** ack and receipt, optionally with a canonical registration id or custom delays */
+    ACK,
+    /** ack and receipt followed by a CONNECTION_DRAINING control message */
+    DRAIN,
+    /** nack with an error code instead of the ack, no receipt */
+    NACK,
+    /** no response at all */
+    DROP
+  }
+
+  private final Action action;
+  private final ResponseTemplate response;
+  private final long ackDelayNanos;
+  private final long receiptDelayNanos;
+  private final String source;
+
+  /**
+   * @param response the ack or nack payload; null for the default ack
+   * @param ackDelayMs the ack/nack delay; negative to draw it from DelayProfiles
+   * @param receiptDelayMs negative to draw it from DelayProfiles
+   * @param source the rule as written, for logging
+   */
+  ResponseRule(Action action, ResponseTemplate response, double ackDelayMs, double receiptDelayMs, String source) {
+    this.action = action;
+    this.response = response;
+    this.ackDelayNanos = ackDelayMs < 0 ? -1 : Math.round(ackDelayMs * TimeUnit.MILLISECONDS.toNanos(1));
+    this.receiptDelayNanos = receiptDelayMs < 0 ? -1 : Math.round(receiptDelayMs * TimeUnit.MILLISECONDS.toNanos(1));
+    this.source = source;
+  }
+
+  public Action getAction() {
+    return action;
+  }
+
+  public ResponseTemplate getResponse() {
+    return response;
+  }
+
+  /**
+   * @return nanoseconds, or -1 if not set by the rule
+   */
+  public long getAckDelayNanos() {
+    return ackDelayNanos;
+  }
+
+  /**
+   * @return nanoseconds, or -1 if not set by the rule
+   */
+  public long getReceiptDelayNanos() {
+    return receiptDelayNanos;
+  }
+
+  @Override
+  public String toString() {
+    return source;
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Response rules keyed on the target registration id, loaded from rules.file.
+ *
+ * One rule per line, MATCH ACTION [ARGS]:
+ * <pre>
+ * exact:REG_ID         the registration id itself
+ * prefix:PREFIX        registration ids starting with PREFIX
+ * percent:P            P percent of all registration ids, picked by a stable hash of the id
+ *
+ * nack ERROR [DESCRIPTION...]   e.g. nack DEVICE_UNREGISTERED; ${regId} in the description is replaced
+ * canonical NEW_REG_ID          ack carrying registration_id, then the receipt
+ * drop                          no ack, no receipt
+ * delay ACK_MS [RECEIPT_MS]     ack and receipt with fixed delays
+ * drain                         ack and receipt, then a CONNECTION_DRAINING control message
+ * </pre>
+ * An exact rule wins over a prefix rule, and the longest prefix wins over a shorter one.
+ * Percent rules apply to the ids no other rule matches. They take consecutive slices of the
+ * hash space in file order, so "percent:2 nack DEVICE_UNREGISTERED" and "percent:1 drop"
+ * hit disjoint ids.
+ *
+ * bad.registration.id and draining.registration.id are added as exact rules.
+ *
+ * Matching costs one hash lookup, a trie walk bounded by the longest prefix, and an array
+ * lookup, however many rules there are.
+ */
+@Singleton
+public class ResponseRules {
+  final Logger logger = LoggerFactory.getLogger(ResponseRules.class);
+
+  // percent rules have a resolution of 0.01%
+  static final int BUCKETS = 10000;
+
+  private final Map<String, ResponseRule> exact = new HashMap<>();
+  private final PrefixTrie prefixes = new PrefixTrie();
+  private ResponseRule[] buckets;
+  private int bucketsUsed;
+  private int ruleCount;
+
+  @Inject
+  public ResponseRules(Config config) {
+    String badRegistrationTag = config.getProperty("bad.registration.id", "BAD_REGISTRATION");
+    exact.put(badRegistrationTag, new ResponseRule(ResponseRule.Action.NACK, ResponseRenderer.NACK_BAD_REGISTRATION,
+        -1, -1, "exact:" + badRegistrationTag + " nack BAD_REGISTRATION"));
+    String drainingTag = config.getProperty("draining.registration.id", "DRAIN_ME");
+    exact.put(drainingTag, new ResponseRule(ResponseRule.Action.DRAIN, null, -1, -1, "exact:" + drainingTag + " drain"));
+
+    String rulesFile = config.getProperty("rules.file", "").trim();
+    if (!rulesFile.isEmpty()) {
+      try {
+        load(rulesFile);
+      } catch (IOException e) {
+        throw new IllegalArgumentException("cannot read rules.file: " + rulesFile, e);
+      }
+      logger.info("loaded {} response rules from {}, percent rules cover {}%", ruleCount, rulesFile,
+          bucketsUsed * 100.0 / BUCKETS);
+    }
+  }
+
+  /**
+   * @param regId
+   * @return the rule for regId, or null for the default responses
+   */
+  public ResponseRule match(String regId) {
+    ResponseRule rule = exact.get(regId);
+    if (rule != null) {
+      return rule;
+    }
+    rule = prefixes.longestMatch(regId);
+    if (rule != null) {
+      return rule;
+    }
+    if (buckets != null) {
+      return buckets[bucket(regId)];
+    }
+    return null;
+  }
+
+  static int bucket(String regId) {
+    return (int) ((Strings.hash(regId) >>> 1) % BUCKETS);
+  }
+
+  private void load(String file) throws IOException {
+    InputStream is = file.contains("/") ? new FileInputStream(file)
+        : Thread.currentThread().getContextClassLoader().getResourceAsStream(file);
+    if (is == null) {
+      throw new IOException("not found: " + file);
+    }
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, Strings.UTF_8))) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        try {
+          addRule(line);
+        } catch (RuntimeException e) {
+          throw new IllegalArgumentException(file + ":" + lineNumber + ": " + e.getMessage() + ": " + line, e);
+        }
+      }
+    }
+  }
+
+  private void addRule(String line) {
+    String[] fields = line.split("\\s+");
+    if (fields.length < 2) {
+      throw new IllegalArgumentException("expected MATCH ACTION");
+    }
+    ResponseRule rule = parseAction(fields, line);
+    String match = fields[0];
+    int colon = match.indexOf(':');
+    if (colon < 0 || colon == match.length() - 1) {
+      throw new IllegalArgumentException("expected exact:, prefix: or percent:");
+    }
+    String kind = match.substring(0, colon);
+    String value = match.substring(colon + 1);
+    switch (kind) {
+      case "exact":
+        exact.put(value, rule);
+        break;
+      case "prefix":
+        prefixes.put(value, rule);
+        break;
+      case "percent":
+        int slots = (int) Math.round(Double.parseDouble(value) * BUCKETS / 100);
+        if (slots <= 0 || bucketsUsed + slots > BUCKETS) {
+          throw new IllegalArgumentException("percent rules must be positive and add up to at most 100");
+        }
+        if (buckets == null) {
+          buckets = new ResponseRule[BUCKETS];
+        }
+        Arrays.fill(buckets, bucketsUsed, bucketsUsed + slots, rule);
+        bucketsUsed += slots;
+        break;
+      default:
+        throw new IllegalArgumentException("unknown match " + kind);
+    }
+    ruleCount++;
+  }
+
+  /**
+   * @param regId
+   * @param spec ACTION [ARGS] as in the rules file, e.g. nack DEVICE_UNREGISTERED
+   * @return the rule
+   * @throws IllegalArgumentException if spec is not a valid action
+   */
+  static ResponseRule parseDeviceRule(String regId, String spec) {
+    String line = "exact:" + regId + " " + spec.trim();
+    return parseAction(line.split("\\s+"), line);
+  }
+
+  private static ResponseRule parseAction(String[] fields, String line) {
+    switch (fields[1]) {
+      case "nack":
+        if (fields.length < 3) {
+          throw new IllegalArgumentException("nack needs an error code");
+        }
+        // the description is the rest of the line
+        String description = fields.length > 3 ? line.split("\\s+", 4)[3] : fields[2];
+        return new ResponseRule(ResponseRule.Action.NACK, ResponseRenderer.compileNack(fields[2], description), -1, -1, line);
+      case "canonical":
+        if (fields.length != 3) {
+          throw new IllegalArgumentException("canonical needs the new registration id");
+        }
+        return new ResponseRule(ResponseRule.Action.ACK, ResponseRenderer.compileCanonicalAck(fields[2]), -1, -1, line);
+      case "drop":
+        return new ResponseRule(ResponseRule.Action.DROP, null, -1, -1, line);
+      case "delay":
+        if (fields.length < 3 || fields.length > 4) {
+          throw new IllegalArgumentException("delay needs ACK_MS [RECEIPT_MS]");
+        }
+        double ackMs = Double.parseDouble(fields[2]);
+        double receiptMs = fields.length > 3 ? Double.parseDouble(fields[3]) : -1;
+        if (ackMs < 0 || (fields.length > 3 && receiptMs < 0)) {
+          throw new IllegalArgumentException("negative delay");
+        }
+        return new ResponseRule(ResponseRule.Action.ACK, null, ackMs, receiptMs, line);
+      case "drain":
+        return new ResponseRule(ResponseRule.Action.DRAIN, null, -1, -1, line);
+      default:
+        throw new IllegalArgumentException("unknown action " + fields[1]);
+    }
+  }
+
+  /**
+   * char trie of the prefix rules; children are kept in sorted arrays and looked up by
+   * binary search, so a walk does not allocate
+   */
+  static final class PrefixTrie {
+    private final Node root = new Node();
+    private int maxDepth;
+
+    void put(String prefix, ResponseRule rule) {
+      Node node = root;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.childOrCreate(prefix.charAt(i));
+      }
+      node.rule = rule;
+      maxDepth = Math.max(maxDepth, prefix.length());
+    }
+
+    ResponseRule longestMatch(String value) {
+      ResponseRule match = null;
+      Node node = root;
+      int depth = Math.min(value.length(), maxDepth);
+      for (int i = 0; i < depth; i++) {
+        node = node.child(value.charAt(i));
+        if (node == null) {
+          break;
+        }
+        if (node.rule != null) {
+          match = node.rule;
+        }
+      }
+      return match;
+    }
+
+    private static final class Node {
+      private static final char[] NO_KEYS = new char[0];
+      private static final Node[] NO_CHILDREN = new Node[0];
+
+      char[] keys = NO_KEYS;
+      Node[] children = NO_CHILDREN;
+      ResponseRule rule;
+
+      Node child(char c) {
+        int index = Arrays.binarySearch(keys, c);
+        return index >= 0 ? children[index] : null;
+      }
+
+      Node childOrCreate(char c) {
+        int index = Arrays.binarySearch(keys, c);
+        if (index >= 0) {
+          return children[index];
+        }
+        int insert = -index - 1;
+        char[] newKeys = new char[keys.length + 1];
+        Node[] newChildren = new Node[keys.length + 1];
+        System.arraycopy(keys, 0, newKeys, 0, insert);
+        System.arraycopy(children, 0, newChildren, 0, insert);
+        System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+        System.arraycopy(children, insert, newChildren, insert + 1, keys.length - insert);
+        Node node = new Node();
+        newKeys[insert] = c;
+        newChildren[insert] = node;
+        keys = newKeys;
+        children = newChildren;
+        return node;
+      }
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JSON response payload precompiled into literal fragments and value slots.
+ *
+ * Slots are written as ${name} in the template. A slot enclosed in quotes ("${name}")
+ * renders as a JSON string, or as null when the value is null. A slot inside a longer
+ * string literal renders the escaped text only. ${timestamp} renders a number.
+ */
+public final class ResponseTemplate {
+
+  public enum Slot {
+    REG_ID("regId"),
+    MESSAGE_ID("messageId"),
+    TIMESTAMP("timestamp"),
+    ERROR("error"),
+    DESCRIPTION("description");
+
+    private final String placeholder;
+
+    Slot(String name) {
+      this.placeholder = "${" + name + "}";
+    }
+  }
+
+  private static final String MESSAGE_TYPE_FIELD = "\"message_type\":\"";
+  private static final int INITIAL_BUFFER_SIZE = 512;
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(INITIAL_BUFFER_SIZE);
+    }
+  };
+
+  // literals[i] precedes slots[i]; the last literal follows the last slot
+  private final String[] literals;
+  private final Slot[] slots;
+  private final boolean[] quoted;
+  private final String messageType;
+
+  private ResponseTemplate(String[] literals, Slot[] slots, boolean[] quoted, String messageType) {
+    this.literals = literals;
+    this.slots = slots;
+    this.quoted = quoted;
+    this.messageType = messageType;
+  }
+
+  public static ResponseTemplate compile(String template) {
+    List<String> literals = new ArrayList<>();
+    List<Slot> slots = new ArrayList<>();
+    List<Boolean> quoted = new ArrayList<>();
+    int start = 0;
+    for (;;) {
+      int next = -1;
+      Slot nextSlot = null;
+      for (Slot slot : Slot.values()) {
+        int index = template.indexOf(slot.placeholder, start);
+        if (index >= 0 && (next < 0 || index < next)) {
+          next = index;
+          nextSlot = slot;
+        }
+      }
+      if (nextSlot == null) {
+        break;
+      }
+      int end = next + nextSlot.placeholder.length();
+      boolean isQuoted = next > 0 && template.charAt(next - 1) == '"' && !isEscaped(template, next - 1)
+          && end < template.length() && template.charAt(end) == '"';
+      if (isQuoted) {
+        literals.add(template.substring(start, next - 1));
+        start = end + 1;
+      } else {
+        literals.add(template.substring(start, next));
+        start = end;
+      }
+      slots.add(nextSlot);
+      quoted.add(isQuoted);
+    }
+    if (template.indexOf("${", start) >= 0) {
+      throw new IllegalArgumentException("unknown slot in template: " + template);
+    }
+    literals.add(template.substring(start));
+
+    boolean[] quotedArray = new boolean[quoted.size()];
+    for (int i = 0; i < quotedArray.length; i++) {
+      quotedArray[i] = quoted.get(i);
+    }
+    return new ResponseTemplate(literals.toArray(new String[literals.size()]),
+        slots.toArray(new Slot[slots.size()]), quotedArray, messageType(template));
+  }
+
+  /**
+   * @return true if the character at index follows an odd number of backslashes
+   */
+  private static boolean isEscaped(String template, int index) {
+    int backslashes = 0;
+    while (index - backslashes > 0 && template.charAt(index - backslashes - 1) == '\\') {
+      backslashes++;
+    }
+    return (backslashes & 1) != 0;
+  }
+
+  private static String messageType(String template) {
+    int start = template.indexOf(MESSAGE_TYPE_FIELD);
+    if (start < 0) {
+      return null;
+    }
+    start += MESSAGE_TYPE_FIELD.length();
+    int end = template.indexOf('"', start);
+    return end < 0 ? null : template.substring(start, end);
+  }
+
+  /**
+   * @return the literal message_type of the response, e.g. ack; null if not in the template
+   */
+  public String getMessageType() {
+    return messageType;
+  }
+
+  public String render(String regId, String messageId, long timestamp) {
+    return render(regId, messageId, timestamp, null, null);
+  }
+
+  /**
+   * render into the thread's reused buffer
+   *
+   * @return the payload
+   */
+  public String render(String regId, String messageId, long timestamp, String error, String description) {
+    StringBuilder sb = BUFFER.get();
+    sb.setLength(0);
+    for (int i = 0; i < slots.length; i++) {
+      sb.append(literals[i]);
+      switch (slots[i]) {
+        case TIMESTAMP:
+          if (quoted[i]) {
+            sb.append('"').append(timestamp).append('"');
+          } else {
+            sb.append(timestamp);
+          }
+          break;
+        case REG_ID:
+          appendValue(sb, regId, quoted[i]);
+          break;
+        case MESSAGE_ID:
+          appendValue(sb, messageId, quoted[i]);
+          break;
+        case ERROR:
+          appendValue(sb, error, quoted[i]);
+          break;
+        default:
+          appendValue(sb, description, quoted[i]);
+      }
+    }
+    sb.append(literals[slots.length]);
+    return sb.toString();
+  }
+
+  private static void appendValue(StringBuilder sb, String value, boolean quoted) {
+    if (value == null) {
+      sb.append("null");
+      return;
+    }
+    if (quoted) {
+      sb.append('"');
+    }
+    appendEscaped(sb, value);
+    if (quoted) {
+      sb.append('"');
+    }
+  }
+
+  static void appendEscaped(StringBuilder sb, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"': sb.append("\\\""); break;
+        case '\\': sb.append("\\\\"); break;
+        case '\b': sb.append("\\b"); break;
+        case '\f': sb.append("\\f"); break;
+        case '\n': sb.append("\\n"); break;
+        case '\r': sb.append("\\r"); break;
+        case '\t': sb.append("\\t"); break;
+        default:
+          if (c < 0x20 || (c >= '\u007f' && c <= '\u009f') || (c >= '\u2028' && c <= '\u2029')) {
+            sb.append("\\u").append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf])
+                .append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+  }
+}
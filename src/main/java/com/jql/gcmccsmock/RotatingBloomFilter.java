@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bloom filter over a sliding time window, made of three generations that each cover half
+ * the window, so an entry is remembered for one to one and a half windows. Bits are set with
+ * CAS, an expired generation is swapped for a fresh one with CAS; there is no lock.
+ *
+ * Entries are given as two 64-bit hashes, combined as h1 + k * h2 (Kirsch-Mitzenmacher).
+ */
+final class RotatingBloomFilter {
+
+  static final int GENERATIONS = 3;
+
+  private final long generationNanos;
+  private final int bitsPerGeneration;
+  private final int hashes;
+  private final long startNanos;
+  private final AtomicReferenceArray<Generation> generations = new AtomicReferenceArray<>(GENERATIONS);
+
+  /**
+   * @param windowNanos how long an entry is remembered at least
+   * @param windowIds entries expected per window
+   * @param falsePositiveRate target rate over a full window
+   * @param startNanos origin of the generation epochs
+   */
+  RotatingBloomFilter(long windowNanos, long windowIds, double falsePositiveRate, long startNanos) {
+    this.generationNanos = windowNanos / 2;
+    this.startNanos = startNanos;
+    // a lookup checks every live generation; give each a third of the budget, sized for the ids of
+    // the half window it covers
+    double generationRate = falsePositiveRate / GENERATIONS;
+    double generationIds = Math.max(1, windowIds / 2);
+    double bits = Math.ceil(-generationIds * Math.log(generationRate) / (Math.log(2) * Math.log(2)));
+    if (bits > (1L << 31) - 64) {
+      throw new IllegalArgumentException("too many ids per window for a false-positive rate of " + falsePositiveRate);
+    }
+    this.bitsPerGeneration = ((int) bits + 63) & ~63;
+    this.hashes = Math.max(1, (int) Math.round(bitsPerGeneration / generationIds * Math.log(2)));
+  }
+
+  int getHashes() {
+    return hashes;
+  }
+
+  long getBytes() {
+    return (long) GENERATIONS * bitsPerGeneration / 8;
+  }
+
+  boolean mightContain(long hash, long hash2, long now) {
+    long epoch = (now - startNanos) / generationNanos;
+    for (int i = 0; i < GENERATIONS; i++) {
+      Generation generation = generations.get(i);
+      if (generation == null || generation.epoch <= epoch - GENERATIONS) {
+        continue;
+      }
+      boolean all = true;
+      long h = hash;
+      for (int k = 0; k < hashes && all; k++, h += hash2) {
+        int bit = index(h);
+        all = (generation.bits.get(bit >>> 6) & (1L << bit)) != 0;
+      }
+      if (all) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void add(long hash, long hash2, long now) {
+    Generation generation = current((now - startNanos) / generationNanos);
+    long h = hash;
+    for (int k = 0; k < hashes; k++, h += hash2) {
+      int bit = index(h);
+      long mask = 1L << bit;
+      for (;;) {
+        long word = generation.bits.get(bit >>> 6);
+        if ((word & mask) != 0) {
+          break;
+        }
+        if (generation.bits.compareAndSet(bit >>> 6, word, word | mask)) {
+          generation.setBits.incrementAndGet();
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the false-positive rate right now, from the fill of the live generations
+   */
+  double estimatedFalsePositiveRate(long now) {
+    long epoch = (now - startNanos) / generationNanos;
+    double none = 1;
+    for (int i = 0; i < GENERATIONS; i++) {
+      Generation generation = generations.get(i);
+      if (generation != null && generation.epoch > epoch - GENERATIONS) {
+        none *= 1 - Math.pow((double) generation.setBits.get() / bitsPerGeneration, hashes);
+      }
+    }
+    return 1 - none;
+  }
+
+  private int index(long h) {
+    // multiply-shift reduction of the top 32 bits instead of a modulo
+    return (int) (((h >>> 32) * bitsPerGeneration) >>> 32);
+  }
+
+  private Generation current(long epoch) {
+    int slot = (int) (epoch % GENERATIONS);
+    for (;;) {
+      Generation generation = generations.get(slot);
+      if (generation != null && generation.epoch >= epoch) {
+        return generation;
+      }
+      if (generations.compareAndSet(slot, generation, new Generation(epoch, bitsPerGeneration))) {
+        return generations.get(slot);
+      }
+    }
+  }
+
+  private static final class Generation {
+    final long epoch;
+    final AtomicLongArray bits;
+    final AtomicLong setBits = new AtomicLong();
+
+    Generation(long epoch, int bitCount) {
+      this.epoch = epoch;
+      this.bits = new AtomicLongArray(bitCount >>> 6);
+    }
+  }
+}
@@ -26,19 +26,47 @@ import java.util.concurrent.TimeUnit;
 
 public class ScheduledJob implements Delayed {
   private final long scheduledTime; // utc in milliseconds
+  private final long scheduledNanoTime; // System.nanoTime() clock, used for scheduling
 
+  // bookkeeping for TimingWheelRelayScheduler, owned by its scheduler thread
+  ScheduledJob wheelNext;
+  long wheelRounds;
+  // set by MessageRelayManager when the job counts against relay.queue.capacity
+  boolean admitted;
+
+  /**
+   * @param delay in milliseconds; 0 means due immediately
+   */
   public ScheduledJob(long delay) {
-    if (delay <= 0) {
+    this(delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param delay 0 means due immediately
+   * @param unit
+   */
+  public ScheduledJob(long delay, TimeUnit unit) {
+    if (delay < 0) {
       throw new IllegalArgumentException("invalid delay: " + delay);
     }
 
-    this.scheduledTime = System.currentTimeMillis() + delay;
+    long delayNanos = unit.toNanos(delay);
+    this.scheduledNanoTime = System.nanoTime() + delayNanos;
+    this.scheduledTime = System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(delayNanos);
   }
 
   public long getScheduledTime() {
     return this.scheduledTime;
   }
 
+  public long getScheduledNanoTime() {
+    return this.scheduledNanoTime;
+  }
+
+  public boolean isDue() {
+    return scheduledNanoTime - System.nanoTime() <= 0;
+  }
+
   @Override
   public int compareTo(Delayed o) {
     if (this == o) {
@@ -49,11 +77,11 @@ public class ScheduledJob implements Delayed {
       throw new IllegalArgumentException("null delayed element");
     }
 
-    long delay = this.getScheduledTime();
-    long other = ((ScheduledJob)o).getScheduledTime();
-    if (delay == other) {
+    // nanoTime values are only comparable by their difference
+    long diff = this.getScheduledNanoTime() - ((ScheduledJob)o).getScheduledNanoTime();
+    if (diff == 0) {
       return 0;
-    } else if (delay > other) {
+    } else if (diff > 0) {
       return 1;
     } else {
       return -1;
@@ -62,7 +90,27 @@ public class ScheduledJob implements Delayed {
 
   @Override
   public long getDelay(TimeUnit unit) {
-    return unit.convert((this.scheduledTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    return unit.convert((this.scheduledNanoTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * key used by the sharded relay engine to pick a shard. Jobs with the same key
+   * are executed by the same shard, in scheduled order.
+   *
+   * @return
+   */
+  public Object getRoutingKey() {
+    return null;
+  }
+
+  /**
+   * whether the job may be dropped when the relay queue is overloaded
+   * (relay.overload.policy=shed-receipts)
+   *
+   * @return
+   */
+  public boolean isSheddable() {
+    return false;
   }
 
   /**
@@ -27,6 +27,15 @@ public class ServiceContext {
   @Inject MessageRelayManager messageRelayManager;
   @Inject GCMMessageStore gcmMessageStore;
   @Inject Config config;
+  @Inject FlowController flowController;
+  @Inject DelayProfiles delayProfiles;
+  @Inject ResponseRules responseRules;
+  @Inject DeviceRateLimiter deviceRateLimiter;
+  @Inject DuplicateDetector duplicateDetector;
+  @Inject UpstreamGenerator upstreamGenerator;
+  @Inject MessageTracer messageTracer;
+  @Inject ClusterState clusterState;
+  @Inject RelayPipeline relayPipeline;
 
   @Inject
   public ServiceContext() {
@@ -40,6 +49,42 @@ public class ServiceContext {
     return messageRelayManager;
   }
 
+  public FlowController getFlowController() {
+    return flowController;
+  }
+
+  public DelayProfiles getDelayProfiles() {
+    return delayProfiles;
+  }
+
+  public ResponseRules getResponseRules() {
+    return responseRules;
+  }
+
+  public DeviceRateLimiter getDeviceRateLimiter() {
+    return deviceRateLimiter;
+  }
+
+  public DuplicateDetector getDuplicateDetector() {
+    return duplicateDetector;
+  }
+
+  public UpstreamGenerator getUpstreamGenerator() {
+    return upstreamGenerator;
+  }
+
+  public MessageTracer getMessageTracer() {
+    return messageTracer;
+  }
+
+  public ClusterState getClusterState() {
+    return clusterState;
+  }
+
+  public RelayPipeline getRelayPipeline() {
+    return relayPipeline;
+  }
+
   public GCMMessageStore getRedisGCMMessageStore() {
     return gcmMessageStore;
   }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one lane per key: tasks with the same key run one at a time, in submission
+ * order, on a task of the underlying executor that drains the lane. With a virtual thread
+ * per task executor this gives each connection its own virtual thread while it has work.
+ *
+ * A lane is removed as soon as it drains, so keys that change on every reconnect (full JIDs)
+ * do not accumulate. A lane counts its pending tasks and is closed with a CAS from the last
+ * one; a submitter that finds it closed retries on a new lane, which can only start after
+ * every task of the closed one has run.
+ */
+public class SessionLaneExecutor {
+  final Logger logger = LoggerFactory.getLogger(SessionLaneExecutor.class);
+
+  private final Executor executor;
+  private final ConcurrentMap<Object, Lane> lanes = new ConcurrentHashMap<>();
+
+  public SessionLaneExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  public void execute(Object key, Runnable task) {
+    if (key == null) {
+      executor.execute(task);
+      return;
+    }
+    for (;;) {
+      Lane lane = lanes.get(key);
+      if (lane == null) {
+        Lane newLane = new Lane(key);
+        lane = lanes.putIfAbsent(key, newLane);
+        if (lane == null) {
+          lane = newLane;
+        }
+      }
+      if (lane.offer(task)) {
+        return;
+      }
+      // closed while draining, its runner may not have removed it yet
+      lanes.remove(key, lane);
+    }
+  }
+
+  public int getLaneCount() {
+    return lanes.size();
+  }
+
+  private final class Lane implements Runnable {
+    private static final int CLOSED = -1;
+
+    final Object key;
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // tasks offered and not yet run, or CLOSED
+    final AtomicInteger pending = new AtomicInteger();
+
+    Lane(Object key) {
+      this.key = key;
+    }
+
+    /**
+     * @return false if the lane is closed and the task was not taken
+     */
+    boolean offer(Runnable task) {
+      int current;
+      do {
+        current = pending.get();
+        if (current == CLOSED) {
+          return false;
+        }
+      } while (!pending.compareAndSet(current, current + 1));
+      tasks.add(task);
+      if (current == 0) {
+        executor.execute(this);
+      }
+      return true;
+    }
+
+    @Override
+    public void run() {
+      for (;;) {
+        Runnable task = tasks.poll();
+        if (task == null) {
+          // counted by a submitter that has not added it yet
+          Thread.yield();
+          continue;
+        }
+        try {
+          task.run();
+        } catch (Throwable t) {
+          // the lane must go on, or the key never gets another task run
+          logger.error("failed to execute task", t);
+        }
+        for (;;) {
+          int current = pending.get();
+          if (current == 1) {
+            if (pending.compareAndSet(1, CLOSED)) {
+              lanes.remove(key, this);
+              return;
+            }
+          } else if (pending.compareAndSet(current, current - 1)) {
+            break;
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.apache.vysper.mina.MinaBackedSessionContext;
+import org.apache.vysper.xml.fragment.Renderer;
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.server.SessionState;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces the stanzas relayed to the same provider session into one MINA write.
+ *
+ * Vysper writes every stanza on its own, which costs a TLS record and a socket write each.
+ * Here the rendered stanzas of a session are queued; the first one starts a linger timer
+ * (relay.coalesce.linger.us) and whatever is queued when it expires, or once max.batch
+ * stanzas are waiting, goes out as a single pre-encoded buffer. MINA's codec filter passes
+ * buffers through untouched. With no linger, a batch is whatever the other workers queued
+ * while the session was being written.
+ *
+ * Sessions that are not MINA backed fall back to the StanzaRelay.
+ *
+ * Caveats, which is why this is off unless relay.coalesce.enabled is set:
+ * the buffers go straight to the MINA session, bypassing Vysper's session writer, so a
+ * coalesced stanza can be reordered against anything Vysper writes to the same session
+ * itself (stream features, iq results, errors, the closing stream). Responses relayed here
+ * keep their order among themselves. Reaching the MINA session relies on the private
+ * minaSession field of MinaBackedSessionContext; when a Vysper version lacks it, every
+ * stanza is relayed one by one as without this class.
+ */
+public class StanzaWriteCoalescer {
+  private static final Logger logger = LoggerFactory.getLogger(StanzaWriteCoalescer.class);
+
+  // Vysper keeps the MINA session private
+  private static final Field MINA_SESSION = minaSessionField();
+
+  private final int maxBatch;
+  private final long lingerNanos;
+  private final RelayMetrics relayMetrics;
+  private final ScheduledExecutorService lingerTimer;
+  private final ConcurrentMap<SessionContext, SessionBatch> batches = new ConcurrentHashMap<>();
+
+  public StanzaWriteCoalescer(int maxBatch, long lingerNanos, RelayMetrics relayMetrics) {
+    if (maxBatch <= 0 || lingerNanos < 0) {
+      throw new IllegalArgumentException("invalid relay.coalesce.max.batch or relay.coalesce.linger.us");
+    }
+    this.maxBatch = maxBatch;
+    this.lingerNanos = lingerNanos;
+    this.relayMetrics = relayMetrics;
+    if (lingerNanos > 0) {
+      lingerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "relay-coalescer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    } else {
+      lingerTimer = null;
+    }
+    if (MINA_SESSION == null) {
+      logger.warn("cannot reach the MINA sessions, stanzas are relayed one by one");
+    }
+  }
+
+  /**
+   * queue the stanza for the receiver's session
+   *
+   * @return false if the receiver has no session that can be written directly;
+   * the caller relays the stanza itself
+   */
+  public boolean write(ServerRuntimeContext serverRuntimeContext, Entity receiver, Stanza stanza) {
+    if (MINA_SESSION == null || !receiver.isResourceSet()) {
+      return false;
+    }
+    SessionContext sessionContext = serverRuntimeContext.getResourceRegistry().getSessionContext(receiver.getResource());
+    if (!(sessionContext instanceof MinaBackedSessionContext) || sessionContext.getState() != SessionState.AUTHENTICATED) {
+      return false;
+    }
+    SessionBatch batch = batches.get(sessionContext);
+    if (batch == null) {
+      IoSession ioSession;
+      try {
+        ioSession = (IoSession) MINA_SESSION.get(sessionContext);
+      } catch (IllegalAccessException e) {
+        return false;
+      }
+      SessionBatch newBatch = new SessionBatch(ioSession);
+      batch = batches.putIfAbsent(sessionContext, newBatch);
+      if (batch == null) {
+        batch = newBatch;
+        // a new connection, forget the ones that are gone
+        removeClosedSessions();
+      }
+    }
+    batch.add(new Renderer(stanza).getComplete());
+    return true;
+  }
+
+  public void shutdown() {
+    if (lingerTimer != null) {
+      lingerTimer.shutdown();
+    }
+    for (SessionBatch batch : batches.values()) {
+      batch.drain();
+    }
+  }
+
+  private void removeClosedSessions() {
+    Iterator<Map.Entry<SessionContext, SessionBatch>> it = batches.entrySet().iterator();
+    while (it.hasNext()) {
+      SessionState state = it.next().getKey().getState();
+      if (state == SessionState.ENDED || state == SessionState.CLOSED) {
+        it.remove();
+      }
+    }
+  }
+
+  private static Field minaSessionField() {
+    try {
+      Field field = MinaBackedSessionContext.class.getDeclaredField("minaSession");
+      field.setAccessible(true);
+      return field;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private final class SessionBatch implements Runnable {
+    private final IoSession ioSession;
+    private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    // a drain is scheduled on the linger timer
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    SessionBatch(IoSession ioSession) {
+      this.ioSession = ioSession;
+    }
+
+    void add(String xml) {
+      queue.offer(xml);
+      int queued = size.incrementAndGet();
+      if (lingerTimer == null || queued >= maxBatch) {
+        drain();
+      } else if (scheduled.compareAndSet(false, true)) {
+        lingerTimer.schedule(this, lingerNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    @Override
+    public void run() {
+      scheduled.set(false);
+      drain();
+    }
+
+    void drain() {
+      // one writer per session at a time; stanzas queued meanwhile join its next batch
+      while (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+        try {
+          StringBuilder sb = new StringBuilder(1024);
+          for (;;) {
+            int count = 0;
+            String xml;
+            while (count < maxBatch && (xml = queue.poll()) != null) {
+              sb.append(xml);
+              count++;
+            }
+            if (count == 0) {
+              break;
+            }
+            size.addAndGet(-count);
+            if (ioSession.isConnected()) {
+              ioSession.write(IoBuffer.wrap(sb.toString().getBytes(Strings.UTF_8)));
+              relayMetrics.recordSessionWrite(count);
+            }
+            sb.setLength(0);
+          }
+        } finally {
+          draining.set(false);
+        }
+      }
+    }
+  }
+}
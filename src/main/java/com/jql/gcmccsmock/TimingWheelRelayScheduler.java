@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel RelayScheduler.
+ *
+ * Producers push jobs onto a lock-free intrusive stack (one CAS, no allocation).
+ * The scheduler thread wakes up once per tick, moves the pushed jobs into their
+ * wheel buckets and fires the bucket of the current tick. Jobs further out than
+ * one revolution carry a round count that is decremented on each pass.
+ * Insert and expiry are O(1); a job fires at most one tick late and never early.
+ */
+public class TimingWheelRelayScheduler implements RelayScheduler {
+  final Logger logger = LoggerFactory.getLogger(TimingWheelRelayScheduler.class);
+
+  private final JobDispatcher dispatcher;
+  private final long tickNanos;
+  private final int mask;
+  // bucket heads and tails, only touched by the scheduler thread
+  private final ScheduledJob[] wheel;
+  private final ScheduledJob[] tails;
+  private final AtomicReference<ScheduledJob> pending = new AtomicReference<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicBoolean keepRunning = new AtomicBoolean(true);
+  private final long startTime; // System.nanoTime()
+  private long tick;
+
+  public TimingWheelRelayScheduler(JobDispatcher dispatcher, long tick, TimeUnit tickUnit, int wheelSize) {
+    if (tick <= 0) {
+      throw new IllegalArgumentException("invalid tick: " + tick);
+    }
+    if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+      throw new IllegalArgumentException("invalid wheel size: " + wheelSize);
+    }
+    this.dispatcher = dispatcher;
+    this.tickNanos = tickUnit.toNanos(tick);
+    int normalized = Integer.highestOneBit(wheelSize);
+    if (normalized < wheelSize) {
+      normalized <<= 1;
+    }
+    this.wheel = new ScheduledJob[normalized];
+    this.tails = new ScheduledJob[normalized];
+    this.mask = normalized - 1;
+    this.startTime = System.nanoTime();
+  }
+
+  @Override
+  public boolean schedule(ScheduledJob job) {
+    if (!keepRunning.get()) {
+      return false;
+    }
+    ScheduledJob head;
+    do {
+      head = pending.get();
+      job.wheelNext = head;
+    } while (!pending.compareAndSet(head, job));
+    size.incrementAndGet();
+    return true;
+  }
+
+  @Override
+  public int size() {
+    return size.get();
+  }
+
+  @Override
+  public void stop() {
+    keepRunning.set(false);
+  }
+
+  @Override
+  public void run() {
+    while (keepRunning.get()) {
+      try {
+        if (!waitForNextTick()) {
+          return;
+        }
+        transferPending();
+        expireBucket(wheel[(int) (tick & mask)], (int) (tick & mask));
+        tick++;
+      } catch (Exception e) {
+        logger.error("TimingWheelRelayScheduler.run() got exception: {}", e);
+        // ignore for now
+      }
+    }
+  }
+
+  /**
+   * sleep until the end of the current tick
+   *
+   * @return false if interrupted
+   */
+  private boolean waitForNextTick() {
+    long deadline = startTime + (tick + 1) * tickNanos;
+    for (;;) {
+      long sleepNanos = deadline - System.nanoTime();
+      if (sleepNanos <= 0) {
+        return true;
+      }
+      LockSupport.parkNanos(this, sleepNanos);
+      if (Thread.currentThread().isInterrupted()) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * move the jobs pushed since the last tick into their buckets
+   */
+  private void transferPending() {
+    ScheduledJob job = pending.getAndSet(null);
+    // the stack is LIFO; reverse it so jobs with equal deadlines keep their submission order
+    ScheduledJob reversed = null;
+    while (job != null) {
+      ScheduledJob next = job.wheelNext;
+      job.wheelNext = reversed;
+      reversed = job;
+      job = next;
+    }
+    while (reversed != null) {
+      ScheduledJob next = reversed.wheelNext;
+      long jobTick = Math.max((reversed.getScheduledNanoTime() - startTime) / tickNanos, tick);
+      reversed.wheelRounds = (jobTick - tick) / wheel.length;
+      int index = (int) (jobTick & mask);
+      reversed.wheelNext = null;
+      // append to keep FIFO order within the bucket
+      appendToBucket(index, reversed);
+      reversed = next;
+    }
+  }
+
+  private void appendToBucket(int index, ScheduledJob job) {
+    if (wheel[index] == null) {
+      wheel[index] = job;
+    } else {
+      tails[index].wheelNext = job;
+    }
+    tails[index] = job;
+  }
+
+  private void expireBucket(ScheduledJob head, int index) {
+    wheel[index] = null;
+    tails[index] = null;
+    ScheduledJob job = head;
+    while (job != null) {
+      ScheduledJob next = job.wheelNext;
+      job.wheelNext = null;
+      if (job.wheelRounds <= 0) {
+        size.decrementAndGet();
+        try {
+          dispatcher.dispatch(job);
+        } catch (Exception e) {
+          logger.error("failed to dispatch job", e);
+        }
+      } else {
+        job.wheelRounds--;
+        appendToBucket(index, job);
+      }
+      job = next;
+    }
+  }
+}
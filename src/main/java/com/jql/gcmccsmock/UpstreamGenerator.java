@@ -0,0 +1,337 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.HdrHistogram.Histogram;
+import org.apache.vysper.xmpp.addressing.Entity;
+import org.apache.vysper.xmpp.addressing.EntityImpl;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.server.SessionState;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.apache.vysper.xmpp.state.resourcebinding.ResourceRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates upstream (device to app server) messages to the connected provider sessions,
+ * as CCS does when a device sends a message to the app server:
+ *
+ *   {"category":"com.example.app","data":{"payload":"..."},"message_id":"up-...","from":"REGID"}
+ *
+ * Messages go out at upstream.rate per second, round-robin over the authenticated sessions of
+ * the xmpp.users, with a data payload size drawn from upstream.payload.* (see
+ * DelayDistribution.fromConfig, in bytes). They are relayed through MessageRelayManager like
+ * any other outbound stanza. The provider is expected to ack each one; the time from relaying
+ * a message to its ack is recorded as RelayMetrics' upstream_ack latency. Messages not acked
+ * within upstream.ack.timeout.sec are counted as timed out.
+ */
+@Singleton
+public class UpstreamGenerator implements UpstreamGeneratorMXBean {
+  final Logger logger = LoggerFactory.getLogger(UpstreamGenerator.class);
+
+  static final String UPSTREAM_ID_PREFIX = "up-";
+  private static final long SESSION_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final DelayDistribution DEFAULT_PAYLOAD_BYTES = new DelayDistribution.Uniform(64, 1024);
+  private static final int MAX_PAYLOAD_BYTES = 4096;
+
+  private final boolean enabled;
+  private final double rate;
+  private final int regIdCount;
+  private final String category;
+  private final long ackTimeoutNanos;
+  private final long reportIntervalNanos;
+  private final DelayDistribution payloadBytes;
+  private final DelayRandom random = new DelayRandom(System.nanoTime());
+  private final Entity[] users;
+  private final MessageRelayManager messageRelayManager;
+  private final RelayMetrics relayMetrics;
+  private final String padding;
+  // message_id -> nanoTime the message was relayed, until the provider acks it
+  private final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<>();
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong acked = new AtomicLong();
+  private final AtomicLong nacked = new AtomicLong();
+  private final AtomicLong unmatched = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+
+  private volatile Entity[] receivers = new Entity[0];
+  private volatile boolean running;
+  private ServerRuntimeContext serverRuntimeContext;
+  private Thread thread;
+
+  @Inject
+  public UpstreamGenerator(Config config, MessageRelayManager messageRelayManager) {
+    this.messageRelayManager = messageRelayManager;
+    this.relayMetrics = messageRelayManager.getRelayMetrics();
+    this.enabled = Boolean.parseBoolean(config.getProperty("upstream.enabled", "false"));
+    this.rate = Double.parseDouble(config.getProperty("upstream.rate", "100"));
+    this.regIdCount = Integer.parseInt(config.getProperty("upstream.regid.count", "10000"));
+    this.category = config.getProperty("upstream.category", "com.example.app");
+    this.ackTimeoutNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(config.getProperty("upstream.ack.timeout.sec", "30")));
+    this.reportIntervalNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(config.getProperty("upstream.report.interval.sec", "10")));
+    this.payloadBytes = DelayDistribution.fromConfig(config, "upstream.payload", "bytes", DEFAULT_PAYLOAD_BYTES);
+    if (rate <= 0 || regIdCount <= 0 || ackTimeoutNanos <= 0 || reportIntervalNanos <= 0) {
+      throw new IllegalArgumentException("invalid upstream.* settings");
+    }
+    StringBuilder sb = new StringBuilder(MAX_PAYLOAD_BYTES);
+    for (int i = 0; i < MAX_PAYLOAD_BYTES; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    this.padding = sb.toString();
+
+    String domain = config.getProperty("xmpp.domain", "");
+    String usersString = config.getProperty("xmpp.users", "");
+    List<Entity> userList = new ArrayList<>();
+    for (String user : usersString.split(MockGCMXmppServer.REGEX_COMMA)) {
+      if (!user.isEmpty()) {
+        userList.add(EntityImpl.parseUnchecked(user + "@" + domain));
+      }
+    }
+    this.users = userList.toArray(new Entity[userList.size()]);
+  }
+
+  /**
+   * start generating once the server is up
+   *
+   * @param serverRuntimeContext
+   */
+  public synchronized void start(ServerRuntimeContext serverRuntimeContext) {
+    if (!enabled || running) {
+      return;
+    }
+    this.serverRuntimeContext = serverRuntimeContext;
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("com.jql.gcmccsmock:type=UpstreamGenerator"));
+    } catch (Exception e) {
+      logger.warn("failed to register the upstream generator MBean", e);
+    }
+    running = true;
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        generate();
+      }
+    }, "upstream-generator");
+    thread.setDaemon(true);
+    thread.start();
+    logger.info("upstream generator: {} messages/s, payload {} bytes, {} devices", rate, payloadBytes, regIdCount);
+  }
+
+  public synchronized void shutdown() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    thread.interrupt();
+    report();
+  }
+
+  /**
+   * an ack or nack from the provider
+   *
+   * @param messageId
+   * @param nack
+   * @return false if messageId is not an upstream message id, e.g. the ack of a delivery receipt
+   */
+  public boolean onProviderAck(String messageId, boolean nack) {
+    if (messageId == null || !messageId.startsWith(UPSTREAM_ID_PREFIX)) {
+      return false;
+    }
+    Long relayedNanos = pending.remove(messageId);
+    if (relayedNanos == null) {
+      unmatched.incrementAndGet();
+      return true;
+    }
+    relayMetrics.recordUpstreamAck(System.nanoTime() - relayedNanos);
+    (nack ? nacked : acked).incrementAndGet();
+    return true;
+  }
+
+  private void generate() {
+    long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    // distinguishes the ids of this run from a previous one's late acks
+    String idPrefix = UPSTREAM_ID_PREFIX + Long.toString(System.currentTimeMillis(), 36) + "-";
+    long sequence = 0;
+    long now = System.nanoTime();
+    long next = now;
+    long nextRefresh = now;
+    long nextReport = now + reportIntervalNanos;
+    while (running) {
+      now = System.nanoTime();
+      if (now - nextRefresh >= 0) {
+        refreshReceivers();
+        expire(now);
+        nextRefresh = now + SESSION_REFRESH_NANOS;
+      }
+      if (now - nextReport >= 0) {
+        report();
+        nextReport += reportIntervalNanos;
+      }
+      if (next - now > 0) {
+        LockSupport.parkNanos(Math.min(next - now, nextRefresh - now));
+        continue;
+      }
+      Entity[] current = receivers;
+      if (current.length == 0) {
+        // nobody to send to, do not build up a backlog
+        next = now + intervalNanos;
+        continue;
+      }
+      send(current[(int) (sequence % current.length)], idPrefix + sequence, sequence);
+      sequence++;
+      // open loop: keep the schedule even if sending fell behind
+      next += intervalNanos;
+    }
+  }
+
+  private void send(Entity receiver, String messageId, long sequence) {
+    int size = (int) Math.min(MAX_PAYLOAD_BYTES, Math.max(0, Math.round(payloadBytes.sample(random))));
+    StringBuilder sb = new StringBuilder(size + 160);
+    sb.append("{\"category\":\"");
+    ResponseTemplate.appendEscaped(sb, category);
+    sb.append("\",\"data\":{\"payload\":\"").append(padding, 0, size)
+        .append("\"},\"message_id\":\"").append(messageId)
+        .append("\",\"from\":\"upstream-device-").append(sequence % regIdCount).append("\"}");
+    Stanza stanza = ResponseRenderer.toStanza(null, sb.toString());
+    messageRelayManager.addJob(new UpstreamRelayJob(receiver, stanza, messageId));
+  }
+
+  private void refreshReceivers() {
+    ResourceRegistry registry = serverRuntimeContext.getResourceRegistry();
+    List<Entity> found = new ArrayList<>();
+    for (Entity user : users) {
+      for (SessionContext session : registry.getSessions(user)) {
+        if (session.getState() != SessionState.AUTHENTICATED) {
+          continue;
+        }
+        String resource = registry.getUniqueResourceForSession(session);
+        if (resource != null) {
+          found.add(new EntityImpl(user, resource));
+        }
+      }
+    }
+    if (found.size() != receivers.length) {
+      logger.info("upstream generator: {} provider sessions", found.size());
+    }
+    receivers = found.toArray(new Entity[found.size()]);
+  }
+
+  private void expire(long now) {
+    Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+    while (it.hasNext()) {
+      if (now - it.next().getValue() > ackTimeoutNanos) {
+        it.remove();
+        timedOut.incrementAndGet();
+      }
+    }
+  }
+
+  private void report() {
+    Histogram histogram = relayMetrics.upstreamAck.snapshot();
+    logger.info("upstream: sent={}, acked={}, nacked={}, unmatched={}, timed out={}, pending={}, "
+            + "ack latency us p50={} p99={} p99.9={} max={}",
+        sent.get(), acked.get(), nacked.get(), unmatched.get(), timedOut.get(), pending.size(),
+        histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(99),
+        histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public double getRate() {
+    return rate;
+  }
+
+  @Override
+  public int getSessionCount() {
+    return receivers.length;
+  }
+
+  @Override
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  @Override
+  public long getAckedCount() {
+    return acked.get();
+  }
+
+  @Override
+  public long getNackedCount() {
+    return nacked.get();
+  }
+
+  @Override
+  public long getUnmatchedCount() {
+    return unmatched.get();
+  }
+
+  @Override
+  public long getTimedOutCount() {
+    return timedOut.get();
+  }
+
+  @Override
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * relays an upstream message and starts its ack clock
+   */
+  private final class UpstreamRelayJob extends MessageRelayJobImpl {
+    private final String messageId;
+
+    UpstreamRelayJob(Entity receiver, Stanza stanza, String messageId) {
+      super(0, TimeUnit.NANOSECONDS, receiver, stanza, serverRuntimeContext);
+      this.messageId = messageId;
+    }
+
+    @Override
+    public boolean execute(MessageRelayManager messageRelayManager) {
+      // before relaying, the ack cannot arrive earlier
+      pending.put(messageId, System.nanoTime());
+      if (!super.execute(messageRelayManager)) {
+        pending.remove(messageId);
+        return false;
+      }
+      sent.incrementAndGet();
+      return true;
+    }
+  }
+}
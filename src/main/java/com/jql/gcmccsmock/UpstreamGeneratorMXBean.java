@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+/**
+ * JMX view of the upstream message generator. The provider's ack latency is
+ * RelayMetrics' UpstreamAck.
+ */
+public interface UpstreamGeneratorMXBean {
+  boolean isEnabled();
+  double getRate();
+  int getSessionCount();
+  long getSentCount();
+  long getAckedCount();
+  long getNackedCount();
+  /**
+   * @return acks and nacks that match no pending upstream message
+   */
+  long getUnmatchedCount();
+  long getTimedOutCount();
+  int getPendingCount();
+}
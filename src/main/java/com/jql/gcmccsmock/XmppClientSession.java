@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Minimal XMPP client session for LoadGenerator: STARTTLS, SASL PLAIN, resource binding,
+ * then GCM message stanzas out and GCM payloads in. Not a general purpose XMPP client;
+ * it understands just enough of the stream to talk to the mock server.
+ */
+public class XmppClientSession {
+  final Logger logger = LoggerFactory.getLogger(XmppClientSession.class);
+
+  private static final int CONNECT_TIMEOUT_MS = 10000;
+  private static final String MESSAGE_END = "</message>";
+
+  public interface StanzaListener {
+    /**
+     * @param payload the unescaped JSON of a received gcm element
+     */
+    void onGCMPayload(String payload);
+  }
+
+  private final String host;
+  private final int port;
+  private final String domain;
+  private final String user;
+  private final String password;
+  private final String resource;
+  private final SSLSocketFactory sslSocketFactory;
+
+  private Socket socket;
+  private Reader reader;
+  private Writer writer;
+  private final StringBuilder buffer = new StringBuilder(8192);
+  private final char[] readBuffer = new char[8192];
+  private volatile boolean closed;
+
+  public XmppClientSession(String host, int port, String domain, String user, String password, String resource,
+                           SSLSocketFactory sslSocketFactory) {
+    this.host = host;
+    this.port = port;
+    this.domain = domain;
+    this.user = user;
+    this.password = password;
+    this.resource = resource;
+    this.sslSocketFactory = sslSocketFactory;
+  }
+
+  /**
+   * open the stream, negotiate TLS, authenticate and bind the resource
+   *
+   * @throws IOException
+   */
+  public void connect() throws IOException {
+    socket = new Socket();
+    socket.setTcpNoDelay(true);
+    socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+    bindStreams(socket);
+
+    openStream();
+    expect("</stream:features>", "starttls");
+    write("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+    expect("<proceed", null);
+
+    SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, true);
+    sslSocket.startHandshake();
+    socket = sslSocket;
+    bindStreams(socket);
+
+    openStream();
+    expect("</stream:features>", "PLAIN");
+    byte[] credentials = ("\0" + user + "\0" + password).getBytes(Strings.UTF_8);
+    write("<auth xmlns='urn:ietf:params:xml:ns:xmpp-sasl' mechanism='PLAIN'>"
+        + new String(Base64.encodeBase64(credentials), Strings.UTF_8) + "</auth>");
+    expect("<success", null);
+
+    openStream();
+    expect("</stream:features>", null);
+    write("<iq type='set' id='bind-1'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><resource>"
+        + resource + "</resource></bind></iq>");
+    expect("</iq>", "<jid");
+  }
+
+  /**
+   * read stanzas on a daemon thread until the stream ends
+   *
+   * @param listener
+   */
+  public void startReader(final StanzaListener listener) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (;;) {
+            int end;
+            while ((end = buffer.indexOf(MESSAGE_END)) < 0) {
+              if (!fill()) {
+                return;
+              }
+            }
+            String payload = extractGCMPayload(buffer, end);
+            buffer.delete(0, end + MESSAGE_END.length());
+            if (payload != null) {
+              listener.onGCMPayload(payload);
+            }
+          }
+        } catch (IOException e) {
+          if (!closed) {
+            logger.warn("session {} lost: {}", resource, e.toString());
+          }
+        }
+      }
+    }, "xmpp-reader-" + resource);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @param id stanza id
+   * @param json GCM payload
+   * @throws IOException
+   */
+  public void sendGCM(String id, String json) throws IOException {
+    StringBuilder sb = new StringBuilder(json.length() + 96);
+    sb.append("<message id='").append(id).append("'><gcm xmlns='").append(Constants.NAME_SPACE_GCM).append("'>");
+    appendXmlEscaped(sb, json);
+    sb.append("</gcm></message>");
+    write(sb.toString());
+  }
+
+  public void close() {
+    closed = true;
+    try {
+      write("</stream:stream>");
+    } catch (IOException e) {
+      // closing anyway
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  private void bindStreams(Socket s) throws IOException {
+    reader = new InputStreamReader(s.getInputStream(), Strings.UTF_8);
+    writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), Strings.UTF_8), 8192);
+    buffer.setLength(0);
+  }
+
+  private void openStream() throws IOException {
+    write("<?xml version='1.0'?><stream:stream to='" + domain
+        + "' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>");
+  }
+
+  private synchronized void write(String data) throws IOException {
+    writer.write(data);
+    writer.flush();
+  }
+
+  /**
+   * read until token has arrived, then drop everything read so far
+   *
+   * @param token
+   * @param required text that must be part of the response, may be null
+   * @throws IOException
+   */
+  private void expect(String token, String required) throws IOException {
+    int index;
+    while ((index = buffer.indexOf(token)) < 0) {
+      if (buffer.indexOf("<failure") >= 0 || buffer.indexOf("<stream:error") >= 0) {
+        throw new IOException(resource + ": negotiation failed: " + buffer);
+      }
+      if (!fill()) {
+        throw new IOException(resource + ": stream closed while waiting for " + token);
+      }
+    }
+    String response = buffer.substring(0, index + token.length());
+    if ((required != null && !response.contains(required)) || response.contains("type=\"error\"")
+        || response.contains("type='error'")) {
+      throw new IOException(resource + ": unexpected response: " + response);
+    }
+    buffer.setLength(0);
+  }
+
+  private boolean fill() throws IOException {
+    int read = reader.read(readBuffer);
+    if (read < 0) {
+      return false;
+    }
+    buffer.append(readBuffer, 0, read);
+    return true;
+  }
+
+  /**
+   * @param end index of the closing message tag
+   * @return the text of the gcm element of the message, or null if it has none
+   */
+  static String extractGCMPayload(CharSequence stanzas, int end) {
+    String message = stanzas.subSequence(0, end).toString();
+    int gcm = message.indexOf("<gcm");
+    if (gcm < 0) {
+      return null;
+    }
+    int start = message.indexOf('>', gcm);
+    int close = message.indexOf("</gcm>", start);
+    if (start < 0 || close < 0) {
+      return null;
+    }
+    return xmlUnescape(message, start + 1, close);
+  }
+
+  static String xmlUnescape(String text, int start, int end) {
+    StringBuilder sb = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c != '&') {
+        sb.append(c);
+        continue;
+      }
+      int semicolon = text.indexOf(';', i);
+      String entity = text.substring(i + 1, semicolon);
+      switch (entity) {
+        case "lt": sb.append('<'); break;
+        case "gt": sb.append('>'); break;
+        case "amp": sb.append('&'); break;
+        case "quot": sb.append('"'); break;
+        case "apos": sb.append('\''); break;
+        default:
+          if (entity.startsWith("#x")) {
+            sb.append((char) Integer.parseInt(entity.substring(2), 16));
+          } else if (entity.startsWith("#")) {
+            sb.append((char) Integer.parseInt(entity.substring(1)));
+          } else {
+            sb.append('&').append(entity).append(';');
+          }
+      }
+      i = semicolon;
+    }
+    return sb.toString();
+  }
+
+  static void appendXmlEscaped(StringBuilder sb, String text) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '<': sb.append("&lt;"); break;
+        case '>': sb.append("&gt;"); break;
+        case '&': sb.append("&amp;"); break;
+        default: sb.append(c);
+      }
+    }
+  }
+}
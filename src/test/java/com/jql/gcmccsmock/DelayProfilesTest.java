@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DelayProfilesTest {
+
+  @Test
+  public void capsHeavyTailsAtAnHourByDefault() {
+    DelayProfiles profiles = new DelayProfiles(TestConfigs.config("delay.seed", "7",
+        "delay.receipt.distribution", "pareto", "delay.receipt.scale.ms", "1", "delay.receipt.shape", "0.5"));
+    long max = 0;
+    for (int i = 0; i < 1000000; i++) {
+      long delay = profiles.sampleNanos(DelayProfiles.ResponseType.RECEIPT);
+      assertTrue(delay >= 0);
+      max = Math.max(max, delay);
+    }
+    assertEquals(TimeUnit.HOURS.toNanos(1), max);
+  }
+
+  @Test
+  public void usesTheConfiguredCap() {
+    DelayProfiles profiles = new DelayProfiles(TestConfigs.config("delay.ack.distribution", "fixed",
+        "delay.ack.ms", "5000", "delay.ack.cap.ms", "250"));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(250), profiles.sampleNanos(DelayProfiles.ResponseType.ACK));
+  }
+
+  @Test
+  public void rejectsCapsThatCouldOverflow() {
+    for (String cap : new String[] { "Infinity", "NaN", "-1", "1e18" }) {
+      try {
+        new DelayProfiles(TestConfigs.config("delay.nack.cap.ms", cap));
+        fail(cap);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+}
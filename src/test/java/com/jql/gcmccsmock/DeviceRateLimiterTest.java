@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeviceRateLimiterTest {
+
+  private static DeviceRateLimiter limiter(String... keyValues) {
+    String[] settings = new String[keyValues.length + 2];
+    settings[0] = "rate.limit.enabled";
+    settings[1] = "true";
+    System.arraycopy(keyValues, 0, settings, 2, keyValues.length);
+    return new DeviceRateLimiter(TestConfigs.config(settings));
+  }
+
+  /**
+   * regIds whose buckets all probe from the same home slot of an 8 slot table
+   */
+  private static List<String> collidingRegIds(int count) {
+    List<String> regIds = new ArrayList<>();
+    Set<Long> fingerprints = new HashSet<>();
+    for (int i = 0; regIds.size() < count; i++) {
+      String regId = "reg-" + i;
+      long hash = Strings.hash(regId);
+      if (((hash ^ (hash >>> 29)) & 7) == 0 && fingerprints.add(hash >>> 48)) {
+        regIds.add(regId);
+      }
+    }
+    return regIds;
+  }
+
+  @Test
+  public void limitsAfterTheBurst() {
+    DeviceRateLimiter limiter = limiter("rate.limit.per.sec", "1", "rate.limit.burst", "3");
+    for (int i = 0; i < 3; i++) {
+      assertTrue(limiter.tryAcquire("a"));
+    }
+    assertFalse(limiter.tryAcquire("a"));
+    assertTrue(limiter.tryAcquire("b"));
+    assertEquals(4, limiter.getAllowedCount());
+    assertEquals(1, limiter.getLimitedCount());
+  }
+
+  @Test
+  public void refillsAtTheRate() throws InterruptedException {
+    DeviceRateLimiter limiter = limiter("rate.limit.per.sec", "20", "rate.limit.burst", "1");
+    assertTrue(limiter.tryAcquire("a"));
+    assertFalse(limiter.tryAcquire("a"));
+    // two tokens worth of time, capped at the burst
+    Thread.sleep(120);
+    assertTrue(limiter.tryAcquire("a"));
+    assertFalse(limiter.tryAcquire("a"));
+  }
+
+  @Test
+  public void grantsTheRateToASteadyStream() throws InterruptedException {
+    DeviceRateLimiter limiter = limiter("rate.limit.per.sec", "10", "rate.limit.burst", "1");
+    // every 12 ms refills 1.92 sixteenths of a token; the fractions must add up
+    long start = System.nanoTime();
+    int granted = 0;
+    for (int i = 0; i < 170; i++) {
+      if (limiter.tryAcquire("a")) {
+        granted++;
+      }
+      Thread.sleep(12);
+    }
+    double expected = 1 + (System.nanoTime() - start) / 1e8;
+    assertTrue("granted " + granted + ", expected about " + expected,
+        granted >= expected * 0.85 && granted <= expected + 1);
+  }
+
+  @Test
+  public void findsItsOwnBucketPastAnIdleSlot() throws InterruptedException {
+    DeviceRateLimiter limiter = limiter("rate.limit.per.sec", "1", "rate.limit.burst", "1",
+        "rate.limit.idle.sec", "1", "rate.limit.max.devices", "4");
+    assertEquals(8, limiter.getSlotCount());
+    List<String> regIds = collidingRegIds(3);
+    assertTrue(limiter.tryAcquire(regIds.get(0)));
+    assertTrue(limiter.tryAcquire(regIds.get(1)));
+    Thread.sleep(1200);
+
+    // the first slot is idle now, the second device must not claim it as a fresh bucket
+    assertTrue(limiter.tryAcquire(regIds.get(1)));
+    assertFalse(limiter.tryAcquire(regIds.get(1)));
+    assertEquals(0, limiter.getEvictedCount());
+    assertEquals(2, limiter.getOccupiedSlots());
+
+    // a new device takes over the idle slot
+    assertTrue(limiter.tryAcquire(regIds.get(2)));
+    assertEquals(1, limiter.getEvictedCount());
+    assertEquals(2, limiter.getOccupiedSlots());
+    assertFalse(limiter.tryAcquire(regIds.get(1)));
+  }
+
+  @Test
+  public void letsUntrackedDevicesThroughWhenTheProbesAreFull() {
+    DeviceRateLimiter limiter = limiter("rate.limit.per.sec", "1", "rate.limit.burst", "1",
+        "rate.limit.max.devices", "4");
+    List<String> regIds = collidingRegIds(9);
+    for (String regId : regIds) {
+      assertTrue(limiter.tryAcquire(regId));
+    }
+    assertEquals(8, limiter.getOccupiedSlots());
+    assertEquals(1, limiter.getUntrackedCount());
+    assertFalse(limiter.tryAcquire(regIds.get(0)));
+  }
+
+  @Test
+  public void sizesTheTableFromMaxDevices() {
+    assertEquals(2, limiter("rate.limit.max.devices", "1").getSlotCount());
+    assertEquals(16, limiter("rate.limit.max.devices", "5").getSlotCount());
+    for (String maxDevices : new String[] { "0", "-1", String.valueOf((1 << 29) + 1), "4000000000" }) {
+      try {
+        limiter("rate.limit.max.devices", maxDevices);
+        fail(maxDevices);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.apache.vysper.xmpp.server.SessionContext;
+import org.apache.vysper.xmpp.server.SessionState;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateDetectorTest {
+
+  /**
+   * a session that only answers getState
+   */
+  private static final class Session implements InvocationHandler {
+    volatile SessionState state = SessionState.AUTHENTICATED;
+    final SessionContext context = (SessionContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { SessionContext.class }, this);
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "getState":
+          return state;
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    }
+  }
+
+  private static DuplicateDetector detector(String exactIds) {
+    return new DuplicateDetector(TestConfigs.config("duplicate.detection.enabled", "true",
+        "duplicate.window.sec", "1", "duplicate.window.ids", "1000", "duplicate.exact.ids", exactIds));
+  }
+
+  @Test
+  public void detectsRepeatsPerSession() {
+    DuplicateDetector detector = detector("16");
+    Session a = new Session();
+    Session b = new Session();
+    assertFalse(detector.isDuplicate(a.context, "m-1"));
+    assertFalse(detector.isDuplicate(a.context, "m-2"));
+    assertFalse(detector.isDuplicate(b.context, "m-1"));
+    assertTrue(detector.isDuplicate(a.context, "m-1"));
+    assertTrue(detector.isDuplicate(b.context, "m-1"));
+    assertEquals(2, detector.getExactDuplicateCount());
+    assertEquals(0, detector.getProbableDuplicateCount());
+  }
+
+  @Test
+  public void fallsBackToTheFilterForOlderIds() {
+    DuplicateDetector detector = detector("2");
+    Session session = new Session();
+    for (int i = 0; i < 100; i++) {
+      assertFalse(detector.isDuplicate(session.context, "m-" + i));
+    }
+    // pushed out of the exact set, still in the filter
+    assertTrue(detector.isDuplicate(session.context, "m-0"));
+    assertEquals(0, detector.getExactDuplicateCount());
+    assertEquals(1, detector.getProbableDuplicateCount());
+  }
+
+  @Test
+  public void forgetsIdsAfterTheWindow() throws InterruptedException {
+    DuplicateDetector detector = detector("2");
+    Session session = new Session();
+    assertFalse(detector.isDuplicate(session.context, "m-0"));
+    assertFalse(detector.isDuplicate(session.context, "m-1"));
+    assertFalse(detector.isDuplicate(session.context, "m-2"));
+    // one and a half windows: both the exact set and every filter generation have moved on
+    Thread.sleep(1600);
+    assertFalse(detector.isDuplicate(session.context, "m-0"));
+    assertFalse(detector.isDuplicate(session.context, "m-2"));
+  }
+
+  @Test
+  public void dropsClosedSessions() {
+    DuplicateDetector detector = detector("16");
+    Session a = new Session();
+    detector.isDuplicate(a.context, "m-1");
+    a.state = SessionState.CLOSED;
+    detector.isDuplicate(new Session().context, "m-1");
+    assertEquals(1, detector.getSessionCount());
+  }
+}
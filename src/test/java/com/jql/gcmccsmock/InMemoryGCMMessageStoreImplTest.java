@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryGCMMessageStoreImplTest {
+
+  private InMemoryGCMMessageStoreImpl store;
+
+  @After
+  public void shutdown() {
+    if (store != null) {
+      store.shutdown();
+    }
+  }
+
+  @Test
+  public void returnsTheMostRecentMessagesNewestFirst() {
+    store = new InMemoryGCMMessageStoreImpl(TestConfigs.config(
+        "message.store.enabled", "true", "store.memory.ring.capacity", "3", "store.memory.budget.mb", "1"));
+    for (int i = 1; i <= 5; i++) {
+      assertTrue(store.storeMessage("reg", "{\"n\":" + i + ",\"text\":\"h\u00e9llo\"}"));
+    }
+    store.storeMessage("other", "{}");
+
+    assertEquals(Arrays.asList("{\"n\":5,\"text\":\"h\u00e9llo\"}", "{\"n\":4,\"text\":\"h\u00e9llo\"}",
+        "{\"n\":3,\"text\":\"h\u00e9llo\"}"), store.getMessages("reg"));
+    assertEquals(Arrays.asList("{}"), store.getMessages("other"));
+    assertTrue(store.getMessages("unknown").isEmpty());
+    assertEquals(6, store.getStoredCount());
+  }
+
+  @Test
+  public void overwrittenMessagesAreSkipped() {
+    store = new InMemoryGCMMessageStoreImpl(TestConfigs.config(
+        "message.store.enabled", "true", "store.memory.ring.capacity", "16", "store.memory.budget.mb", "1"));
+    char[] filler = new char[100 * 1024];
+    Arrays.fill(filler, 'x');
+    store.storeMessage("old", "first");
+    // wrap the 1 MB log
+    for (int i = 0; i < 12; i++) {
+      store.storeMessage("bulk", new String(filler));
+    }
+    assertTrue(store.getMessages("old").isEmpty());
+    assertTrue(store.getMessages("bulk").size() < 12);
+  }
+
+  @Test
+  public void concurrentAppendsToOneRegIdAreAllKept() throws InterruptedException {
+    store = new InMemoryGCMMessageStoreImpl(TestConfigs.config(
+        "message.store.enabled", "true", "store.memory.ring.capacity", "4096", "store.memory.budget.mb", "4"));
+    Thread[] writers = new Thread[4];
+    for (int t = 0; t < writers.length; t++) {
+      final int writer = t;
+      writers[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 1000; i++) {
+            store.storeMessage("reg", writer + ":" + i);
+          }
+        }
+      });
+      writers[t].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    List<String> messages = store.getMessages("reg");
+    Set<String> unique = new HashSet<>(messages);
+    assertEquals(4000, messages.size());
+    assertEquals(4000, unique.size());
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JournalGCMMessageStoreImplTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private JournalGCMMessageStoreImpl store;
+
+  @After
+  public void shutdown() {
+    if (store != null) {
+      store.shutdown();
+    }
+  }
+
+  private JournalGCMMessageStoreImpl open() {
+    return new JournalGCMMessageStoreImpl(TestConfigs.config("message.store.enabled", "true",
+        "store.journal.dir", folder.getRoot().getAbsolutePath(), "store.journal.segment.mb", "1",
+        "store.journal.mapped.segments", "2"));
+  }
+
+  private static String payload(int n) {
+    char[] filler = new char[1000];
+    Arrays.fill(filler, '\u00e9');
+    return "{\"n\":" + n + ",\"data\":\"" + new String(filler) + "\"}";
+  }
+
+  @Test
+  public void readsBackAcrossSegmentRolls() {
+    store = open();
+    List<String> expected = new ArrayList<>();
+    // about 2 KB per record, so this rolls several 1 MB segments
+    for (int i = 0; i < 2000; i++) {
+      assertTrue(store.storeMessage(i % 2 == 0 ? "even" : "odd", payload(i)));
+      if (i % 2 == 0) {
+        expected.add(payload(i));
+      }
+    }
+    assertTrue(JournalReader.listSegments(folder.getRoot()).length > 3);
+
+    Collections.reverse(expected);
+    assertEquals(expected, store.getMessages("even"));
+    assertEquals(1000, store.getMessages("odd").size());
+    assertTrue(store.getMessages("none").isEmpty());
+  }
+
+  @Test
+  public void restartAppendsToANewSegment() throws IOException {
+    store = open();
+    store.storeMessage("reg", "before");
+    store.shutdown();
+    assertTrue(store.getMessages("reg").isEmpty());
+
+    store = open();
+    store.storeMessage("reg", "after");
+    assertEquals(Arrays.asList("after", "before"), store.getMessages("reg"));
+    assertEquals(2, JournalReader.listSegments(folder.getRoot()).length);
+  }
+
+  @Test
+  public void rejectsRecordsLargerThanASegment() {
+    store = open();
+    char[] filler = new char[1024 * 1024];
+    assertFalse(store.storeMessage("reg", new String(filler)));
+  }
+
+  @Test
+  public void readerVisitsRecordsOldestFirst() throws IOException {
+    store = open();
+    for (int i = 0; i < 1500; i++) {
+      store.storeMessage("reg" + i % 3, payload(i));
+    }
+    store.shutdown();
+
+    JournalReader reader = new JournalReader(folder.getRoot());
+    final List<String> all = new ArrayList<>();
+    reader.readAll(new JournalReader.Visitor() {
+      @Override
+      public boolean visit(long timestamp, String regId, String payload) {
+        all.add(regId + "=" + payload);
+        return true;
+      }
+    });
+    assertEquals(1500, all.size());
+    for (int i = 0; i < 1500; i++) {
+      assertEquals("reg" + i % 3 + "=" + payload(i), all.get(i));
+    }
+
+    final List<String> one = new ArrayList<>();
+    reader.readRegId("reg1", new JournalReader.Visitor() {
+      @Override
+      public boolean visit(long timestamp, String regId, String payload) {
+        assertEquals("reg1", regId);
+        one.add(payload);
+        return one.size() < 10;
+      }
+    });
+    assertEquals(10, one.size());
+    assertEquals(payload(1), one.get(0));
+    assertEquals(payload(28), one.get(9));
+  }
+}
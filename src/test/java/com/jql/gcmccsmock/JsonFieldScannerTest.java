@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonFieldScannerTest {
+
+  private static final String[] KEYS = { "to", "message_id" };
+
+  private static String[] scan(String json) {
+    String[] values = new String[KEYS.length];
+    assertTrue(json, JsonFieldScanner.scan(json, KEYS, values));
+    return values;
+  }
+
+  @Test
+  public void extractsTopLevelStrings() {
+    assertArrayEquals(new String[] { "abc", "m-1" },
+        scan(" { \"message_id\" : \"m-1\", \"data\": {\"x\": 1}, \"to\":\"abc\" } "));
+    assertArrayEquals(new String[] { null, null }, scan("{}"));
+    assertArrayEquals(new String[] { "abc", null }, scan("{\"to\":\"abc\",\"dry_run\":true,\"ttl\":null}"));
+  }
+
+  @Test
+  public void decodesEscapes() {
+    assertArrayEquals(new String[] { "a\"b\\c/d\n\t\u00e9", "\u20ac" },
+        scan("{\"to\":\"a\\\"b\\\\c\\/d\\n\\t\\u00e9\",\"message_id\":\"\\u20AC\"}"));
+  }
+
+  @Test
+  public void matchesEscapedKeys() {
+    assertArrayEquals(new String[] { "abc", null }, scan("{\"\\u0074o\":\"abc\"}"));
+    // a key that only looks like a requested key once its escape is kept
+    assertArrayEquals(new String[] { null, null }, scan("{\"t\\\\o\":\"abc\"}"));
+  }
+
+  @Test
+  public void skipsNestedValuesWithBracketsInStrings() {
+    assertArrayEquals(new String[] { "abc", null },
+        scan("{\"data\":{\"to\":\"nested\",\"s\":\"}]{[\\\"\",\"a\":[1,[2,{\"b\":\"]\"}]]},\"to\":\"abc\"}"));
+    // a requested key holding an object or an array has no value
+    assertArrayEquals(new String[] { null, null }, scan("{\"to\":[\"abc\"],\"message_id\":{\"id\":\"x\"}}"));
+  }
+
+  @Test
+  public void returnsNumbersAsLiteralText() {
+    assertArrayEquals(new String[] { "-0.5e+3", "12345678901234567890" },
+        scan("{\"to\":-0.5e+3,\"message_id\":12345678901234567890}"));
+    assertArrayEquals(new String[] { null, "7" }, scan("{\"count\":42,\"message_id\":7}"));
+  }
+
+  @Test
+  public void rejectsMalformedPayloads() {
+    String[] malformed = { "", "[]", "{", "{\"to\"}", "{\"to\":\"abc\"", "{\"to\":\"abc\",}", "{to:\"abc\"}",
+        "{\"to\":\"abc\"} x", "{\"to\":\"\\u12\"}", "{\"data\":{\"a\":1}" };
+    for (String json : malformed) {
+      assertFalse(json, JsonFieldScanner.scan(json, KEYS, new String[KEYS.length]));
+    }
+  }
+}
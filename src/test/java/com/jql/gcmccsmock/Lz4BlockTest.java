@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Lz4BlockTest {
+
+  private static final byte[] DICTIONARY =
+      "{\"message_type\":\"ack\",\"from\":\"\",\"message_id\":\"\",\"data\":{\"message\":\"hello\"}}"
+          .getBytes(Strings.UTF_8);
+
+  private static byte[] compress(Lz4Block block, byte[] raw) {
+    byte[] dst = new byte[Lz4Block.maxCompressedLength(raw.length) + 3];
+    int end = block.compress(raw, dst, 3);
+    return Arrays.copyOfRange(dst, 3, end);
+  }
+
+  private static void assertRoundTrip(Lz4Block block, byte[] raw) {
+    byte[] compressed = compress(block, raw);
+    assertTrue(compressed.length <= Lz4Block.maxCompressedLength(raw.length));
+    byte[] padded = new byte[compressed.length + 2];
+    System.arraycopy(compressed, 0, padded, 1, compressed.length);
+    assertArrayEquals(raw, block.decompress(padded, 1, compressed.length, raw.length));
+  }
+
+  private static byte[] repetitive(int length) {
+    byte[] raw = new byte[length];
+    byte[] pattern = "{\"to\":\"abc\",\"n\":1}".getBytes(Strings.UTF_8);
+    for (int i = 0; i < length; i++) {
+      raw[i] = (byte) (pattern[i % pattern.length] + (i / 1000) % 3);
+    }
+    return raw;
+  }
+
+  private static byte[] random(int length, long seed) {
+    byte[] raw = new byte[length];
+    new Random(seed).nextBytes(raw);
+    return raw;
+  }
+
+  @Test
+  public void roundTripsWithoutADictionary() {
+    Lz4Block block = new Lz4Block(new byte[0]);
+    for (int length = 0; length < 40; length++) {
+      assertRoundTrip(block, Arrays.copyOf(repetitive(40), length));
+      assertRoundTrip(block, random(length, length));
+    }
+    assertRoundTrip(block, repetitive(300000));
+    assertRoundTrip(block, random(300000, 1));
+    byte[] zeros = new byte[100000];
+    assertRoundTrip(block, zeros);
+    assertTrue(compress(block, zeros).length < 1000);
+  }
+
+  @Test
+  public void roundTripsWithADictionary() {
+    Lz4Block block = new Lz4Block(DICTIONARY);
+    byte[] payload = "{\"message_type\":\"ack\",\"from\":\"reg-1\",\"message_id\":\"m-1\"}".getBytes(Strings.UTF_8);
+    assertRoundTrip(block, payload);
+    assertTrue(compress(block, payload).length < compress(new Lz4Block(new byte[0]), payload).length);
+    for (int length = 0; length < 40; length++) {
+      assertRoundTrip(block, random(length, length));
+    }
+    assertRoundTrip(block, repetitive(300000));
+    assertRoundTrip(block, random(300000, 2));
+  }
+
+  @Test
+  public void usesTheTailOfALargeDictionary() {
+    byte[] dictionary = random(Lz4Block.MAX_DICTIONARY_BYTES + 1000, 3);
+    Lz4Block block = new Lz4Block(dictionary);
+    byte[] tail = Arrays.copyOfRange(dictionary, dictionary.length - 500, dictionary.length);
+    assertRoundTrip(block, tail);
+    assertTrue(compress(block, tail).length < 100);
+  }
+
+  @Test
+  public void rejectsCorruptBlocks() {
+    Lz4Block block = new Lz4Block(new byte[0]);
+    byte[] raw = repetitive(1000);
+    byte[] compressed = compress(block, raw);
+    byte[][] corrupt = {
+        Arrays.copyOf(compressed, compressed.length / 2),
+        // a match reaching before the start
+        { 0x1f, 'a', (byte) 0xff, (byte) 0xff, 0x50, 'a', 'a', 'a', 'a', 'a' },
+    };
+    for (byte[] bytes : corrupt) {
+      try {
+        block.decompress(bytes, 0, bytes.length, raw.length);
+        fail();
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+    try {
+      block.decompress(compressed, 0, compressed.length, raw.length + 1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
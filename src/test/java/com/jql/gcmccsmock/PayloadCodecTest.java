@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PayloadCodecTest {
+
+  private static final String PAYLOAD = "{\"to\":\"APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx\",\"message_id\":\"m-42\","
+      + "\"time_to_live\":600,\"delay_while_idle\":true,\"data\":{\"message\":\"h\u00e9llo \u20ac\",\"count\":\"3\"}}";
+
+  private static byte[] builtin() throws IOException {
+    return PayloadDictionary.load(PayloadDictionary.BUILTIN);
+  }
+
+  private static String[] payloads() {
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      large.append(PAYLOAD);
+    }
+    char[] random = new char[5000];
+    Random rnd = new Random(1);
+    for (int i = 0; i < random.length; i++) {
+      random[i] = (char) (0x20 + rnd.nextInt(0x3000));
+    }
+    return new String[] { "", "{}", PAYLOAD, large.toString(), new String(random) };
+  }
+
+  @Test
+  public void roundTripsEveryCodec() throws IOException {
+    for (PayloadCodec.Type type : PayloadCodec.Type.values()) {
+      for (byte[] dictionary : new byte[][] { new byte[0], builtin() }) {
+        PayloadCodec codec = new PayloadCodec(type, dictionary, PayloadCodec.DEFAULT_LEVEL);
+        for (String payload : payloads()) {
+          assertEquals(type + " " + dictionary.length, payload, codec.decode(codec.encode(payload)));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void dictionaryShrinksSmallPayloads() throws IOException {
+    for (PayloadCodec.Type type : new PayloadCodec.Type[] { PayloadCodec.Type.DEFLATE, PayloadCodec.Type.LZ4 }) {
+      int plain = new PayloadCodec(type, new byte[0], PayloadCodec.DEFAULT_LEVEL).encode(PAYLOAD).length;
+      int withDictionary = new PayloadCodec(type, builtin(), PayloadCodec.DEFAULT_LEVEL).encode(PAYLOAD).length;
+      assertTrue(type + ": " + withDictionary + " >= " + plain, withDictionary < plain);
+    }
+  }
+
+  @Test
+  public void noneStoresPlainJson() {
+    PayloadCodec none = new PayloadCodec(PayloadCodec.Type.NONE, new byte[0], PayloadCodec.DEFAULT_LEVEL);
+    assertArrayEquals(PAYLOAD.getBytes(Strings.UTF_8), none.encode(PAYLOAD));
+  }
+
+  @Test
+  public void readsPayloadsStoredBeforeCompression() throws IOException {
+    byte[] plain = PAYLOAD.getBytes(Strings.UTF_8);
+    for (PayloadCodec.Type type : PayloadCodec.Type.values()) {
+      PayloadCodec codec = new PayloadCodec(type, builtin(), PayloadCodec.DEFAULT_LEVEL);
+      assertEquals(PAYLOAD, codec.decode(plain));
+      assertEquals("", codec.decode(new byte[0]));
+    }
+  }
+
+  @Test
+  public void readsPayloadsWithoutADictionaryAfterOneIsConfigured() throws IOException {
+    for (PayloadCodec.Type type : new PayloadCodec.Type[] { PayloadCodec.Type.DEFLATE, PayloadCodec.Type.LZ4 }) {
+      byte[] stored = new PayloadCodec(type, new byte[0], PayloadCodec.DEFAULT_LEVEL).encode(PAYLOAD);
+      assertEquals(PAYLOAD, new PayloadCodec(type, builtin(), PayloadCodec.DEFAULT_LEVEL).decode(stored));
+    }
+  }
+
+  @Test
+  public void rejectsAnotherDictionary() throws IOException {
+    byte[] other = "{\"other\":\"dictionary\"}".getBytes(Strings.UTF_8);
+    for (PayloadCodec.Type type : new PayloadCodec.Type[] { PayloadCodec.Type.DEFLATE, PayloadCodec.Type.LZ4 }) {
+      byte[] stored = new PayloadCodec(type, builtin(), PayloadCodec.DEFAULT_LEVEL).encode(PAYLOAD);
+      for (byte[] dictionary : new byte[][] { new byte[0], other }) {
+        try {
+          new PayloadCodec(type, dictionary, PayloadCodec.DEFAULT_LEVEL).decode(stored);
+          fail(type + " " + dictionary.length);
+        } catch (IllegalArgumentException expected) {
+        }
+      }
+    }
+  }
+
+  @Test
+  public void rejectsBadSettings() {
+    try {
+      new PayloadCodec(PayloadCodec.Type.DEFLATE, new byte[0], 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      PayloadCodec.fromConfig(TestConfigs.config("store.codec", "zstd"));
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(PayloadCodec.Type.LZ4, PayloadCodec.fromConfig(TestConfigs.config("store.codec", "lz4")).getType());
+  }
+}
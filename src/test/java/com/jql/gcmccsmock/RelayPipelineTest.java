@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.apache.vysper.xmpp.delivery.StanzaRelay;
+import org.apache.vysper.xmpp.server.ServerRuntimeContext;
+import org.apache.vysper.xmpp.stanza.Stanza;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class RelayPipelineTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final BlockingQueue<String> relayed = new LinkedBlockingQueue<>();
+  private MessageRelayManager messageRelayManager;
+  private RelayPipeline pipeline;
+
+  /**
+   * a server context whose stanza relay records the payloads
+   */
+  private final class Recorder implements InvocationHandler {
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "getStanzaRelay":
+          return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { StanzaRelay.class }, this);
+        case "relay":
+          relayed.add(((Stanza) args[1]).getFirstInnerElement().getInnerText().getText());
+          return null;
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    }
+  }
+
+  @After
+  public void shutdown() {
+    if (pipeline != null) {
+      pipeline.shutdown();
+    }
+    if (messageRelayManager != null) {
+      messageRelayManager.shutdown();
+    }
+  }
+
+  private ResponseRelayJob.Target start(String ringSize, String rules) throws IOException {
+    File rulesFile = folder.newFile("rules");
+    try (FileOutputStream out = new FileOutputStream(rulesFile)) {
+      out.write(rules.getBytes(Strings.UTF_8));
+    }
+    Config config = TestConfigs.config("relay.pipeline.enabled", "true", "relay.pipeline.ring.size", ringSize,
+        "message.store.enabled", "false", "message.log.payloads", "false", "rules.file", rulesFile.getAbsolutePath(),
+        "delay.ack.distribution", "fixed", "delay.ack.ms", "0",
+        "delay.receipt.distribution", "fixed", "delay.receipt.ms", "5");
+    messageRelayManager = new MessageRelayManager(config, new RelayMetrics());
+    messageRelayManager.messageTracer = new MessageTracer(config);
+    messageRelayManager.gcmMessageStore = new InMemoryGCMMessageStoreImpl(config);
+    ServiceContext serviceContext = new ServiceContext();
+    serviceContext.config = config;
+    serviceContext.messageRelayManager = messageRelayManager;
+    serviceContext.messageTracer = messageRelayManager.messageTracer;
+    serviceContext.gcmMessageStore = messageRelayManager.gcmMessageStore;
+    serviceContext.flowController = new FlowController(config);
+    serviceContext.delayProfiles = new DelayProfiles(config);
+    serviceContext.responseRules = new ResponseRules(config);
+    serviceContext.deviceRateLimiter = new DeviceRateLimiter(config);
+    serviceContext.duplicateDetector = new DuplicateDetector(config);
+    serviceContext.upstreamGenerator = new UpstreamGenerator(config, messageRelayManager);
+    serviceContext.clusterState = new ClusterState(config, serviceContext.deviceRateLimiter);
+    pipeline = new RelayPipeline(config, messageRelayManager);
+    pipeline.start(new MessageDecider(serviceContext));
+    ServerRuntimeContext serverRuntimeContext = (ServerRuntimeContext) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] { ServerRuntimeContext.class }, new Recorder());
+    return new ResponseRelayJob.Target(null, serverRuntimeContext);
+  }
+
+  private void publish(ResponseRelayJob.Target target, String to, String messageId) {
+    pipeline.publish(null, target, null, "{\"to\":\"" + to + "\",\"message_id\":\"" + messageId + "\"}",
+        System.nanoTime());
+  }
+
+  /**
+   * @return message_type:message_id of the next count responses
+   */
+  private List<String> take(int count) throws InterruptedException {
+    List<String> responses = new ArrayList<>();
+    String[] keys = { "message_type", "message_id" };
+    for (int i = 0; i < count; i++) {
+      String payload = relayed.poll(5, TimeUnit.SECONDS);
+      assertNotNull("response " + i + " of " + count, payload);
+      String[] values = new String[keys.length];
+      JsonFieldScanner.scan(payload, keys, values);
+      responses.add(values[0] + ":" + values[1].replace("dr2:", ""));
+    }
+    return responses;
+  }
+
+  @Test
+  public void relaysInPublishOrderWithinAResponseType() throws Exception {
+    ResponseRelayJob.Target target = start("64", "");
+    int count = 500;
+    for (int i = 0; i < count; i++) {
+      publish(target, "reg", "m-" + i);
+    }
+    List<String> responses = take(2 * count);
+    List<String> acks = new ArrayList<>();
+    List<String> receipts = new ArrayList<>();
+    for (String response : responses) {
+      (response.startsWith("ack:") ? acks : receipts).add(response.substring(response.indexOf(':') + 1));
+      if (response.startsWith("receipt:")) {
+        // a receipt never overtakes its own ack
+        assertTrue(acks.contains(response.substring("receipt:".length())));
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      assertEquals("m-" + i, acks.get(i));
+      assertEquals("m-" + i, receipts.get(i));
+    }
+  }
+
+  @Test
+  public void relaysByDueTimeAcrossMessages() throws Exception {
+    ResponseRelayJob.Target target = start("64", "prefix:slow- delay 60 80\n");
+    publish(target, "slow-1", "m-slow");
+    publish(target, "fast-1", "m-fast");
+    List<String> responses = take(4);
+    assertEquals("ack:m-fast", responses.get(0));
+    assertEquals("receipt:m-fast", responses.get(1));
+    assertEquals("ack:m-slow", responses.get(2));
+    assertEquals("receipt:m-slow", responses.get(3));
+  }
+}
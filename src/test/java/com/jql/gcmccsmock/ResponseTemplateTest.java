@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseTemplateTest {
+
+  @Test
+  public void rendersSlotsInPlace() {
+    assertEquals("{\"message_type\":\"ack\",\"from\":\"reg\",\"message_id\":\"m-1\"}",
+        ResponseRenderer.ACK.render("reg", "m-1", 0));
+    assertEquals("ack", ResponseRenderer.ACK.getMessageType());
+    assertEquals("receipt", ResponseRenderer.RECEIPT.getMessageType());
+    assertNull(ResponseTemplate.compile("{}").getMessageType());
+
+    ResponseTemplate template = ResponseTemplate.compile("[${timestamp},\"${timestamp}\",${messageId},\"${regId}\"]");
+    assertEquals("[42,\"42\",null,\"r\"]", template.render("r", null, 42));
+  }
+
+  @Test
+  public void escapesValues() {
+    String regId = "a\"b\\c\n\r\t\b\f\u0001\u007f\u2028 \u00e9/";
+    String rendered = ResponseRenderer.ACK.render(regId, "m", 0);
+    assertEquals("{\"message_type\":\"ack\",\"from\":\"a\\\"b\\\\c\\n\\r\\t\\b\\f\\u0001\\u007F\\u2028 \u00e9/\","
+        + "\"message_id\":\"m\"}", rendered);
+
+    String[] values = new String[1];
+    assertTrue(JsonFieldScanner.scan(rendered, new String[] { "from" }, values));
+    assertArrayEquals(new String[] { regId }, values);
+  }
+
+  @Test
+  public void escapesSlotsInsideStringLiterals() {
+    String rendered = ResponseRenderer.NACK_BAD_REGISTRATION.render("x\"y", "m", 0);
+    String[] values = new String[1];
+    assertTrue(JsonFieldScanner.scan(rendered, new String[] { "error_description" }, values));
+    assertEquals("Invalid token on 'to' field: x\"y", values[0]);
+  }
+
+  @Test
+  public void escapesCompiledLiterals() {
+    ResponseTemplate template = ResponseRenderer.compileCanonicalAck("canonical\"${regId}");
+    String[] values = new String[2];
+    assertTrue(JsonFieldScanner.scan(template.render("reg", "m", 0), new String[] { "from", "registration_id" },
+        values));
+    assertArrayEquals(new String[] { "reg", "canonical\"reg" }, values);
+  }
+
+  @Test
+  public void keepsEscapedQuotesAroundASlot() {
+    // a slot after an escaped quote is inside the description, even when the closing quote follows
+    for (String description : new String[] { "bad \"${messageId}\"", "bad \"${messageId}", "\"${messageId}" }) {
+      ResponseTemplate template = ResponseRenderer.compileNack("BAD_REGISTRATION", description);
+      String[] values = new String[1];
+      assertTrue(description, JsonFieldScanner.scan(template.render("APA91", null, 0),
+          new String[] { "error_description" }, values));
+      assertEquals(description.replace("${messageId}", "null"), values[0]);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsUnknownSlots() {
+    ResponseTemplate.compile("{\"from\":\"${regId}\",\"x\":\"${unknown}\"}");
+  }
+}
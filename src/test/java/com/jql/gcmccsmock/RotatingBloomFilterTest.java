@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RotatingBloomFilterTest {
+
+  private static final long WINDOW = 1000;
+
+  private static long hash(int id) {
+    return Strings.mix(Strings.hash("id-" + id));
+  }
+
+  private static long hash2(int id) {
+    return Strings.mix(hash(id)) | 1;
+  }
+
+  @Test
+  public void remembersForOneToOneAndAHalfWindows() {
+    RotatingBloomFilter filter = new RotatingBloomFilter(WINDOW, 1000, 0.001, 0);
+    // added at the end of a generation: remembered for one window
+    filter.add(hash(1), hash2(1), 499);
+    // added at the start of a generation: remembered for one and a half windows
+    filter.add(hash(2), hash2(2), 500);
+
+    assertTrue(filter.mightContain(hash(1), hash2(1), 499));
+    assertTrue(filter.mightContain(hash(1), hash2(1), 499 + WINDOW));
+    assertFalse(filter.mightContain(hash(1), hash2(1), 500 + WINDOW));
+
+    assertTrue(filter.mightContain(hash(2), hash2(2), 500 + WINDOW));
+    assertTrue(filter.mightContain(hash(2), hash2(2), 1999));
+    assertFalse(filter.mightContain(hash(2), hash2(2), 2000));
+  }
+
+  @Test
+  public void reusesExpiredGenerations() {
+    RotatingBloomFilter filter = new RotatingBloomFilter(WINDOW, 1000, 0.001, 0);
+    filter.add(hash(1), hash2(1), 0);
+    // the generation slot of epoch 0 is taken over by epoch 3
+    filter.add(hash(2), hash2(2), 1500);
+    assertFalse(filter.mightContain(hash(1), hash2(1), 1500));
+    assertTrue(filter.mightContain(hash(2), hash2(2), 1500));
+    assertEquals(0, filter.estimatedFalsePositiveRate(10 * WINDOW), 0);
+  }
+
+  @Test
+  public void staysWithinTheFalsePositiveRate() {
+    int ids = 20000;
+    double rate = 0.01;
+    RotatingBloomFilter filter = new RotatingBloomFilter(WINDOW, ids, rate, 0);
+    // a full window of ids spread over two generations
+    for (int i = 0; i < ids; i++) {
+      long now = i < ids / 2 ? 0 : 500;
+      filter.add(hash(i), hash2(i), now);
+    }
+    for (int i = 0; i < ids; i++) {
+      assertTrue(filter.mightContain(hash(i), hash2(i), 999));
+    }
+    int falsePositives = 0;
+    int probes = 100000;
+    for (int i = ids; i < ids + probes; i++) {
+      if (filter.mightContain(hash(i), hash2(i), 999)) {
+        falsePositives++;
+      }
+    }
+    assertTrue("false positives: " + falsePositives, falsePositives < probes * rate);
+    double estimated = filter.estimatedFalsePositiveRate(999);
+    assertTrue("estimated: " + estimated, estimated > 0 && estimated < rate);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsFiltersThatAreTooLarge() {
+    new RotatingBloomFilter(WINDOW, 1L << 40, 0.001, 0);
+  }
+}
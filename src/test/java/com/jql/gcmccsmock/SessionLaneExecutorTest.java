@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionLaneExecutorTest {
+
+  private final ExecutorService pool = Executors.newFixedThreadPool(8);
+
+  @After
+  public void shutdown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void runsEachKeyInOrderAndRemovesIdleLanes() throws InterruptedException {
+    final SessionLaneExecutor lanes = new SessionLaneExecutor(pool);
+    final int keys = 20;
+    final int tasks = 5000;
+    final List<List<Integer>> runs = new ArrayList<>();
+    final AtomicInteger[] running = new AtomicInteger[keys];
+    final AtomicInteger overlaps = new AtomicInteger();
+    for (int k = 0; k < keys; k++) {
+      runs.add(new ArrayList<Integer>());
+      running[k] = new AtomicInteger();
+    }
+    final CountDownLatch done = new CountDownLatch(keys * tasks);
+    Thread[] submitters = new Thread[keys];
+    for (int k = 0; k < keys; k++) {
+      final int key = k;
+      submitters[k] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < tasks; i++) {
+            final int n = i;
+            lanes.execute("session-" + key, new Runnable() {
+              @Override
+              public void run() {
+                if (running[key].incrementAndGet() != 1) {
+                  overlaps.incrementAndGet();
+                }
+                // the lane hands its tasks from thread to thread; only its ordering keeps this list safe
+                runs.get(key).add(n);
+                running[key].decrementAndGet();
+                done.countDown();
+              }
+            });
+            if (i % 1000 == 0) {
+              Thread.yield();
+            }
+          }
+        }
+      });
+      submitters[k].start();
+    }
+    for (Thread submitter : submitters) {
+      submitter.join();
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(0, overlaps.get());
+    for (int k = 0; k < keys; k++) {
+      List<Integer> run = runs.get(k);
+      assertEquals(tasks, run.size());
+      for (int i = 0; i < tasks; i++) {
+        assertEquals(i, (int) run.get(i));
+      }
+    }
+    // the last task of a lane closes it just after counting down
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (lanes.getLaneCount() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    assertEquals(0, lanes.getLaneCount());
+  }
+
+  @Test
+  public void keepsRunningAfterATaskThrows() throws InterruptedException {
+    SessionLaneExecutor lanes = new SessionLaneExecutor(pool);
+    final CountDownLatch done = new CountDownLatch(1);
+    lanes.execute("session", new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalStateException("store failed");
+      }
+    });
+    lanes.execute("session", new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    // and a lane reopened after the failing one drained
+    final CountDownLatch reopened = new CountDownLatch(1);
+    lanes.execute("session", new Runnable() {
+      @Override
+      public void run() {
+        throw new AssertionError("job failed");
+      }
+    });
+    lanes.execute("session", new Runnable() {
+      @Override
+      public void run() {
+        reopened.countDown();
+      }
+    });
+    assertTrue(reopened.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void reopensALaneAfterItCloses() throws InterruptedException {
+    SessionLaneExecutor lanes = new SessionLaneExecutor(pool);
+    for (int round = 0; round < 100; round++) {
+      final CountDownLatch done = new CountDownLatch(1);
+      lanes.execute("session", new Runnable() {
+        @Override
+        public void run() {
+          done.countDown();
+        }
+      });
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+  }
+}
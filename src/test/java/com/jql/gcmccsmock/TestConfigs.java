@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+/**
+ * Config for tests: the bundled config.properties with the given overrides.
+ */
+final class TestConfigs {
+
+  private TestConfigs() {
+  }
+
+  /**
+   * @param keyValues property names and values, alternating
+   */
+  static Config config(String... keyValues) {
+    Config config = new Config();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      config.setProperty(keyValues[i], keyValues[i + 1]);
+    }
+    return config;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015, Dennis Li
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jql.gcmccsmock;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelRelaySchedulerTest {
+
+  private TimingWheelRelayScheduler scheduler;
+  private Thread thread;
+
+  @After
+  public void stop() throws InterruptedException {
+    if (scheduler != null) {
+      scheduler.stop();
+      thread.join(1000);
+    }
+  }
+
+  @Test
+  public void jobsFireInDeadlineOrderAndNeverEarly() throws InterruptedException {
+    Recorder recorder = new Recorder(4);
+    start(recorder, 1, 64);
+    ScheduledJob late = new ScheduledJob(60);
+    ScheduledJob early = new ScheduledJob(10);
+    ScheduledJob middle = new ScheduledJob(30);
+    ScheduledJob now = new ScheduledJob(0);
+    for (ScheduledJob job : new ScheduledJob[] {late, early, middle, now}) {
+      assertTrue(scheduler.schedule(job));
+    }
+    assertEquals(4, scheduler.size());
+
+    assertTrue(recorder.await());
+    assertSame(now, recorder.jobs.get(0));
+    assertSame(early, recorder.jobs.get(1));
+    assertSame(middle, recorder.jobs.get(2));
+    assertSame(late, recorder.jobs.get(3));
+    recorder.assertNotEarly();
+    assertEquals(0, scheduler.size());
+  }
+
+  @Test
+  public void jobsBeyondOneRevolutionWaitTheirRounds() throws InterruptedException {
+    // 4 buckets of 1 ms: a 50 ms job goes round the wheel a dozen times
+    Recorder recorder = new Recorder(3);
+    start(recorder, 1, 4);
+    ScheduledJob far = new ScheduledJob(50);
+    ScheduledJob sameBucket = new ScheduledJob(2);
+    ScheduledJob further = new ScheduledJob(80);
+    scheduler.schedule(far);
+    scheduler.schedule(further);
+    scheduler.schedule(sameBucket);
+
+    assertTrue(recorder.await());
+    assertSame(sameBucket, recorder.jobs.get(0));
+    assertSame(far, recorder.jobs.get(1));
+    assertSame(further, recorder.jobs.get(2));
+    recorder.assertNotEarly();
+  }
+
+  @Test
+  public void dueJobsKeepSubmissionOrder() throws InterruptedException {
+    int count = 1000;
+    Recorder recorder = new Recorder(count);
+    start(recorder, 5, 16);
+    List<ScheduledJob> submitted = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ScheduledJob job = new ScheduledJob(0);
+      submitted.add(job);
+      scheduler.schedule(job);
+    }
+    assertTrue(recorder.await());
+    assertEquals(submitted, recorder.jobs);
+  }
+
+  @Test
+  public void rejectsJobsAfterStop() {
+    start(new Recorder(0), 1, 8);
+    scheduler.stop();
+    assertFalse(scheduler.schedule(new ScheduledJob(0)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvalidTick() {
+    new TimingWheelRelayScheduler(new Recorder(0), 0, TimeUnit.MILLISECONDS, 8);
+  }
+
+  private void start(JobDispatcher dispatcher, long tickMs, int wheelSize) {
+    scheduler = new TimingWheelRelayScheduler(dispatcher, tickMs, TimeUnit.MILLISECONDS, wheelSize);
+    thread = new Thread(scheduler, "test-timing-wheel");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static final class Recorder implements JobDispatcher {
+    final List<ScheduledJob> jobs = new ArrayList<>();
+    final List<Long> firedNanos = new ArrayList<>();
+    final CountDownLatch done;
+
+    Recorder(int expected) {
+      done = new CountDownLatch(expected);
+    }
+
+    @Override
+    public synchronized void dispatch(ScheduledJob job) {
+      firedNanos.add(System.nanoTime());
+      jobs.add(job);
+      done.countDown();
+    }
+
+    boolean await() throws InterruptedException {
+      return done.await(5, TimeUnit.SECONDS);
+    }
+
+    synchronized void assertNotEarly() {
+      for (int i = 0; i < jobs.size(); i++) {
+        assertTrue("job " + i + " fired early", firedNanos.get(i) - jobs.get(i).getScheduledNanoTime() >= 0);
+      }
+    }
+  }
+}